@@ -0,0 +1,63 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.cloudstorage;
+
+import java.util.concurrent.Future;
+
+/**
+ * Asynchronous variant of the metadata operations of {@link GcsService}. Every method returns
+ * immediately and the request, including any retries, is carried out in the background. This
+ * allows a single thread to have many requests in flight, for example to check or delete a large
+ * number of objects.
+ *
+ * The {@link RetryParams} that were passed to {@link GcsServiceFactory} are applied as they are for
+ * {@link GcsService}, but the delay between attempts is waited for on a shared timer rather than on
+ * the calling thread. If an operation fails the returned future fails with the same exception
+ * (usually an {@link java.io.IOException}) that the corresponding method of {@link GcsService}
+ * would throw, or with a {@link RetriesExhaustedException} if all attempts failed. Cancelling a
+ * future cancels the request in flight and any further retries.
+ */
+public interface AsyncGcsService {
+
+  /**
+   * @see GcsService#getMetadata(GcsFilename)
+   * @return a future for the metadata associated with the file, or null if the file does not
+   *     exist.
+   */
+  Future<GcsFileMetadata> getMetadata(GcsFilename filename);
+
+  /**
+   * @see GcsService#delete(GcsFilename)
+   * @return a future for true if deleted, false if not found.
+   */
+  Future<Boolean> delete(GcsFilename filename);
+
+  /**
+   * @see GcsService#compose(Iterable, GcsFilename)
+   */
+  Future<Void> compose(Iterable<String> source, GcsFilename dest);
+
+  /**
+   * @see GcsService#copy(GcsFilename, GcsFilename)
+   */
+  Future<Void> copy(GcsFilename source, GcsFilename dest);
+
+  /**
+   * @see GcsService#update(GcsFilename, GcsFileOptions)
+   */
+  Future<Void> update(GcsFilename source, GcsFileOptions options);
+}
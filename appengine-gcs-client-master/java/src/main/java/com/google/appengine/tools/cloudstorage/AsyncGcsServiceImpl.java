@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.cloudstorage;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+/**
+ * Basic implementation of {@link AsyncGcsService}. Mostly delegates to the asynchronous methods of
+ * {@link RawGcsService}, retrying failed attempts with {@link RetryHelper#runWithRetriesAsync}, so
+ * that neither the requests nor the delays between attempts occupy a thread.
+ */
+final class AsyncGcsServiceImpl implements AsyncGcsService {
+
+  private final RawGcsService raw;
+  private final RetryParams retryParams;
+
+  AsyncGcsServiceImpl(RawGcsService raw, GcsServiceOptions options) {
+    this.raw = checkNotNull(raw, "Null raw");
+    this.retryParams = options.getRetryParams();
+  }
+
+  /**
+   * A single attempt of an operation.
+   */
+  private abstract class Attempt<V> implements Callable<Future<V>> {
+    private final String description;
+
+    Attempt(String description) {
+      this.description = description;
+    }
+
+    abstract Future<V> start(long timeoutMillis);
+
+    @Override
+    public Future<V> call() {
+      return start(retryParams.getRequestTimeoutMillisForCurrentAttempt());
+    }
+
+    @Override
+    public String toString() {
+      return description;
+    }
+  }
+
+  private <V> Future<V> run(Attempt<V> attempt) {
+    return RetryHelper.runWithRetriesAsync(attempt, retryParams, GcsServiceImpl.exceptionHandler);
+  }
+
+  @Override
+  public String toString() {
+    return "AsyncGcsServiceImpl [retryParams=" + retryParams + "]";
+  }
+
+  @Override
+  public Future<GcsFileMetadata> getMetadata(final GcsFilename filename) {
+    return run(new Attempt<GcsFileMetadata>("getMetadata " + filename) {
+      @Override
+      Future<GcsFileMetadata> start(long timeoutMillis) {
+        return raw.getObjectMetadataAsync(filename, timeoutMillis);
+      }
+    });
+  }
+
+  @Override
+  public Future<Boolean> delete(final GcsFilename filename) {
+    return run(new Attempt<Boolean>("delete " + filename) {
+      @Override
+      Future<Boolean> start(long timeoutMillis) {
+        return raw.deleteObjectAsync(filename, timeoutMillis);
+      }
+    });
+  }
+
+  @Override
+  public Future<Void> compose(final Iterable<String> source, final GcsFilename dest) {
+    return run(new Attempt<Void>("compose " + dest) {
+      @Override
+      Future<Void> start(long timeoutMillis) {
+        return raw.composeObjectAsync(source, dest, timeoutMillis);
+      }
+    });
+  }
+
+  @Override
+  public Future<Void> copy(final GcsFilename source, final GcsFilename dest) {
+    return run(new Attempt<Void>("copy " + source + " to " + dest) {
+      @Override
+      Future<Void> start(long timeoutMillis) {
+        return raw.copyObjectAsync(source, dest, null, timeoutMillis);
+      }
+    });
+  }
+
+  @Override
+  public Future<Void> update(final GcsFilename source, final GcsFileOptions fileOptions) {
+    return run(new Attempt<Void>("update " + source) {
+      @Override
+      Future<Void> start(long timeoutMillis) {
+        return raw.copyObjectAsync(source, source, fileOptions, timeoutMillis);
+      }
+    });
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.cloudstorage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of {@link ByteBuffer}s used by the channels of a {@link GcsService} for their
+ * block buffers, so that reading and writing in steady state does not allocate a new buffer for
+ * every block.
+ *
+ * Buffers are pooled by their exact capacity. A buffer that is released while the pool already
+ * holds {@code maxPooledBytes} is left to the garbage collector. This class is thread-safe and a
+ * single instance may be shared by several services (see
+ * {@link GcsServiceOptions.Builder#setBufferPool(ByteBufferPool)}).
+ *
+ * Heap buffers are usually the better choice for the URLFetch based service: a full heap write
+ * buffer is sent without copying, while the content of a direct buffer always has to be copied
+ * into an array first.
+ */
+public final class ByteBufferPool {
+
+  private final long maxPooledBytes;
+  private final boolean direct;
+  private final ConcurrentMap<Integer, Queue<ByteBuffer>> freeBuffers = new ConcurrentHashMap<>();
+  private final AtomicLong pooledBytes = new AtomicLong();
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong discardCount = new AtomicLong();
+
+  /**
+   * @param maxPooledBytes the maximum total capacity of the buffers kept in the pool
+   * @param direct whether to allocate direct rather than heap buffers
+   */
+  public ByteBufferPool(long maxPooledBytes, boolean direct) {
+    checkArgument(maxPooledBytes >= 0, "maxPooledBytes must not be negative");
+    this.maxPooledBytes = maxPooledBytes;
+    this.direct = direct;
+  }
+
+  /**
+   * Returns a cleared buffer with exactly the given capacity, either from the pool or newly
+   * allocated.
+   */
+  public ByteBuffer acquire(int capacity) {
+    checkArgument(capacity >= 0, "capacity must not be negative");
+    Queue<ByteBuffer> queue = freeBuffers.get(capacity);
+    ByteBuffer buffer = queue == null ? null : queue.poll();
+    if (buffer != null) {
+      pooledBytes.addAndGet(-capacity);
+      hitCount.incrementAndGet();
+      buffer.clear();
+      return buffer;
+    }
+    missCount.incrementAndGet();
+    return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+  }
+
+  /**
+   * Returns a buffer to the pool. The caller must not use the buffer, or any view of it,
+   * afterwards. Buffers that do not match the kind allocated by this pool are ignored.
+   */
+  public void release(ByteBuffer buffer) {
+    checkNotNull(buffer, "Null buffer");
+    int capacity = buffer.capacity();
+    if (buffer.isDirect() != direct || buffer.isReadOnly() || !reserve(capacity)) {
+      discardCount.incrementAndGet();
+      return;
+    }
+    buffer.clear();
+    Queue<ByteBuffer> queue = freeBuffers.get(capacity);
+    if (queue == null) {
+      Queue<ByteBuffer> newQueue = new ConcurrentLinkedQueue<>();
+      queue = freeBuffers.putIfAbsent(capacity, newQueue);
+      if (queue == null) {
+        queue = newQueue;
+      }
+    }
+    queue.offer(buffer);
+  }
+
+  private boolean reserve(int capacity) {
+    while (true) {
+      long current = pooledBytes.get();
+      if (current + capacity > maxPooledBytes) {
+        return false;
+      }
+      if (pooledBytes.compareAndSet(current, current + capacity)) {
+        return true;
+      }
+    }
+  }
+
+  public long getMaxPooledBytes() {
+    return maxPooledBytes;
+  }
+
+  public boolean isDirect() {
+    return direct;
+  }
+
+  /**
+   * Returns the total capacity of the buffers currently held by the pool.
+   */
+  public long getPooledBytes() {
+    return pooledBytes.get();
+  }
+
+  /**
+   * Returns the number of {@link #acquire} calls that were served from the pool.
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * Returns the number of {@link #acquire} calls that allocated a new buffer.
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * Returns the number of released buffers that were not kept by the pool.
+   */
+  public long getDiscardCount() {
+    return discardCount.get();
+  }
+
+  @Override
+  public String toString() {
+    return "ByteBufferPool [maxPooledBytes=" + maxPooledBytes + ", direct=" + direct
+        + ", pooledBytes=" + pooledBytes + ", hitCount=" + hitCount + ", missCount=" + missCount
+        + ", discardCount=" + discardCount + "]";
+  }
+}
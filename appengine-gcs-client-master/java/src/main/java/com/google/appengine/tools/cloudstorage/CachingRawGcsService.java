@@ -0,0 +1,481 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.cloudstorage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.appengine.tools.cloudstorage.ObjectCache.CachedObject;
+import com.google.common.util.concurrent.ForwardingFuture.SimpleForwardingFuture;
+import com.google.common.util.concurrent.Futures;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A {@link RawGcsService} that serves reads of small objects from an {@link ObjectCache} and
+ * metadata requests from a {@link MetadataCache}, either of which may be absent, and delegates
+ * everything else.
+ *
+ * Objects are evicted from the caches before and after every operation that replaces or deletes
+ * them, so that a request racing with the operation cannot cache the old state. For asynchronous
+ * operations, they are evicted again once the returned future is seen to be done. The futures of
+ * reads and metadata requests update the caches when their result is retrieved.
+ */
+final class CachingRawGcsService implements RawGcsService {
+
+  private final RawGcsService raw;
+  private final ObjectCache objectCache;
+  private final MetadataCache metadataCache;
+
+  CachingRawGcsService(RawGcsService raw, ObjectCache objectCache,
+      MetadataCache metadataCache) {
+    checkArgument(objectCache != null || metadataCache != null, "No cache");
+    this.raw = checkNotNull(raw, "Null raw");
+    this.objectCache = objectCache;
+    this.metadataCache = metadataCache;
+  }
+
+  /**
+   * Evicts {@code filename} from the caches.
+   */
+  private void invalidate(GcsFilename filename) {
+    if (objectCache != null) {
+      objectCache.invalidate(filename);
+    }
+    if (metadataCache != null) {
+      metadataCache.invalidate(filename);
+    }
+  }
+
+  /**
+   * A future that passes the value of its delegate through {@link #onSuccess} once, when it is
+   * first retrieved, and returns the outcome from then on.
+   */
+  private abstract static class CompletionFuture<V> extends SimpleForwardingFuture<V> {
+    private boolean completed;
+    private V result;
+    private ExecutionException failure;
+
+    CompletionFuture(Future<V> delegate) {
+      super(delegate);
+    }
+
+    abstract V onSuccess(V value) throws ExecutionException;
+
+    private synchronized V completed(V value) throws ExecutionException {
+      if (!completed) {
+        completed = true;
+        try {
+          result = onSuccess(value);
+        } catch (ExecutionException e) {
+          failure = e;
+        }
+      }
+      if (failure != null) {
+        throw failure;
+      }
+      return result;
+    }
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+      return completed(super.get());
+    }
+
+    @Override
+    public V get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      return completed(super.get(timeout, unit));
+    }
+  }
+
+  /**
+   * The future of an operation that replaces or deletes an object, which evicts the object from
+   * the caches once it is first seen to be done.
+   */
+  private final class InvalidatingFuture<V> extends SimpleForwardingFuture<V> {
+    private final GcsFilename filename;
+    private final AtomicBoolean invalidated = new AtomicBoolean();
+
+    InvalidatingFuture(Future<V> delegate, GcsFilename filename) {
+      super(delegate);
+      this.filename = filename;
+    }
+
+    private void checkDone() {
+      if (delegate().isDone() && invalidated.compareAndSet(false, true)) {
+        invalidate(filename);
+      }
+    }
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+      try {
+        return super.get();
+      } finally {
+        checkDone();
+      }
+    }
+
+    @Override
+    public V get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      try {
+        return super.get(timeout, unit);
+      } finally {
+        checkDone();
+      }
+    }
+
+    @Override
+    public boolean isDone() {
+      try {
+        return super.isDone();
+      } finally {
+        checkDone();
+      }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      try {
+        return super.cancel(mayInterruptIfRunning);
+      } finally {
+        checkDone();
+      }
+    }
+  }
+
+  @Override
+  public int getChunkSizeBytes() {
+    return raw.getChunkSizeBytes();
+  }
+
+  @Override
+  public int getMaxWriteSizeByte() {
+    return raw.getMaxWriteSizeByte();
+  }
+
+  @Override
+  public int getMaxReadSizeBytes() {
+    return raw.getMaxReadSizeBytes();
+  }
+
+  @Override
+  public RawGcsCreationToken beginObjectCreation(GcsFilename filename, GcsFileOptions options,
+      long timeoutMillis) throws IOException {
+    return raw.beginObjectCreation(filename, options, timeoutMillis);
+  }
+
+  @Override
+  public Future<RawGcsCreationToken> continueObjectCreationAsync(RawGcsCreationToken token,
+      ByteBuffer chunk, long timeoutMillis) {
+    return raw.continueObjectCreationAsync(token, chunk, timeoutMillis);
+  }
+
+  @Override
+  public void finishObjectCreation(RawGcsCreationToken token, ByteBuffer chunk,
+      long timeoutMillis) throws IOException {
+    invalidate(token.getFilename());
+    try {
+      raw.finishObjectCreation(token, chunk, timeoutMillis);
+    } finally {
+      invalidate(token.getFilename());
+    }
+  }
+
+  @Override
+  public void putObject(GcsFilename filename, GcsFileOptions options, ByteBuffer content,
+      long timeoutMillis) throws IOException {
+    invalidate(filename);
+    try {
+      raw.putObject(filename, options, content, timeoutMillis);
+    } finally {
+      invalidate(filename);
+    }
+  }
+
+  @Override
+  public Future<GcsFileMetadata> readObjectAsync(ByteBuffer dst, GcsFilename filename,
+      long offset, long timeoutMillis) {
+    return readObjectAsync(dst, filename, offset, null, null, timeoutMillis);
+  }
+
+  /**
+   * Serves an unconditional read from the cache if the object is cached, after checking that the
+   * object is unchanged if the cache revalidates. Otherwise the read is delegated, and the object
+   * is cached once the read completes if it was read whole.
+   */
+  @Override
+  public Future<GcsFileMetadata> readObjectAsync(final ByteBuffer dst, final GcsFilename filename,
+      final long offset, String ifMatch, String ifNoneMatch, long timeoutMillis) {
+    checkArgument(offset >= 0, "%s: offset must be non-negative: %s", this, offset);
+    if (objectCache == null) {
+      return raw.readObjectAsync(dst, filename, offset, ifMatch, ifNoneMatch, timeoutMillis);
+    }
+    final CachedObject cached =
+        ifMatch == null && ifNoneMatch == null ? objectCache.get(filename) : null;
+    String etag = cached == null ? null : cached.getMetadata().getEtag();
+    if (cached != null && !objectCache.isRevalidate()) {
+      objectCache.recordHit();
+      try {
+        return Futures.immediateFuture(copy(cached, dst, offset));
+      } catch (BadRangeException e) {
+        return Futures.immediateFailedFuture(e);
+      }
+    }
+    final long generation = objectCache.getGeneration();
+    final ByteBuffer start = dst.duplicate();
+    if (cached != null && etag != null) {
+      objectCache.recordRevalidation();
+      Future<GcsFileMetadata> future =
+          raw.readObjectAsync(dst, filename, offset, null, etag, timeoutMillis);
+      return new CompletionFuture<GcsFileMetadata>(future) {
+        @Override
+        GcsFileMetadata onSuccess(GcsFileMetadata metadata) throws ExecutionException {
+          if (metadata != null) {
+            objectCache.recordMiss();
+            cacheRead(metadata, start, dst, offset, generation);
+            objectCache.validate(filename, metadata);
+            return metadata;
+          }
+          objectCache.recordHit();
+          try {
+            return copy(cached, dst, offset);
+          } catch (BadRangeException e) {
+            throw new ExecutionException(e);
+          }
+        }
+      };
+    }
+    objectCache.recordMiss();
+    Future<GcsFileMetadata> future =
+        raw.readObjectAsync(dst, filename, offset, ifMatch, ifNoneMatch, timeoutMillis);
+    if (offset != 0) {
+      return future;
+    }
+    return new CompletionFuture<GcsFileMetadata>(future) {
+      @Override
+      GcsFileMetadata onSuccess(GcsFileMetadata metadata) {
+        return cacheRead(metadata, start, dst, offset, generation);
+      }
+    };
+  }
+
+  /**
+   * Copies the content of {@code cached} from {@code offset} into {@code dst}.
+   */
+  private static GcsFileMetadata copy(CachedObject cached, ByteBuffer dst, long offset) {
+    byte[] content = cached.getContent();
+    if (offset >= content.length) {
+      throw new BadRangeException("The requested range cannot be satisfied. bytes=" + offset + "-"
+          + (offset + dst.remaining()) + " the file is only " + content.length);
+    }
+    dst.put(content, (int) offset, (int) Math.min(dst.remaining(), content.length - offset));
+    return cached.getMetadata();
+  }
+
+  /**
+   * Caches the object that a completed read filled {@code dst} with from {@code start}, if it was
+   * read whole.
+   */
+  private GcsFileMetadata cacheRead(GcsFileMetadata metadata, ByteBuffer start, ByteBuffer dst,
+      long offset, long generation) {
+    int read = dst.position() - start.position();
+    if (metadata != null && offset == 0 && read == metadata.getLength()
+        && objectCache.isCacheable(read)) {
+      byte[] content = new byte[read];
+      start.get(content);
+      objectCache.put(metadata, content, generation);
+    }
+    return metadata;
+  }
+
+  private GcsFileMetadata getCachedMetadata(GcsFilename filename) {
+    return metadataCache == null ? null : metadataCache.get(filename);
+  }
+
+  private long getMetadataGeneration() {
+    return metadataCache == null ? 0 : metadataCache.getGeneration();
+  }
+
+  /**
+   * Updates the caches with the result of a metadata request issued at {@code generation}.
+   */
+  private void onMetadata(GcsFilename filename, GcsFileMetadata metadata, long generation) {
+    if (objectCache != null) {
+      objectCache.validate(filename, metadata);
+    }
+    if (metadataCache != null && metadata != null) {
+      metadataCache.put(metadata, generation);
+    }
+  }
+
+  @Override
+  public GcsFileMetadata getObjectMetadata(GcsFilename filename, long timeoutMillis)
+      throws IOException {
+    GcsFileMetadata metadata = getCachedMetadata(filename);
+    if (metadata != null) {
+      return metadata;
+    }
+    long generation = getMetadataGeneration();
+    metadata = raw.getObjectMetadata(filename, timeoutMillis);
+    onMetadata(filename, metadata, generation);
+    return metadata;
+  }
+
+  /**
+   * Returns a future that updates the caches with the result of {@code future}, a metadata
+   * request issued at {@code generation}.
+   */
+  private Future<GcsFileMetadata> recording(final GcsFilename filename,
+      Future<GcsFileMetadata> future, final long generation) {
+    return new CompletionFuture<GcsFileMetadata>(future) {
+      @Override
+      GcsFileMetadata onSuccess(GcsFileMetadata metadata) {
+        onMetadata(filename, metadata, generation);
+        return metadata;
+      }
+    };
+  }
+
+  @Override
+  public Future<GcsFileMetadata> getObjectMetadataAsync(GcsFilename filename,
+      long timeoutMillis) {
+    GcsFileMetadata cached = getCachedMetadata(filename);
+    if (cached != null) {
+      return Futures.immediateFuture(cached);
+    }
+    long generation = getMetadataGeneration();
+    return recording(filename, raw.getObjectMetadataAsync(filename, timeoutMillis), generation);
+  }
+
+  @Override
+  public List<Future<GcsFileMetadata>> getObjectMetadata(Iterable<GcsFilename> filenames,
+      int maxConcurrentRequests, long timeoutMillis) throws IOException {
+    long generation = getMetadataGeneration();
+    List<Future<GcsFileMetadata>> futures =
+        raw.getObjectMetadata(filenames, maxConcurrentRequests, timeoutMillis);
+    List<Future<GcsFileMetadata>> results = new ArrayList<>(futures.size());
+    int i = 0;
+    for (GcsFilename filename : filenames) {
+      results.add(recording(filename, futures.get(i++), generation));
+    }
+    return results;
+  }
+
+  @Override
+  public boolean deleteObject(GcsFilename filename, long timeoutMillis) throws IOException {
+    invalidate(filename);
+    try {
+      return raw.deleteObject(filename, timeoutMillis);
+    } finally {
+      invalidate(filename);
+    }
+  }
+
+  @Override
+  public Future<Boolean> deleteObjectAsync(GcsFilename filename, long timeoutMillis) {
+    invalidate(filename);
+    return new InvalidatingFuture<>(raw.deleteObjectAsync(filename, timeoutMillis), filename);
+  }
+
+  @Override
+  public List<Future<Boolean>> deleteObjects(Iterable<GcsFilename> filenames,
+      int maxConcurrentRequests, long timeoutMillis) throws IOException {
+    for (GcsFilename filename : filenames) {
+      invalidate(filename);
+    }
+    List<Future<Boolean>> futures;
+    try {
+      futures = raw.deleteObjects(filenames, maxConcurrentRequests, timeoutMillis);
+    } finally {
+      for (GcsFilename filename : filenames) {
+        invalidate(filename);
+      }
+    }
+    List<Future<Boolean>> results = new ArrayList<>(futures.size());
+    int i = 0;
+    for (GcsFilename filename : filenames) {
+      results.add(new InvalidatingFuture<>(futures.get(i++), filename));
+    }
+    return results;
+  }
+
+  @Override
+  public void composeObject(Iterable<String> source, GcsFilename dest, long timeoutMillis)
+      throws IOException {
+    invalidate(dest);
+    try {
+      raw.composeObject(source, dest, timeoutMillis);
+    } finally {
+      invalidate(dest);
+    }
+  }
+
+  @Override
+  public Future<Void> composeObjectAsync(Iterable<String> source, GcsFilename dest,
+      long timeoutMillis) {
+    invalidate(dest);
+    return new InvalidatingFuture<>(raw.composeObjectAsync(source, dest, timeoutMillis), dest);
+  }
+
+  @Override
+  public void copyObject(GcsFilename source, GcsFilename dest, GcsFileOptions fileOptions,
+      long timeoutMillis) throws IOException {
+    invalidate(dest);
+    try {
+      raw.copyObject(source, dest, fileOptions, timeoutMillis);
+    } finally {
+      invalidate(dest);
+    }
+  }
+
+  @Override
+  public Future<Void> copyObjectAsync(GcsFilename source, GcsFilename dest,
+      GcsFileOptions fileOptions, long timeoutMillis) {
+    invalidate(dest);
+    return new InvalidatingFuture<>(
+        raw.copyObjectAsync(source, dest, fileOptions, timeoutMillis), dest);
+  }
+
+  @Override
+  public ListItemBatch list(String bucket, String prefix, String delimiter, String marker,
+      int maxResults, long timeoutMillis) throws IOException {
+    return raw.list(bucket, prefix, delimiter, marker, maxResults, timeoutMillis);
+  }
+
+  @Override
+  public Future<ListItemBatch> listAsync(String bucket, String prefix, String delimiter,
+      String marker, int maxResults, long timeoutMillis) {
+    return raw.listAsync(bucket, prefix, delimiter, marker, maxResults, timeoutMillis);
+  }
+
+  @Override
+  public String toString() {
+    return "CachingRawGcsService [raw=" + raw + ", objectCache=" + objectCache
+        + ", metadataCache=" + metadataCache + "]";
+  }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.cloudstorage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Stops sending requests to a bucket while most of the recent requests to it failed, so that
+ * during an outage callers fail fast with a {@link CircuitBreakerOpenException} instead of all
+ * retrying (see {@link GcsServiceOptions.Builder#setCircuitBreaker(CircuitBreaker)}).
+ *
+ * Each bucket has its own circuit. A closed circuit lets requests through and keeps the outcome
+ * of the last {@code windowSize} of them. A request fails if it throws an exception that
+ * {@link GcsService} would retry; other outcomes, such as a missing object, show that the bucket
+ * is available. Once at least {@code minimumRequests} outcomes are known and at least
+ * {@code failureRateThreshold} of them are failures, the circuit opens and requests are rejected.
+ * After {@code openDurationMillis} the circuit is half-open: up to {@code halfOpenRequests}
+ * requests are let through at once, and the circuit closes once that many succeeded or opens
+ * again as soon as one fails. The outcome of an asynchronous request is known once its future is
+ * seen to be done, and a cancelled request gives up its permit without an outcome.
+ */
+public final class CircuitBreaker {
+
+  private static final Logger log = Logger.getLogger(CircuitBreaker.class.getName());
+
+  /**
+   * The state of the circuit of a bucket.
+   */
+  public enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  private final double failureRateThreshold;
+  private final int minimumRequests;
+  private final int windowSize;
+  private final long openDurationNanos;
+  private final int halfOpenRequests;
+  private final Ticker ticker;
+  private final ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<>();
+  private final AtomicLong openedCount = new AtomicLong();
+  private final AtomicLong rejectedCount = new AtomicLong();
+
+  /**
+   * CircuitBreaker builder.
+   */
+  public static final class Builder {
+
+    private double failureRateThreshold = 0.5;
+    private int minimumRequests = 20;
+    private int windowSize = 100;
+    private long openDurationMillis = 30000;
+    private int halfOpenRequests = 3;
+    private Ticker ticker = Ticker.systemTicker();
+
+    /**
+     * @param failureRateThreshold the fraction of failed requests, between 0 exclusive and 1
+     *     inclusive, that opens the circuit
+     */
+    public Builder failureRateThreshold(double failureRateThreshold) {
+      checkArgument(failureRateThreshold > 0 && failureRateThreshold <= 1,
+          "failureRateThreshold must be in (0, 1]");
+      this.failureRateThreshold = failureRateThreshold;
+      return this;
+    }
+
+    /**
+     * @param minimumRequests how many outcomes must be known before the circuit may open
+     */
+    public Builder minimumRequests(int minimumRequests) {
+      checkArgument(minimumRequests > 0, "minimumRequests must be positive");
+      this.minimumRequests = minimumRequests;
+      return this;
+    }
+
+    /**
+     * @param windowSize the number of recent outcomes the failure rate is computed from
+     */
+    public Builder windowSize(int windowSize) {
+      checkArgument(windowSize > 0, "windowSize must be positive");
+      this.windowSize = windowSize;
+      return this;
+    }
+
+    /**
+     * @param openDurationMillis how long an open circuit rejects all requests
+     */
+    public Builder openDurationMillis(long openDurationMillis) {
+      checkArgument(openDurationMillis >= 0, "openDurationMillis must not be negative");
+      this.openDurationMillis = openDurationMillis;
+      return this;
+    }
+
+    /**
+     * @param halfOpenRequests how many requests a half-open circuit lets through, and how many
+     *     of them must succeed to close it
+     */
+    public Builder halfOpenRequests(int halfOpenRequests) {
+      checkArgument(halfOpenRequests > 0, "halfOpenRequests must be positive");
+      this.halfOpenRequests = halfOpenRequests;
+      return this;
+    }
+
+    @VisibleForTesting
+    Builder ticker(Ticker ticker) {
+      this.ticker = checkNotNull(ticker);
+      return this;
+    }
+
+    public CircuitBreaker build() {
+      checkArgument(minimumRequests <= windowSize, "minimumRequests must not exceed windowSize");
+      return new CircuitBreaker(this);
+    }
+  }
+
+  private CircuitBreaker(Builder builder) {
+    failureRateThreshold = builder.failureRateThreshold;
+    minimumRequests = builder.minimumRequests;
+    windowSize = builder.windowSize;
+    openDurationNanos = TimeUnit.MILLISECONDS.toNanos(builder.openDurationMillis);
+    halfOpenRequests = builder.halfOpenRequests;
+    ticker = builder.ticker;
+  }
+
+  /**
+   * Permission to send a request, to be passed to {@link #record} with its outcome.
+   */
+  static final class Permit {
+    private final Circuit circuit;
+    private final int generation;
+    private final boolean probe;
+
+    private Permit(Circuit circuit, int generation, boolean probe) {
+      this.circuit = circuit;
+      this.generation = generation;
+      this.probe = probe;
+    }
+  }
+
+  /**
+   * The circuit of a bucket. Outcomes of requests let through before the last change of state
+   * are ignored.
+   */
+  private final class Circuit {
+    private final String bucketName;
+    private final boolean[] failures = new boolean[windowSize];
+    private State state = State.CLOSED;
+    private int generation;
+    private int outcomeCount;
+    private int failureCount;
+    private long changedAtNanos;
+    private int probesInFlight;
+    private int probeSuccesses;
+
+    Circuit(String bucketName) {
+      this.bucketName = bucketName;
+    }
+
+    synchronized Permit tryAcquire() {
+      long now = ticker.read();
+      if (state == State.OPEN) {
+        if (now - changedAtNanos < openDurationNanos) {
+          return null;
+        }
+        changeState(State.HALF_OPEN, now);
+      } else if (state == State.HALF_OPEN && probesInFlight >= halfOpenRequests
+          && now - changedAtNanos >= openDurationNanos) {
+        changeState(State.HALF_OPEN, now);
+      }
+      if (state == State.HALF_OPEN) {
+        if (probesInFlight >= halfOpenRequests) {
+          return null;
+        }
+        probesInFlight++;
+        return new Permit(this, generation, true);
+      }
+      return new Permit(this, generation, false);
+    }
+
+    synchronized void record(Permit permit, boolean failed) {
+      if (permit.generation != generation) {
+        return;
+      }
+      if (permit.probe) {
+        probesInFlight--;
+        if (failed) {
+          open();
+        } else if (++probeSuccesses >= halfOpenRequests) {
+          changeState(State.CLOSED, ticker.read());
+          log.info(this + ": closed");
+        }
+        return;
+      }
+      int index = outcomeCount++ % windowSize;
+      if (outcomeCount > windowSize && failures[index]) {
+        failureCount--;
+      }
+      failures[index] = failed;
+      if (failed) {
+        failureCount++;
+      }
+      if (outcomeCount == 2 * windowSize) {
+        outcomeCount = windowSize;
+      }
+      int known = Math.min(outcomeCount, windowSize);
+      if (known >= minimumRequests && failureCount >= failureRateThreshold * known) {
+        open();
+      }
+    }
+
+    synchronized void release(Permit permit) {
+      if (permit.generation == generation && permit.probe) {
+        probesInFlight--;
+      }
+    }
+
+    private void open() {
+      changeState(State.OPEN, ticker.read());
+      openedCount.incrementAndGet();
+      log.warning(this + ": opened");
+    }
+
+    private void changeState(State newState, long now) {
+      state = newState;
+      generation++;
+      changedAtNanos = now;
+      outcomeCount = 0;
+      failureCount = 0;
+      probesInFlight = 0;
+      probeSuccesses = 0;
+    }
+
+    synchronized State getState() {
+      return state;
+    }
+
+    @Override
+    public String toString() {
+      return "CircuitBreaker circuit of bucket " + bucketName;
+    }
+  }
+
+  private Circuit getCircuit(String bucketName) {
+    Circuit circuit = circuits.get(bucketName);
+    if (circuit == null) {
+      Circuit newCircuit = new Circuit(bucketName);
+      circuit = circuits.putIfAbsent(bucketName, newCircuit);
+      if (circuit == null) {
+        circuit = newCircuit;
+      }
+    }
+    return circuit;
+  }
+
+  /**
+   * Returns permission to send a request to {@code bucketName}, or throws if the circuit of the
+   * bucket rejects it.
+   */
+  Permit acquire(String bucketName) throws CircuitBreakerOpenException {
+    Permit permit = getCircuit(bucketName).tryAcquire();
+    if (permit == null) {
+      rejectedCount.incrementAndGet();
+      throw new CircuitBreakerOpenException(bucketName,
+          "Too many recent requests to bucket " + bucketName + " failed, not sending more");
+    }
+    return permit;
+  }
+
+  /**
+   * Records the outcome of a request, {@code failure} being null if it succeeded.
+   */
+  void record(Permit permit, Throwable failure) {
+    permit.circuit.record(permit, isFailure(failure));
+  }
+
+  /**
+   * Gives up a permit without sending its request.
+   */
+  void release(Permit permit) {
+    permit.circuit.release(permit);
+  }
+
+  private static boolean isFailure(Throwable failure) {
+    return failure instanceof Exception
+        && GcsServiceImpl.exceptionHandler.shouldRetry((Exception) failure);
+  }
+
+  /**
+   * Returns the state of the circuit of {@code bucketName}. An open circuit is only reported as
+   * half-open once a request was let through.
+   */
+  public State getState(String bucketName) {
+    Circuit circuit = circuits.get(bucketName);
+    return circuit == null ? State.CLOSED : circuit.getState();
+  }
+
+  /**
+   * Returns the number of times a circuit opened.
+   */
+  public long getOpenedCount() {
+    return openedCount.get();
+  }
+
+  /**
+   * Returns the number of requests rejected without being sent.
+   */
+  public long getRejectedCount() {
+    return rejectedCount.get();
+  }
+
+  @Override
+  public String toString() {
+    return "CircuitBreaker [failureRateThreshold=" + failureRateThreshold + ", minimumRequests="
+        + minimumRequests + ", windowSize=" + windowSize + ", openDurationMillis="
+        + TimeUnit.NANOSECONDS.toMillis(openDurationNanos) + ", halfOpenRequests="
+        + halfOpenRequests + ", openedCount=" + openedCount + ", rejectedCount=" + rejectedCount
+        + "]";
+  }
+}
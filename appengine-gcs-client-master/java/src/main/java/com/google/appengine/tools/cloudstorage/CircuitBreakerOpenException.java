@@ -0,0 +1,38 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.cloudstorage;
+
+import java.io.IOException;
+
+/**
+ * Thrown from RawGcsService, without making a request, when the {@link CircuitBreaker} of the
+ * bucket is open because too many recent requests to it failed. It is not retried.
+ */
+public final class CircuitBreakerOpenException extends IOException {
+  private static final long serialVersionUID = 4305128630946523671L;
+
+  private final String bucketName;
+
+  public CircuitBreakerOpenException(String bucketName, String message) {
+    super(message);
+    this.bucketName = bucketName;
+  }
+
+  public String getBucketName() {
+    return bucketName;
+  }
+}
@@ -0,0 +1,427 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.cloudstorage;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.appengine.tools.cloudstorage.CircuitBreaker.Permit;
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.ForwardingFuture.SimpleForwardingFuture;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A {@link RawGcsService} that asks a {@link CircuitBreaker} before every request and reports its
+ * outcome. A rejected request fails with a {@link CircuitBreakerOpenException}, thrown or from the
+ * returned future as the request would have failed.
+ *
+ * Requests are attributed to the bucket of the object they create, read or modify, which for
+ * copies is the destination. A batch of requests is rejected as a whole if the circuit of any of
+ * its buckets rejects it.
+ */
+final class CircuitBreakingRawGcsService implements RawGcsService {
+
+  private final RawGcsService raw;
+  private final CircuitBreaker breaker;
+
+  CircuitBreakingRawGcsService(RawGcsService raw, CircuitBreaker breaker) {
+    this.raw = checkNotNull(raw, "Null raw");
+    this.breaker = checkNotNull(breaker, "Null breaker");
+  }
+
+  /**
+   * A future that reports the outcome of its request once, when it is first seen to be done: when
+   * its outcome is retrieved, when {@link #isDone} returns true, when it is cancelled, or as soon
+   * as it completes if its delegate is a {@link ListenableFuture}. A cancelled request gives up
+   * its permit without an outcome, as it says nothing about the bucket.
+   */
+  private static final class OutcomeFuture<V> extends SimpleForwardingFuture<V> {
+    private final CircuitBreaker breaker;
+    private final Permit permit;
+    private final AtomicBoolean recorded = new AtomicBoolean();
+
+    OutcomeFuture(Future<V> delegate, CircuitBreaker breaker, Permit permit) {
+      super(delegate);
+      this.breaker = breaker;
+      this.permit = permit;
+      if (delegate instanceof ListenableFuture) {
+        ((ListenableFuture<V>) delegate).addListener(new Runnable() {
+          @Override
+          public void run() {
+            checkDone();
+          }
+        }, MoreExecutors.directExecutor());
+      }
+    }
+
+    /**
+     * Reports the outcome if the delegate is done and it was not reported yet.
+     */
+    private void checkDone() {
+      if (!delegate().isDone() || !recorded.compareAndSet(false, true)) {
+        return;
+      }
+      try {
+        Uninterruptibles.getUninterruptibly(delegate());
+        breaker.record(permit, null);
+      } catch (ExecutionException e) {
+        breaker.record(permit, e.getCause());
+      } catch (CancellationException e) {
+        breaker.release(permit);
+      }
+    }
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+      try {
+        return super.get();
+      } finally {
+        checkDone();
+      }
+    }
+
+    @Override
+    public V get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      try {
+        return super.get(timeout, unit);
+      } finally {
+        checkDone();
+      }
+    }
+
+    @Override
+    public boolean isDone() {
+      try {
+        return super.isDone();
+      } finally {
+        checkDone();
+      }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      try {
+        return super.cancel(mayInterruptIfRunning);
+      } finally {
+        checkDone();
+      }
+    }
+  }
+
+  private <V> Future<V> async(String bucketName, Supplier<Future<V>> request) {
+    Permit permit;
+    try {
+      permit = breaker.acquire(bucketName);
+    } catch (CircuitBreakerOpenException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+    try {
+      return new OutcomeFuture<>(request.get(), breaker, permit);
+    } catch (RuntimeException e) {
+      breaker.record(permit, e);
+      throw e;
+    }
+  }
+
+  private <V> List<Future<V>> batch(Iterable<GcsFilename> filenames, BatchRequest<V> request)
+      throws IOException {
+    List<Permit> permits = new ArrayList<>();
+    try {
+      for (GcsFilename filename : filenames) {
+        permits.add(breaker.acquire(filename.getBucketName()));
+      }
+    } catch (CircuitBreakerOpenException e) {
+      for (Permit permit : permits) {
+        breaker.release(permit);
+      }
+      throw e;
+    }
+    List<Future<V>> futures;
+    try {
+      futures = request.send();
+    } catch (IOException | RuntimeException e) {
+      for (Permit permit : permits) {
+        breaker.record(permit, e);
+      }
+      throw e;
+    }
+    List<Future<V>> results = new ArrayList<>(futures.size());
+    for (int i = 0; i < futures.size(); i++) {
+      results.add(new OutcomeFuture<>(futures.get(i), breaker, permits.get(i)));
+    }
+    return results;
+  }
+
+  /**
+   * A batch of requests returning a future for each object.
+   */
+  private interface BatchRequest<V> {
+    List<Future<V>> send() throws IOException;
+  }
+
+  @Override
+  public int getChunkSizeBytes() {
+    return raw.getChunkSizeBytes();
+  }
+
+  @Override
+  public int getMaxWriteSizeByte() {
+    return raw.getMaxWriteSizeByte();
+  }
+
+  @Override
+  public int getMaxReadSizeBytes() {
+    return raw.getMaxReadSizeBytes();
+  }
+
+  @Override
+  public RawGcsCreationToken beginObjectCreation(GcsFilename filename, GcsFileOptions options,
+      long timeoutMillis) throws IOException {
+    Permit permit = breaker.acquire(filename.getBucketName());
+    try {
+      RawGcsCreationToken token = raw.beginObjectCreation(filename, options, timeoutMillis);
+      breaker.record(permit, null);
+      return token;
+    } catch (IOException | RuntimeException e) {
+      breaker.record(permit, e);
+      throw e;
+    }
+  }
+
+  @Override
+  public Future<RawGcsCreationToken> continueObjectCreationAsync(
+      final RawGcsCreationToken token, final ByteBuffer chunk, final long timeoutMillis) {
+    return async(token.getFilename().getBucketName(), new Supplier<Future<RawGcsCreationToken>>() {
+      @Override
+      public Future<RawGcsCreationToken> get() {
+        return raw.continueObjectCreationAsync(token, chunk, timeoutMillis);
+      }
+    });
+  }
+
+  @Override
+  public void finishObjectCreation(RawGcsCreationToken token, ByteBuffer chunk,
+      long timeoutMillis) throws IOException {
+    Permit permit = breaker.acquire(token.getFilename().getBucketName());
+    try {
+      raw.finishObjectCreation(token, chunk, timeoutMillis);
+      breaker.record(permit, null);
+    } catch (IOException | RuntimeException e) {
+      breaker.record(permit, e);
+      throw e;
+    }
+  }
+
+  @Override
+  public void putObject(GcsFilename filename, GcsFileOptions options, ByteBuffer content,
+      long timeoutMillis) throws IOException {
+    Permit permit = breaker.acquire(filename.getBucketName());
+    try {
+      raw.putObject(filename, options, content, timeoutMillis);
+      breaker.record(permit, null);
+    } catch (IOException | RuntimeException e) {
+      breaker.record(permit, e);
+      throw e;
+    }
+  }
+
+  @Override
+  public Future<GcsFileMetadata> readObjectAsync(final ByteBuffer dst,
+      final GcsFilename filename, final long offset, final long timeoutMillis) {
+    return async(filename.getBucketName(), new Supplier<Future<GcsFileMetadata>>() {
+      @Override
+      public Future<GcsFileMetadata> get() {
+        return raw.readObjectAsync(dst, filename, offset, timeoutMillis);
+      }
+    });
+  }
+
+  @Override
+  public Future<GcsFileMetadata> readObjectAsync(final ByteBuffer dst,
+      final GcsFilename filename, final long offset, final String ifMatch,
+      final String ifNoneMatch, final long timeoutMillis) {
+    return async(filename.getBucketName(), new Supplier<Future<GcsFileMetadata>>() {
+      @Override
+      public Future<GcsFileMetadata> get() {
+        return raw.readObjectAsync(dst, filename, offset, ifMatch, ifNoneMatch, timeoutMillis);
+      }
+    });
+  }
+
+  @Override
+  public GcsFileMetadata getObjectMetadata(GcsFilename filename, long timeoutMillis)
+      throws IOException {
+    Permit permit = breaker.acquire(filename.getBucketName());
+    try {
+      GcsFileMetadata metadata = raw.getObjectMetadata(filename, timeoutMillis);
+      breaker.record(permit, null);
+      return metadata;
+    } catch (IOException | RuntimeException e) {
+      breaker.record(permit, e);
+      throw e;
+    }
+  }
+
+  @Override
+  public Future<GcsFileMetadata> getObjectMetadataAsync(final GcsFilename filename,
+      final long timeoutMillis) {
+    return async(filename.getBucketName(), new Supplier<Future<GcsFileMetadata>>() {
+      @Override
+      public Future<GcsFileMetadata> get() {
+        return raw.getObjectMetadataAsync(filename, timeoutMillis);
+      }
+    });
+  }
+
+  @Override
+  public List<Future<GcsFileMetadata>> getObjectMetadata(final Iterable<GcsFilename> filenames,
+      final int maxConcurrentRequests, final long timeoutMillis) throws IOException {
+    return batch(filenames, new BatchRequest<GcsFileMetadata>() {
+      @Override
+      public List<Future<GcsFileMetadata>> send() throws IOException {
+        return raw.getObjectMetadata(filenames, maxConcurrentRequests, timeoutMillis);
+      }
+    });
+  }
+
+  @Override
+  public boolean deleteObject(GcsFilename filename, long timeoutMillis) throws IOException {
+    Permit permit = breaker.acquire(filename.getBucketName());
+    try {
+      boolean deleted = raw.deleteObject(filename, timeoutMillis);
+      breaker.record(permit, null);
+      return deleted;
+    } catch (IOException | RuntimeException e) {
+      breaker.record(permit, e);
+      throw e;
+    }
+  }
+
+  @Override
+  public Future<Boolean> deleteObjectAsync(final GcsFilename filename, final long timeoutMillis) {
+    return async(filename.getBucketName(), new Supplier<Future<Boolean>>() {
+      @Override
+      public Future<Boolean> get() {
+        return raw.deleteObjectAsync(filename, timeoutMillis);
+      }
+    });
+  }
+
+  @Override
+  public List<Future<Boolean>> deleteObjects(final Iterable<GcsFilename> filenames,
+      final int maxConcurrentRequests, final long timeoutMillis) throws IOException {
+    return batch(filenames, new BatchRequest<Boolean>() {
+      @Override
+      public List<Future<Boolean>> send() throws IOException {
+        return raw.deleteObjects(filenames, maxConcurrentRequests, timeoutMillis);
+      }
+    });
+  }
+
+  @Override
+  public void composeObject(Iterable<String> source, GcsFilename dest, long timeoutMillis)
+      throws IOException {
+    Permit permit = breaker.acquire(dest.getBucketName());
+    try {
+      raw.composeObject(source, dest, timeoutMillis);
+      breaker.record(permit, null);
+    } catch (IOException | RuntimeException e) {
+      breaker.record(permit, e);
+      throw e;
+    }
+  }
+
+  @Override
+  public Future<Void> composeObjectAsync(final Iterable<String> source, final GcsFilename dest,
+      final long timeoutMillis) {
+    return async(dest.getBucketName(), new Supplier<Future<Void>>() {
+      @Override
+      public Future<Void> get() {
+        return raw.composeObjectAsync(source, dest, timeoutMillis);
+      }
+    });
+  }
+
+  @Override
+  public void copyObject(GcsFilename source, GcsFilename dest, GcsFileOptions fileOptions,
+      long timeoutMillis) throws IOException {
+    Permit permit = breaker.acquire(dest.getBucketName());
+    try {
+      raw.copyObject(source, dest, fileOptions, timeoutMillis);
+      breaker.record(permit, null);
+    } catch (IOException | RuntimeException e) {
+      breaker.record(permit, e);
+      throw e;
+    }
+  }
+
+  @Override
+  public Future<Void> copyObjectAsync(final GcsFilename source, final GcsFilename dest,
+      final GcsFileOptions fileOptions, final long timeoutMillis) {
+    return async(dest.getBucketName(), new Supplier<Future<Void>>() {
+      @Override
+      public Future<Void> get() {
+        return raw.copyObjectAsync(source, dest, fileOptions, timeoutMillis);
+      }
+    });
+  }
+
+  @Override
+  public ListItemBatch list(String bucket, String prefix, String delimiter, String marker,
+      int maxResults, long timeoutMillis) throws IOException {
+    Permit permit = breaker.acquire(bucket);
+    try {
+      ListItemBatch batch = raw.list(bucket, prefix, delimiter, marker, maxResults, timeoutMillis);
+      breaker.record(permit, null);
+      return batch;
+    } catch (IOException | RuntimeException e) {
+      breaker.record(permit, e);
+      throw e;
+    }
+  }
+
+  @Override
+  public Future<ListItemBatch> listAsync(final String bucket, final String prefix,
+      final String delimiter, final String marker, final int maxResults,
+      final long timeoutMillis) {
+    return async(bucket, new Supplier<Future<ListItemBatch>>() {
+      @Override
+      public Future<ListItemBatch> get() {
+        return raw.listAsync(bucket, prefix, delimiter, marker, maxResults, timeoutMillis);
+      }
+    });
+  }
+
+  @Override
+  public String toString() {
+    return "CircuitBreakingRawGcsService [raw=" + raw + ", breaker=" + breaker + "]";
+  }
+}
@@ -25,12 +25,20 @@ import com.google.common.collect.Sets;
 
 import java.io.Serializable;
 import java.lang.reflect.Method;
+import java.util.Collections;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Exception handling used by {@link RetryHelper}.
  *
+ * The decision for each exception class, and the verification of each {@link Callable} class, is
+ * only worked out the first time it is needed and then remembered, so that retrying an operation
+ * does not walk the class hierarchy or use reflection every time. The decisions for the classes
+ * given to the {@link Builder} are worked out when the handler is built.
+ *
  * For internal use only. User code cannot safely depend on this class.
  *
  */
@@ -44,6 +52,10 @@ public final class ExceptionHandler implements Serializable {
   private final ImmutableSet<Class<? extends Exception>> retriableExceptions;
   private final ImmutableSet<Class<? extends Exception>> nonRetriableExceptions;
   private final Set<RetryInfo> retryInfos = Sets.newHashSet();
+  private final transient ConcurrentMap<Class<? extends Exception>, Boolean> retryDecisions =
+      new ConcurrentHashMap<>();
+  private final transient Set<Class<?>> verifiedCallers =
+      Collections.newSetFromMap(new ConcurrentHashMap<Class<?>, Boolean>());
 
   /**
    * ExceptionHandler builder.
@@ -129,6 +141,24 @@ public final class ExceptionHandler implements Serializable {
     for (Class<? extends Exception> exception : nonRetriableExceptions) {
       addToRetryInfos(retryInfos,  new RetryInfo(exception, false));
     }
+    for (Class<? extends Exception> exception
+        : Sets.union(retriableExceptions, nonRetriableExceptions)) {
+      shouldRetry(exception);
+    }
+  }
+
+  /**
+   * Rebuilds the handler on deserialization, as the remembered decisions are not serialized.
+   */
+  private Object readResolve() {
+    Builder builder = new Builder();
+    for (Class<? extends Exception> exception : retriableExceptions) {
+      builder.retryOn(exception);
+    }
+    for (Class<? extends Exception> exception : nonRetriableExceptions) {
+      builder.abortOn(exception);
+    }
+    return builder.build();
   }
 
   private static void addToRetryInfos(Set<RetryInfo> retryInfos, RetryInfo retryInfo) {
@@ -168,6 +198,9 @@ public final class ExceptionHandler implements Serializable {
   }
 
   void verifyCaller(Callable<?> callable) {
+    if (verifiedCallers.contains(callable.getClass())) {
+      return;
+    }
     Method callMethod = getCallableMethod(callable.getClass());
     for (Class<?> exceptionOrError : callMethod.getExceptionTypes()) {
       Preconditions.checkArgument(Exception.class.isAssignableFrom(exceptionOrError),
@@ -177,6 +210,7 @@ public final class ExceptionHandler implements Serializable {
       Preconditions.checkArgument(findMostSpecificRetryInfo(retryInfos, exception) != null,
           "Declared exception '" + exception + "' is not covered by exception handler");
     }
+    verifiedCallers.add(callable.getClass());
   }
 
   public ImmutableSet<Class<? extends Exception>> getRetriableExceptions() {
@@ -188,8 +222,17 @@ public final class ExceptionHandler implements Serializable {
   }
 
   boolean shouldRetry(Exception ex) {
-    RetryInfo retryInfo = findMostSpecificRetryInfo(retryInfos, ex.getClass());
-    return retryInfo == null ? false : retryInfo.retry;
+    return shouldRetry(ex.getClass());
+  }
+
+  private boolean shouldRetry(Class<? extends Exception> exception) {
+    Boolean retry = retryDecisions.get(exception);
+    if (retry == null) {
+      RetryInfo retryInfo = findMostSpecificRetryInfo(retryInfos, exception);
+      retry = retryInfo == null ? false : retryInfo.retry;
+      retryDecisions.put(exception, retry);
+    }
+    return retry;
   }
 
   /**
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.cloudstorage;
+
+/**
+ * Receives a record of every request a {@link GcsService} makes to Google Cloud Storage (see
+ * {@link GcsServiceOptions.Builder#setMetrics(GcsMetrics)}). {@link InMemoryGcsMetrics} keeps
+ * aggregate counters and latency histograms; other implementations may export the records or
+ * attach them to traces.
+ *
+ * Implementations are called from any thread that makes or completes a request, and should
+ * return quickly and not throw.
+ */
+public interface GcsMetrics {
+
+  /**
+   * The kinds of requests that are recorded.
+   */
+  enum Operation {
+    BEGIN_OBJECT_CREATION,
+    CONTINUE_OBJECT_CREATION,
+    FINISH_OBJECT_CREATION,
+    PUT_OBJECT,
+    READ_OBJECT,
+    GET_OBJECT_METADATA,
+    DELETE_OBJECT,
+    COMPOSE_OBJECT,
+    COPY_OBJECT,
+    LIST
+  }
+
+  /**
+   * Records a completed or cancelled request. The latency of an asynchronous request whose future
+   * cannot notify a listener extends until it was first seen to be done.
+   *
+   * @param operation the kind of request
+   * @param filename the object the request was for, or null for a list request
+   * @param latencyNanos the time the request took
+   * @param bytesSent the number of bytes of object content sent
+   * @param bytesReceived the number of bytes of object content received
+   * @param retry whether the request was a retry of a failed one
+   * @param failure the exception the request failed with, a {@code CancellationException} if it
+   *     was cancelled, or null if it succeeded
+   */
+  void record(Operation operation, GcsFilename filename, long latencyNanos, long bytesSent,
+      long bytesReceived, boolean retry, Throwable failure);
+}
@@ -55,6 +55,8 @@ final class GcsOutputChannelImpl implements GcsOutputChannel {
   private static final long serialVersionUID = 3011935384698648440L;
   private static final Logger log = Logger.getLogger(GcsOutputChannelImpl.class.getName());
   private static final ByteBuffer EMPTY_BYTE_BUFFER = ByteBuffer.allocate(0);
+  /** The number of flushes in a row that did not wait after which an adaptive buffer shrinks. */
+  private static final int SHRINK_AFTER_FLUSHES = 4;
 
   /**
    * Represents a request that is currently in-flight. Contains all the information needed to retry
@@ -64,10 +66,13 @@ final class GcsOutputChannelImpl implements GcsOutputChannel {
     private final RawGcsCreationToken requestToken;
     /** buffer that is associated with the on outstanding request */
     private final ByteBuffer toWrite;
+    /** the buffer toWrite is a view of, released once the request completed */
+    private final ByteBuffer source;
     private Future<RawGcsCreationToken> nextToken;
 
-    OutstandingRequest(RawGcsCreationToken token, ByteBuffer toWrite) {
+    OutstandingRequest(RawGcsCreationToken token, ByteBuffer toWrite, ByteBuffer source) {
       this.toWrite = toWrite;
+      this.source = source;
       this.requestToken = token;
       this.nextToken = raw.continueObjectCreationAsync(
           token, toWrite.slice(), retryParams.getRequestTimeoutMillisForCurrentAttempt());
@@ -100,23 +105,42 @@ final class GcsOutputChannelImpl implements GcsOutputChannel {
   private transient Object lock = new Object();
   @VisibleForTesting transient ByteBuffer buf;
   private transient RawGcsService raw;
+  /** May be null, in which case buffers are allocated and left to the garbage collector. */
+  private transient ByteBufferPool bufferPool;
   private transient OutstandingRequest outstandingRequest;
   private RawGcsCreationToken token;
   private final GcsFilename filename;
   private final RetryParams retryParams;
   private final Integer requestedBufferSize;
   private final Map<String, String> headers;
+  private final boolean adaptiveBufferSize;
+  /** The current buffer size if it adapts, see {@link #adaptBufferSize}. */
+  private int adaptiveSize;
+  private transient int unwaitedFlushes;
 
 
   GcsOutputChannelImpl(RawGcsService raw, RawGcsCreationToken nextToken, RetryParams retryParams,
-      Integer requestedBufferSize, Map<String, String> headers) {
+      Integer requestedBufferSize, Map<String, String> headers, ByteBufferPool bufferPool) {
+    this(raw, nextToken, retryParams, requestedBufferSize, headers, bufferPool, false);
+  }
+
+  /**
+   * @param adaptiveBufferSize whether the buffer size adapts to the speed of the writer and of
+   *        the uploads, in which case {@code requestedBufferSize} is its upper bound
+   */
+  GcsOutputChannelImpl(RawGcsService raw, RawGcsCreationToken nextToken, RetryParams retryParams,
+      Integer requestedBufferSize, Map<String, String> headers, ByteBufferPool bufferPool,
+      boolean adaptiveBufferSize) {
     this.retryParams = retryParams;
     this.raw = checkNotNull(raw, "Null raw");
+    this.bufferPool = bufferPool;
     this.token = checkNotNull(nextToken, "Null token");
     this.filename = nextToken.getFilename();
     this.buf = EMPTY_BYTE_BUFFER;
     this.requestedBufferSize = requestedBufferSize;
     this.headers = headers;
+    this.adaptiveBufferSize = adaptiveBufferSize;
+    this.adaptiveSize = raw.getChunkSizeBytes();
   }
 
   private void readObject(ObjectInputStream aInputStream)
@@ -161,10 +185,36 @@ final class GcsOutputChannelImpl implements GcsOutputChannel {
 
   @Override
   public int getBufferSizeBytes() {
+    return adaptiveBufferSize ? adaptiveSize : getBufferSizeBytes(raw, requestedBufferSize);
+  }
+
+  private int getMaxAdaptiveBufferSize() {
+    return findBufferSize(raw,
+        requestedBufferSize != null ? requestedBufferSize : raw.getMaxWriteSizeByte());
+  }
+
+  /**
+   * Doubles an adaptive buffer if the writer had to wait for the previous request, meaning that
+   * the request took longer than filling the buffer did and that fewer, larger requests may
+   * upload faster. Halves it after several flushes in a row that did not wait, meaning that the
+   * uploads keep up with the writer and a smaller buffer does not slow it down.
+   */
+  private void adaptBufferSize(boolean waited) {
+    if (waited) {
+      unwaitedFlushes = 0;
+      adaptiveSize = min(findBufferSize(raw, (int) min(adaptiveSize * 2L, Integer.MAX_VALUE)),
+          getMaxAdaptiveBufferSize());
+    } else if (++unwaitedFlushes >= SHRINK_AFTER_FLUSHES) {
+      unwaitedFlushes = 0;
+      adaptiveSize = findBufferSize(raw, adaptiveSize / 2);
+    }
+  }
+
+  static int getBufferSizeBytes(RawGcsService raw, Integer requestedBufferSize) {
     if (requestedBufferSize == null) {
-      return findBufferSize(raw.getChunkSizeBytes() * 8);
+      return findBufferSize(raw, raw.getChunkSizeBytes() * 8);
     } else {
-      return findBufferSize(requestedBufferSize);
+      return findBufferSize(raw, requestedBufferSize);
     }
   }
 
@@ -210,6 +260,7 @@ final class GcsOutputChannelImpl implements GcsOutputChannel {
         throw e;
       }
       token = null;
+      releaseBuffer(buf);
       buf = null;
     }
   }
@@ -233,6 +284,7 @@ final class GcsOutputChannelImpl implements GcsOutputChannel {
             outstandingRequest.retry();
           }
           token = outstandingRequest.waitForNextToken();
+          releaseBuffer(outstandingRequest.source);
           outstandingRequest = null;
           return null;
         }
@@ -277,13 +329,19 @@ final class GcsOutputChannelImpl implements GcsOutputChannel {
       buf.flip();
       ByteBuffer toWrite = buf.slice();
       toWrite.limit(bytesToWrite);
-      waitForOutstandingRequest();
-      outstandingRequest = new OutstandingRequest(token, toWrite);
+      if (adaptiveBufferSize && outstandingRequest != null) {
+        boolean waited = !outstandingRequest.nextToken.isDone();
+        waitForOutstandingRequest();
+        adaptBufferSize(waited);
+      } else {
+        waitForOutstandingRequest();
+      }
+      outstandingRequest = new OutstandingRequest(token, toWrite, buf);
       if (position > bytesToWrite || nextBytesToAdd > 0) {
         buf.position(bytesToWrite);
         buf.limit(position);
         int newBufferSize = getNewBufferSize(position - bytesToWrite + nextBytesToAdd);
-        ByteBuffer newBuf = ByteBuffer.allocate(newBufferSize);
+        ByteBuffer newBuf = allocateBuffer(newBufferSize);
         newBuf.put(buf);
         buf = newBuf;
       } else {
@@ -298,18 +356,29 @@ final class GcsOutputChannelImpl implements GcsOutputChannel {
     }
     int newBufferSize = getNewBufferSize(buf.position() + nextBytesToAdd);
     if (newBufferSize > buf.capacity()) {
-      ByteBuffer newBuf = ByteBuffer.allocate(newBufferSize);
+      ByteBuffer newBuf = allocateBuffer(newBufferSize);
       buf.flip();
       newBuf.put(buf);
+      releaseBuffer(buf);
       buf = newBuf;
     }
   }
 
+  private ByteBuffer allocateBuffer(int size) {
+    return bufferPool == null ? ByteBuffer.allocate(size) : bufferPool.acquire(size);
+  }
+
+  private void releaseBuffer(ByteBuffer buffer) {
+    if (bufferPool != null && buffer != EMPTY_BYTE_BUFFER) {
+      bufferPool.release(buffer);
+    }
+  }
+
   private int getNewBufferSize(int requestedSize) {
-    return max(getBufferSizeBytes(), findBufferSize(requestedSize));
+    return max(getBufferSizeBytes(), findBufferSize(raw, requestedSize));
   }
 
-  private int findBufferSize(int requestedSize) {
+  private static int findBufferSize(RawGcsService raw, int requestedSize) {
     int chunkSize = raw.getChunkSizeBytes();
     int bufferSize = max(chunkSize, min(requestedSize, raw.getMaxWriteSizeByte()));
     int chunks = bufferSize / chunkSize;
@@ -16,8 +16,11 @@
 
 package com.google.appengine.tools.cloudstorage;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
 
 /**
  * Allows creating and accessing files in Google Cloud Storage.
@@ -51,6 +54,18 @@ public interface GcsService {
   void createOrReplace(GcsFilename filename, GcsFileOptions options, ByteBuffer src)
       throws IOException;
 
+  /**
+   * Creates a new object with the content of {@code src}, from position 0 to its size. Parts of
+   * the file are uploaded to temporary objects concurrently, up to {@code maxConcurrentRequests} at
+   * a time, and then composed into the new object, in several rounds if there are more parts than
+   * a single compose request accepts. The temporary objects are deleted afterwards. The position
+   * of {@code src} is not modified.
+   *
+   * @throws IOException if the file could not be read or the object could not be created
+   */
+  void createOrReplace(GcsFilename filename, GcsFileOptions options, FileChannel src,
+      int maxConcurrentRequests) throws IOException;
+
 
   /**
    * Note that the implementation may check if the file exists during the call to
@@ -71,6 +86,46 @@ public interface GcsService {
   GcsInputChannel openPrefetchingReadChannel(
       GcsFilename filename, long startPosition, int blockSizeBytes);
 
+  /**
+   * Same as {@link #openPrefetchingReadChannel(GcsFilename, long, int)}, but keeps up to
+   * {@code readAheadBlocks} blocks requested concurrently. Blocks are still returned in order, so a
+   * sequential reader of a large file is bound by the available bandwidth rather than by the
+   * latency of each individual request, at the cost of buffering up to
+   * {@code blockSizeBytes * readAheadBlocks} bytes in memory.
+   */
+  GcsInputChannel openPrefetchingReadChannel(
+      GcsFilename filename, long startPosition, int blockSizeBytes, int readAheadBlocks);
+
+  /**
+   * Reads the object starting at {@code startPosition} into {@code dst} until either {@code dst}
+   * is full or the end of the object is reached. The region is split into ranges which are
+   * requested concurrently, up to {@code maxConcurrentRequests} at a time, and written directly to
+   * their place in {@code dst}. The position of {@code dst} is advanced by the number of bytes read.
+   *
+   * If an exception is thrown the content of {@code dst} is undefined.
+   *
+   * @return the number of bytes read, or -1 if {@code startPosition} is at or past the end of the
+   *     object
+   * @throws FileNotFoundException if the object does not exist
+   * @throws IOException if the object could not be read or was modified while being read
+   */
+  int readFully(GcsFilename filename, long startPosition, ByteBuffer dst,
+      int maxConcurrentRequests) throws IOException;
+
+  /**
+   * Downloads the whole object into {@code dst}, writing the byte at offset {@code i} of the object
+   * to position {@code position + i} of the file. Ranges of the object are requested concurrently,
+   * up to {@code maxConcurrentRequests} at a time, and are written to the file as they complete.
+   * The position of {@code dst} is not modified.
+   *
+   * @return the length of the object
+   * @throws FileNotFoundException if the object does not exist
+   * @throws IOException if the object could not be read or written, or was modified while being
+   *     read
+   */
+  long readFully(GcsFilename filename, FileChannel dst, long position, int maxConcurrentRequests)
+      throws IOException;
+
   /**
    * @param filename The name of the file that you wish to read the metadata of.
    * @return The metadata associated with the file, or null if the file does not exist.
@@ -78,12 +133,37 @@ public interface GcsService {
    */
   GcsFileMetadata getMetadata(GcsFilename filename) throws IOException;
 
+  /**
+   * Retrieves the metadata of several files, with up to {@code maxConcurrentRequests} requests in
+   * flight at a time. Failed requests are retried as for {@link #getMetadata(GcsFilename)}, without
+   * repeating the requests that succeeded.
+   *
+   * @return the metadata of each file, or null for a file that does not exist, in the iteration
+   *     order of {@code filenames}.
+   * @throws IOException if the metadata of any of the files can't be read.
+   */
+  Map<GcsFilename, GcsFileMetadata> getMetadata(Iterable<GcsFilename> filenames,
+      int maxConcurrentRequests) throws IOException;
+
   /**
    * Deletes a file.
    * @return true if deleted, false if not found.
    */
   boolean delete(GcsFilename filename) throws IOException;
 
+  /**
+   * Deletes several files, with up to {@code maxConcurrentRequests} requests in flight at a time.
+   * Failed requests are retried as for {@link #delete(GcsFilename)}, without repeating the requests
+   * that succeeded.
+   *
+   * @return for each file, in the iteration order of {@code filenames}, true if deleted, false if
+   *     not found.
+   * @throws IOException if any of the files can't be deleted. The other files are deleted
+   *     nonetheless.
+   */
+  Map<GcsFilename, Boolean> deleteAll(Iterable<GcsFilename> filenames, int maxConcurrentRequests)
+      throws IOException;
+
   /**
    * Concatenates a list of existing files into a new file in the same bucket.
    * @param source the files to compose from
@@ -22,15 +22,17 @@ import com.google.appengine.api.utils.SystemProperty.Environment.Value;
 import com.google.appengine.tools.cloudstorage.dev.LocalRawGcsServiceFactory;
 import com.google.appengine.tools.cloudstorage.oauth.AccessTokenProvider;
 import com.google.appengine.tools.cloudstorage.oauth.OauthRawGcsServiceFactory;
+import com.google.appengine.tools.cloudstorage.oauth.RequestGovernor;
 import com.google.apphosting.api.ApiProxy;
 import com.google.apphosting.api.ApiProxy.Delegate;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableSet;
 
+import java.io.File;
 import java.util.Map;
 
 /**
- * Provides implementations of {@link GcsService}.
+ * Provides implementations of {@link GcsService} and {@link AsyncGcsService}.
  */
 public final class GcsServiceFactory {
 
@@ -41,11 +43,42 @@ public final class GcsServiceFactory {
   }
 
   public static GcsService createGcsService(GcsServiceOptions options) {
-    RawGcsService rawGcsService = createRawGcsService(options.getHttpHeaders());
-    return new GcsServiceImpl(rawGcsService, options);
+    return new GcsServiceImpl(createRawGcsService(options), options);
+  }
+
+  public static AsyncGcsService createAsyncGcsService(GcsServiceOptions options) {
+    return new AsyncGcsServiceImpl(createRawGcsService(options), options);
+  }
+
+  private static RawGcsService createRawGcsService(GcsServiceOptions options) {
+    RawGcsService rawGcsService =
+        createRawGcsService(options.getHttpHeaders(), options.getRequestGovernor());
+    if (options.getCircuitBreaker() != null) {
+      rawGcsService = new CircuitBreakingRawGcsService(rawGcsService, options.getCircuitBreaker());
+    }
+    if (options.getMetrics() != null) {
+      rawGcsService = new InstrumentedRawGcsService(rawGcsService, options.getMetrics());
+    }
+    if (options.getHedgingPolicy() != null) {
+      rawGcsService = new HedgingRawGcsService(rawGcsService, options.getHedgingPolicy());
+    }
+    if (options.getObjectCache() != null || options.getMetadataCache() != null) {
+      rawGcsService = new CachingRawGcsService(
+          rawGcsService, options.getObjectCache(), options.getMetadataCache());
+    }
+    return rawGcsService;
+  }
+
+  public static AsyncGcsService createAsyncGcsService() {
+    return createAsyncGcsService(GcsServiceOptions.DEFAULT);
   }
 
   static RawGcsService createRawGcsService(Map<String, String> headers) {
+    return createRawGcsService(headers, null);
+  }
+
+  private static RawGcsService createRawGcsService(Map<String, String> headers,
+      RequestGovernor governor) {
     ImmutableSet.Builder<HTTPHeader> builder = ImmutableSet.builder();
     if (headers != null) {
       for (Map.Entry<String, String> header : headers.entrySet()) {
@@ -55,8 +88,11 @@ public final class GcsServiceFactory {
 
     RawGcsService rawGcsService;
     Value location = SystemProperty.environment.value();
-    if (location == SystemProperty.Environment.Value.Production || hasCustomAccessTokenProvider()) {
-      rawGcsService = OauthRawGcsServiceFactory.createOauthRawGcsService(builder.build());
+    String localDirectory = System.getProperty(LocalRawGcsServiceFactory.DIRECTORY_PROPERTY);
+    if (!Strings.isNullOrEmpty(localDirectory)) {
+      rawGcsService = LocalRawGcsServiceFactory.createFileRawGcsService(new File(localDirectory));
+    } else if (location == SystemProperty.Environment.Value.Production || hasCustomAccessTokenProvider()) {
+      rawGcsService = OauthRawGcsServiceFactory.createOauthRawGcsService(builder.build(), governor);
     } else if (location == SystemProperty.Environment.Value.Development) {
       rawGcsService = LocalRawGcsServiceFactory.createLocalRawGcsService();
     } else {
@@ -65,7 +101,8 @@ public final class GcsServiceFactory {
           || delegate.getClass().getName().startsWith("com.google.appengine.tools.development")) {
         rawGcsService = LocalRawGcsServiceFactory.createLocalRawGcsService();
       } else {
-        rawGcsService = OauthRawGcsServiceFactory.createOauthRawGcsService(builder.build());
+        rawGcsService =
+            OauthRawGcsServiceFactory.createOauthRawGcsService(builder.build(), governor);
       }
     }
     return rawGcsService;
@@ -26,6 +26,8 @@ import com.google.apphosting.api.ApiProxy.RPCFailedException;
 import com.google.apphosting.api.ApiProxy.UnknownException;
 import com.google.common.base.Strings;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -34,8 +36,16 @@ import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * Basic implementation of {@link GcsService}. Mostly delegates to {@link RawGcsService}
@@ -44,13 +54,13 @@ final class GcsServiceImpl implements GcsService {
 
   private final RawGcsService raw;
   private final GcsServiceOptions options;
-  private static final int MAX_RESULTS_PER_BATCH = 100;
   static final ExceptionHandler exceptionHandler = new ExceptionHandler.Builder()
       .retryOn(UnknownException.class, RPCFailedException.class, ApiDeadlineExceededException.class,
           IOException.class, SocketTimeoutException.class, OverQuotaException.class)
       .abortOn(InterruptedException.class, FileNotFoundException.class,
           MalformedURLException.class, ClosedByInterruptException.class,
-          InterruptedIOException.class)
+          InterruptedIOException.class, PreconditionFailedException.class,
+          CircuitBreakerOpenException.class)
       .build();
 
   GcsServiceImpl(RawGcsService raw, GcsServiceOptions options) {
@@ -66,6 +76,12 @@ final class GcsServiceImpl implements GcsService {
   @Override
   public GcsOutputChannel createOrReplace(
       final GcsFilename filename, final GcsFileOptions fileOptions) throws IOException {
+    Integer maxParallelUploads = options.getMaxParallelUploads();
+    if (maxParallelUploads != null && maxParallelUploads > 1) {
+      return new ParallelGcsOutputChannelImpl(raw, filename, fileOptions, options.getRetryParams(),
+          options.getDefaultWriteBufferSize(), options.getHttpHeaders(), options.getBufferPool(),
+          maxParallelUploads);
+    }
     try {
       RawGcsCreationToken token = RetryHelper.runWithRetries(new Callable<RawGcsCreationToken>() {
         @Override
@@ -76,7 +92,7 @@ final class GcsServiceImpl implements GcsService {
       }, options.getRetryParams(), exceptionHandler);
       return new GcsOutputChannelImpl(
           raw, token, options.getRetryParams(), options.getDefaultWriteBufferSize(),
-          options.getHttpHeaders());
+          options.getHttpHeaders(), options.getBufferPool(), options.isAdaptiveWriteBufferSize());
     } catch (RetryInterruptedException ex) {
       throw new ClosedByInterruptException();
     } catch (NonRetriableException e) {
@@ -113,6 +129,13 @@ final class GcsServiceImpl implements GcsService {
     }
   }
 
+  @Override
+  public void createOrReplace(GcsFilename filename, GcsFileOptions fileOptions, FileChannel src,
+      int maxConcurrentRequests) throws IOException {
+    new ParallelFileUploader(raw, filename, fileOptions, options.getRetryParams(),
+        options.getBufferPool(), maxConcurrentRequests).upload(src);
+  }
+
   @Override
   public GcsInputChannel openReadChannel(GcsFilename filename, long startPosition) {
     return new SimpleGcsInputChannelImpl(raw, filename, startPosition, options.getRetryParams(),
@@ -122,8 +145,30 @@ final class GcsServiceImpl implements GcsService {
   @Override
   public GcsInputChannel openPrefetchingReadChannel(
       GcsFilename filename, long startPosition, int blockSize) {
-    return new PrefetchingGcsInputChannelImpl(raw, filename, blockSize, startPosition,
-        options.getRetryParams(), options.getHttpHeaders());
+    return new PrefetchingGcsInputChannelImpl(raw, filename, blockSize, 1, startPosition,
+        options.getRetryParams(), options.getHttpHeaders(), options.getBufferPool());
+  }
+
+  @Override
+  public GcsInputChannel openPrefetchingReadChannel(
+      GcsFilename filename, long startPosition, int blockSize, int readAheadBlocks) {
+    return new PrefetchingGcsInputChannelImpl(raw, filename, blockSize, readAheadBlocks,
+        startPosition, options.getRetryParams(), options.getHttpHeaders(),
+        options.getBufferPool());
+  }
+
+  @Override
+  public int readFully(GcsFilename filename, long startPosition, ByteBuffer dst,
+      int maxConcurrentRequests) throws IOException {
+    return new ParallelRangeReader(raw, filename, options.getRetryParams(),
+        options.getBufferPool(), maxConcurrentRequests).read(startPosition, dst);
+  }
+
+  @Override
+  public long readFully(GcsFilename filename, FileChannel dst, long position,
+      int maxConcurrentRequests) throws IOException {
+    return new ParallelRangeReader(raw, filename, options.getRetryParams(),
+        options.getBufferPool(), maxConcurrentRequests).read(dst, position);
   }
 
   @Override
@@ -162,6 +207,92 @@ final class GcsServiceImpl implements GcsService {
     }
   }
 
+  @Override
+  public Map<GcsFilename, GcsFileMetadata> getMetadata(Iterable<GcsFilename> filenames,
+      final int maxConcurrentRequests) throws IOException {
+    return runBatch(filenames, new BatchOperation<GcsFileMetadata>() {
+      @Override
+      public List<Future<GcsFileMetadata>> start(List<GcsFilename> batch, long timeout)
+          throws IOException {
+        return raw.getObjectMetadata(batch, maxConcurrentRequests, timeout);
+      }
+    });
+  }
+
+  @Override
+  public Map<GcsFilename, Boolean> deleteAll(Iterable<GcsFilename> filenames,
+      final int maxConcurrentRequests) throws IOException {
+    return runBatch(filenames, new BatchOperation<Boolean>() {
+      @Override
+      public List<Future<Boolean>> start(List<GcsFilename> batch, long timeout)
+          throws IOException {
+        return raw.deleteObjects(batch, maxConcurrentRequests, timeout);
+      }
+    });
+  }
+
+  /**
+   * An operation of {@link RawGcsService} that is applied to several files at once.
+   */
+  private interface BatchOperation<T> {
+    List<Future<T>> start(List<GcsFilename> batch, long timeout) throws IOException;
+  }
+
+  /**
+   * Applies {@code operation} to all of {@code filenames}. Each attempt only includes the files
+   * whose previous attempts failed, and is retried as a whole if any of them failed again.
+   */
+  private <T> Map<GcsFilename, T> runBatch(Iterable<GcsFilename> filenames,
+      final BatchOperation<T> operation) throws IOException {
+    final Map<GcsFilename, T> results = new LinkedHashMap<>();
+    final Set<GcsFilename> remaining = new LinkedHashSet<>();
+    for (GcsFilename filename : filenames) {
+      results.put(filename, null);
+      remaining.add(filename);
+    }
+    if (remaining.isEmpty()) {
+      return results;
+    }
+    try {
+      RetryHelper.runWithRetries(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          long timeout = options.getRetryParams().getRequestTimeoutMillisForCurrentAttempt();
+          List<GcsFilename> batch = ImmutableList.copyOf(remaining);
+          List<Future<T>> futures = operation.start(batch, timeout);
+          Throwable retriable = null;
+          Throwable nonRetriable = null;
+          for (int i = 0; i < batch.size(); i++) {
+            try {
+              results.put(batch.get(i), Uninterruptibles.getUninterruptibly(futures.get(i)));
+              remaining.remove(batch.get(i));
+            } catch (ExecutionException e) {
+              Throwable cause = e.getCause();
+              if (cause instanceof Exception && exceptionHandler.shouldRetry((Exception) cause)) {
+                retriable = retriable == null ? cause : retriable;
+              } else {
+                nonRetriable = nonRetriable == null ? cause : nonRetriable;
+              }
+            }
+          }
+          Throwable failure = nonRetriable != null ? nonRetriable : retriable;
+          if (failure != null) {
+            Throwables.propagateIfPossible(failure, IOException.class);
+            throw new IOException(remaining.size() + " of " + batch.size() + " requests failed",
+                failure);
+          }
+          return null;
+        }
+      }, options.getRetryParams(), exceptionHandler);
+    } catch (RetryInterruptedException ex) {
+      throw new ClosedByInterruptException();
+    } catch (NonRetriableException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+      throw e;
+    }
+    return results;
+  }
+
   @Override
   public void compose(final Iterable<String> source, final GcsFilename dest)
       throws IOException {
@@ -209,8 +340,14 @@ final class GcsServiceImpl implements GcsService {
     }
     final String prefix = listOptions.getPrefix();
     final String delimiter = listOptions.isRecursive() ? null : options.getPathDelimiter();
+    final int pageSize = listOptions.getPageSize();
     Callable<Iterator<ListItem>> batcher = new Callable<Iterator<ListItem>>() {
       private String nextMarker = "";
+      /**
+       * The request for the page at {@code nextMarker}, issued as soon as the previous page was
+       * received so that it is in flight while the caller iterates over the previous page.
+       */
+      private Future<ListItemBatch> prefetched;
 
       @Override
       public Iterator<ListItem> call() throws IOException {
@@ -221,10 +358,20 @@ final class GcsServiceImpl implements GcsService {
         try {
           batch = RetryHelper.runWithRetries(new Callable<ListItemBatch>() {
             @Override
-            public ListItemBatch call() throws IOException {
+            public ListItemBatch call() throws IOException, InterruptedException {
+              Future<ListItemBatch> pending = prefetched;
+              prefetched = null;
+              if (pending != null) {
+                try {
+                  return pending.get();
+                } catch (ExecutionException e) {
+                  Throwables.propagateIfPossible(e.getCause(), IOException.class);
+                  throw new IOException("Failed to list bucket " + bucket, e.getCause());
+                }
+              }
               long timeout = options.getRetryParams().getRequestTimeoutMillisForCurrentAttempt();
               String marker = Strings.emptyToNull(nextMarker);
-              return raw.list(bucket, prefix, delimiter, marker, MAX_RESULTS_PER_BATCH, timeout);
+              return raw.list(bucket, prefix, delimiter, marker, pageSize, timeout);
             }
           }, options.getRetryParams(), exceptionHandler);
         } catch (RetryInterruptedException ex) {
@@ -234,6 +381,10 @@ final class GcsServiceImpl implements GcsService {
           throw e;
         }
         nextMarker = batch.getNextMarker();
+        if (nextMarker != null) {
+          long timeout = options.getRetryParams().getRequestTimeoutMillis();
+          prefetched = raw.listAsync(bucket, prefix, delimiter, nextMarker, pageSize, timeout);
+        }
         return batch.getItems().iterator();
       }
     };
@@ -5,6 +5,7 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Strings.isNullOrEmpty;
 
+import com.google.appengine.tools.cloudstorage.oauth.RequestGovernor;
 import com.google.common.collect.ImmutableMap;
 
 import java.io.Serializable;
@@ -14,6 +15,10 @@ import java.util.Objects;
 
 /**
  * A class to hold options for the GcsService.
+ *
+ * The buffer pool, caches, metrics, request governor, hedging policy and circuit breaker are
+ * in-process state and are not serialized. Channels that were deserialized make their requests
+ * without any of them.
  */
 public class GcsServiceOptions implements Serializable {
 
@@ -22,8 +27,17 @@ public class GcsServiceOptions implements Serializable {
 
   private final RetryParams retryParams;
   private final Integer defaultWriteBufferSize;
+  private final boolean adaptiveWriteBufferSize;
   private final String pathDelimiter;
   private final Map<String, String> headers;
+  private final Integer maxParallelUploads;
+  private final transient ByteBufferPool bufferPool;
+  private final transient ObjectCache objectCache;
+  private final transient MetadataCache metadataCache;
+  private final transient GcsMetrics metrics;
+  private final transient RequestGovernor requestGovernor;
+  private final transient HedgingPolicy hedgingPolicy;
+  private final transient CircuitBreaker circuitBreaker;
 
   /**
    * GcsServiceOtpions builder.
@@ -32,8 +46,17 @@ public class GcsServiceOptions implements Serializable {
 
     private RetryParams retryParams;
     private Integer defaultWriteBufferSize;
+    private boolean adaptiveWriteBufferSize;
     private String pathDelimiter = "/";
     private Map<String, String> headers = ImmutableMap.of();
+    private Integer maxParallelUploads;
+    private ByteBufferPool bufferPool;
+    private ObjectCache objectCache;
+    private MetadataCache metadataCache;
+    private GcsMetrics metrics;
+    private RequestGovernor requestGovernor;
+    private HedgingPolicy hedgingPolicy;
+    private CircuitBreaker circuitBreaker;
 
     public Builder setRetryParams(RetryParams retryParams) {
       this.retryParams = retryParams;
@@ -48,6 +71,20 @@ public class GcsServiceOptions implements Serializable {
       return this;
     }
 
+    /**
+     * Makes output channels adapt the size of their write buffer, and so of their requests, to
+     * how fast the data is written and uploaded. An adaptive buffer starts at a single chunk,
+     * grows while the writer has to wait for the previous request and shrinks while it does not,
+     * up to the default write buffer size if one is set or the largest request otherwise. Has no
+     * effect on channels that use parallel uploads.
+     *
+     * @param adaptiveWriteBufferSize whether the write buffer size adapts
+     */
+    public Builder setAdaptiveWriteBufferSize(boolean adaptiveWriteBufferSize) {
+      this.adaptiveWriteBufferSize = adaptiveWriteBufferSize;
+      return this;
+    }
+
     public Builder setPathDelimiter(String pathDelimiter) {
       checkArgument(isNullOrEmpty(pathDelimiter), "pathDelimiter must not be null or empty");
       this.pathDelimiter = pathDelimiter;
@@ -59,6 +96,104 @@ public class GcsServiceOptions implements Serializable {
       return this;
     }
 
+    /**
+     * Enables parallel composite uploads for channels returned by
+     * {@link GcsService#createOrReplace(GcsFilename, GcsFileOptions)}. The written data is split
+     * into parts of the write buffer size which are uploaded to temporary objects, up to
+     * {@code maxParallelUploads} at a time, and composed into the requested object on close.
+     * A value of {@code null} or {@code 1} keeps the default sequential upload.
+     *
+     * @param maxParallelUploads the maximum number of parts that are uploaded concurrently
+     */
+    public Builder setMaxParallelUploads(Integer maxParallelUploads) {
+      checkArgument(maxParallelUploads == null || maxParallelUploads > 0,
+          "maxParallelUploads must be positive");
+      this.maxParallelUploads = maxParallelUploads;
+      return this;
+    }
+
+    /**
+     * Sets the pool that the channels of the service take their block buffers from. By default
+     * every block buffer is newly allocated. The pool is not serialized, so channels and options
+     * that were deserialized allocate their buffers.
+     *
+     * @param bufferPool the pool to use or {@code null} to disable pooling
+     */
+    public Builder setBufferPool(ByteBufferPool bufferPool) {
+      this.bufferPool = bufferPool;
+      return this;
+    }
+
+    /**
+     * Sets the cache that reads of small objects are served from. By default nothing is cached.
+     * Like the buffer pool, the cache is not serialized, so writes of deserialized channels are
+     * only noticed by a cache that revalidates its objects, as it does by default.
+     *
+     * @param objectCache the cache to use or {@code null} to disable caching
+     */
+    public Builder setObjectCache(ObjectCache objectCache) {
+      this.objectCache = objectCache;
+      return this;
+    }
+
+    /**
+     * Sets the cache that object metadata is served from. By default nothing is cached. Like the
+     * buffer pool, the cache is not serialized.
+     *
+     * @param metadataCache the cache to use or {@code null} to disable caching
+     */
+    public Builder setMetadataCache(MetadataCache metadataCache) {
+      this.metadataCache = metadataCache;
+      return this;
+    }
+
+    /**
+     * Sets the recipient of a record of every request made to Google Cloud Storage, such as an
+     * {@link InMemoryGcsMetrics}. By default nothing is recorded. Like the buffer pool, the
+     * metrics are not serialized.
+     *
+     * @param metrics the metrics to record to or {@code null} to disable recording
+     */
+    public Builder setMetrics(GcsMetrics metrics) {
+      this.metrics = metrics;
+      return this;
+    }
+
+    /**
+     * Sets the limits on the requests sent to Google Cloud Storage, so that bursts of requests
+     * wait for each other instead of exceeding the quota. By default requests are not limited.
+     * Like the buffer pool, the governor is not serialized.
+     *
+     * @param requestGovernor the governor to use or {@code null} to disable limiting
+     */
+    public Builder setRequestGovernor(RequestGovernor requestGovernor) {
+      this.requestGovernor = requestGovernor;
+      return this;
+    }
+
+    /**
+     * Sets the policy deciding when a slow read is sent again, using whichever request completes
+     * first. By default reads are not hedged. Like the buffer pool, the policy is not serialized.
+     *
+     * @param hedgingPolicy the policy to use or {@code null} to disable hedging
+     */
+    public Builder setHedgingPolicy(HedgingPolicy hedgingPolicy) {
+      this.hedgingPolicy = hedgingPolicy;
+      return this;
+    }
+
+    /**
+     * Sets the circuit breaker that stops sending requests to a bucket while most requests to it
+     * fail. By default requests are always sent. Like the buffer pool, the circuit breaker is not
+     * serialized.
+     *
+     * @param circuitBreaker the circuit breaker to use or {@code null} to disable it
+     */
+    public Builder setCircuitBreaker(CircuitBreaker circuitBreaker) {
+      this.circuitBreaker = circuitBreaker;
+      return this;
+    }
+
     public GcsServiceOptions build() {
       return new GcsServiceOptions(this);
     }
@@ -70,8 +205,17 @@ public class GcsServiceOptions implements Serializable {
         .requestTimeoutRetryFactor(DEFAULT_REQUEST_TIMEOUT_RETRY_FACTOR)
         .build();
     defaultWriteBufferSize = builder.defaultWriteBufferSize;
+    adaptiveWriteBufferSize = builder.adaptiveWriteBufferSize;
     pathDelimiter = builder.pathDelimiter;
     headers = builder.headers;
+    maxParallelUploads = builder.maxParallelUploads;
+    bufferPool = builder.bufferPool;
+    objectCache = builder.objectCache;
+    metadataCache = builder.metadataCache;
+    metrics = builder.metrics;
+    requestGovernor = builder.requestGovernor;
+    hedgingPolicy = builder.hedgingPolicy;
+    circuitBreaker = builder.circuitBreaker;
   }
 
   private static <T> T firstNonNull(T v1, T v2) {
@@ -86,6 +230,10 @@ public class GcsServiceOptions implements Serializable {
     return defaultWriteBufferSize;
   }
 
+  public boolean isAdaptiveWriteBufferSize() {
+    return adaptiveWriteBufferSize;
+  }
+
   public String getPathDelimiter() {
     return pathDelimiter;
   }
@@ -94,9 +242,43 @@ public class GcsServiceOptions implements Serializable {
     return headers;
   }
 
+  public Integer getMaxParallelUploads() {
+    return maxParallelUploads;
+  }
+
+  public ByteBufferPool getBufferPool() {
+    return bufferPool;
+  }
+
+  public ObjectCache getObjectCache() {
+    return objectCache;
+  }
+
+  public MetadataCache getMetadataCache() {
+    return metadataCache;
+  }
+
+  public GcsMetrics getMetrics() {
+    return metrics;
+  }
+
+  public RequestGovernor getRequestGovernor() {
+    return requestGovernor;
+  }
+
+  public HedgingPolicy getHedgingPolicy() {
+    return hedgingPolicy;
+  }
+
+  public CircuitBreaker getCircuitBreaker() {
+    return circuitBreaker;
+  }
+
   @Override
   public int hashCode() {
-    return Objects.hash(retryParams, defaultWriteBufferSize, pathDelimiter, headers);
+    return Objects.hash(retryParams, defaultWriteBufferSize, adaptiveWriteBufferSize,
+        pathDelimiter, headers, maxParallelUploads, bufferPool, objectCache, metadataCache,
+        metrics, requestGovernor, hedgingPolicy, circuitBreaker);
   }
 
   @Override
@@ -113,14 +295,27 @@ public class GcsServiceOptions implements Serializable {
     GcsServiceOptions other = (GcsServiceOptions) obj;
     return Objects.equals(retryParams, other.retryParams)
         && Objects.equals(defaultWriteBufferSize, other.defaultWriteBufferSize)
+        && adaptiveWriteBufferSize == other.adaptiveWriteBufferSize
         && Objects.equals(pathDelimiter, other.pathDelimiter)
-        && Objects.equals(headers, other.headers);
+        && Objects.equals(headers, other.headers)
+        && Objects.equals(maxParallelUploads, other.maxParallelUploads)
+        && Objects.equals(bufferPool, other.bufferPool)
+        && Objects.equals(objectCache, other.objectCache)
+        && Objects.equals(metadataCache, other.metadataCache)
+        && Objects.equals(metrics, other.metrics)
+        && Objects.equals(requestGovernor, other.requestGovernor)
+        && Objects.equals(hedgingPolicy, other.hedgingPolicy)
+        && Objects.equals(circuitBreaker, other.circuitBreaker);
   }
 
   @Override
   public String toString() {
     return "GcsServiceOptions [retryParams=" + retryParams + ", defaultWriteBufferSize="
-        + defaultWriteBufferSize + ", pathDelimiter=" + pathDelimiter + ", headers="
-        + headers + "]";
+        + defaultWriteBufferSize + ", adaptiveWriteBufferSize=" + adaptiveWriteBufferSize
+        + ", pathDelimiter=" + pathDelimiter + ", headers=" + headers + ", maxParallelUploads="
+        + maxParallelUploads + ", bufferPool=" + bufferPool + ", objectCache=" + objectCache
+        + ", metadataCache=" + metadataCache + ", metrics=" + metrics
+        + ", requestGovernor=" + requestGovernor + ", hedgingPolicy=" + hedgingPolicy
+        + ", circuitBreaker=" + circuitBreaker + "]";
   }
 }
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.cloudstorage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides when a read from Google Cloud Storage is slow enough to be sent again, so that a single
+ * slow request does not hold up a reader until it times out (see
+ * {@link GcsServiceOptions.Builder#setHedgingPolicy(HedgingPolicy)}).
+ *
+ * A read that has not completed after the given {@code percentile} of the latencies of the last
+ * {@code sampleSize} reads is hedged: the same range is requested again and whichever request
+ * completes first is used, the other one being cancelled. Reads are only hedged once
+ * {@code sampleSize} latencies were observed. The latency of an asynchronous read is measured
+ * until its completion is observed, so only reads that were being waited for or polled when they
+ * completed are sampled; a read whose result was retrieved late, such as a prefetched one, would
+ * overestimate the latency and is left out.
+ */
+public final class HedgingPolicy {
+
+  private final double percentile;
+  private final int sampleSize;
+  private final long[] latencies;
+  private int sampleCount;
+  private long hedgeDelayNanos = Long.MAX_VALUE;
+  private boolean stale;
+  private final AtomicLong hedgesFired = new AtomicLong();
+  private final AtomicLong hedgesWon = new AtomicLong();
+
+  /**
+   * @param percentile the fraction of reads, between 0 and 1 exclusive, that should complete
+   *     before a read is hedged, such as 0.95
+   * @param sampleSize the number of recent latencies the percentile is computed from
+   */
+  public HedgingPolicy(double percentile, int sampleSize) {
+    checkArgument(percentile > 0 && percentile < 1, "percentile must be between 0 and 1");
+    checkArgument(sampleSize > 0, "sampleSize must be positive");
+    this.percentile = percentile;
+    this.sampleSize = sampleSize;
+    latencies = new long[sampleSize];
+  }
+
+  /**
+   * Records the latency of a read that completed successfully.
+   */
+  synchronized void recordLatency(long latencyNanos) {
+    latencies[sampleCount++ % sampleSize] = latencyNanos;
+    if (sampleCount == 2 * sampleSize) {
+      sampleCount = sampleSize;
+    }
+    stale = true;
+  }
+
+  /**
+   * Returns how long a read may take before it is hedged, or {@link Long#MAX_VALUE} if too few
+   * latencies were observed yet.
+   */
+  synchronized long getHedgeDelayNanos() {
+    if (stale && sampleCount >= sampleSize) {
+      long[] sorted = latencies.clone();
+      Arrays.sort(sorted);
+      hedgeDelayNanos = sorted[Math.max(0, (int) Math.ceil(percentile * sampleSize) - 1)];
+      stale = false;
+    }
+    return hedgeDelayNanos;
+  }
+
+  void hedgeFired() {
+    hedgesFired.incrementAndGet();
+  }
+
+  void hedgeWon() {
+    hedgesWon.incrementAndGet();
+  }
+
+  public double getPercentile() {
+    return percentile;
+  }
+
+  public int getSampleSize() {
+    return sampleSize;
+  }
+
+  /**
+   * Returns the number of reads that were sent again because they were slow.
+   */
+  public long getHedgesFired() {
+    return hedgesFired.get();
+  }
+
+  /**
+   * Returns the number of hedged reads whose second request completed first.
+   */
+  public long getHedgesWon() {
+    return hedgesWon.get();
+  }
+
+  @Override
+  public String toString() {
+    long delayNanos = getHedgeDelayNanos();
+    return "HedgingPolicy [percentile=" + percentile + ", sampleSize=" + sampleSize
+        + ", hedgeDelayMillis="
+        + (delayNanos == Long.MAX_VALUE ? "none" : TimeUnit.NANOSECONDS.toMillis(delayNanos))
+        + ", hedgesFired=" + hedgesFired + ", hedgesWon=" + hedgesWon + "]";
+  }
+}
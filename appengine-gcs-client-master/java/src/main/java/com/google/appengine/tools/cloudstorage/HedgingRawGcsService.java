@@ -0,0 +1,386 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.cloudstorage;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A {@link RawGcsService} that hedges slow reads as decided by a {@link HedgingPolicy}, and
+ * delegates everything else.
+ *
+ * The futures returned by URLFetch cannot notify a listener, so a read is driven by the thread
+ * that waits for it: a hedge is sent when a read is found to be overdue by {@link Future#get} or
+ * {@link Future#isDone}, and once it was sent both requests are polled every
+ * {@link RetryHelper#POLL_INTERVAL_MILLIS}. The second request reads into a buffer of its own,
+ * which is copied to the destination if it completes first. The result of the request that lost
+ * is never retrieved, so it does not modify the destination. The latency of the winning request
+ * is only given to the policy if the read was seen pending less than
+ * {@link #MAX_SAMPLE_ERROR_MILLIS} before its completion was observed.
+ */
+final class HedgingRawGcsService implements RawGcsService {
+
+  /**
+   * How much later than a request completed its completion may be observed for its latency to
+   * still be sampled. A thread waiting for a hedged read polls it every
+   * {@link RetryHelper#POLL_INTERVAL_MILLIS}.
+   */
+  static final long MAX_SAMPLE_ERROR_MILLIS = 4 * RetryHelper.POLL_INTERVAL_MILLIS;
+
+  private final RawGcsService raw;
+  private final HedgingPolicy policy;
+
+  HedgingRawGcsService(RawGcsService raw, HedgingPolicy policy) {
+    this.raw = checkNotNull(raw, "Null raw");
+    this.policy = checkNotNull(policy, "Null policy");
+  }
+
+  /**
+   * A read that may be hedged. Meant to be waited for by a single thread at a time.
+   */
+  private final class HedgedRead implements Future<GcsFileMetadata> {
+    private final ByteBuffer dst;
+    private final int dstPosition;
+    private final int length;
+    private final GcsFilename filename;
+    private final long offset;
+    private final String ifMatch;
+    private final String ifNoneMatch;
+    private final long timeoutMillis;
+    private final long startNanos = System.nanoTime();
+    private final Future<GcsFileMetadata> primary;
+    private long lastPendingNanos = startNanos;
+    private boolean hedgeSent;
+    private long hedgeStartNanos;
+    private ByteBuffer hedgeDst;
+    private Future<GcsFileMetadata> hedge;
+    private boolean done;
+    private boolean cancelled;
+    private GcsFileMetadata value;
+    private ExecutionException failure;
+
+    HedgedRead(ByteBuffer dst, GcsFilename filename, long offset, String ifMatch,
+        String ifNoneMatch, long timeoutMillis) {
+      this.dst = dst;
+      this.dstPosition = dst.position();
+      this.length = Math.min(dst.remaining(), raw.getMaxReadSizeBytes());
+      this.filename = filename;
+      this.offset = offset;
+      this.ifMatch = ifMatch;
+      this.ifNoneMatch = ifNoneMatch;
+      this.timeoutMillis = timeoutMillis;
+      primary = raw.readObjectAsync(dst, filename, offset, ifMatch, ifNoneMatch, timeoutMillis);
+    }
+
+    /**
+     * Completes this read from whichever request is done, or sends the hedge once it is due.
+     * Returns whether this read is done.
+     */
+    private synchronized boolean poll() {
+      if (done) {
+        return true;
+      }
+      long now = System.nanoTime();
+      if (primary.isDone()) {
+        if (hedge != null) {
+          hedge.cancel(true);
+        }
+        try {
+          completed(Uninterruptibles.getUninterruptibly(primary), now - startNanos,
+              isPrompt(now));
+        } catch (ExecutionException e) {
+          failed(e);
+        } catch (CancellationException e) {
+          cancel(false);
+        }
+        return true;
+      }
+      if (hedge != null && hedge.isDone()) {
+        try {
+          GcsFileMetadata metadata = Uninterruptibles.getUninterruptibly(hedge);
+          primary.cancel(true);
+          policy.hedgeWon();
+          hedgeDst.flip();
+          dst.position(dstPosition);
+          dst.put(hedgeDst);
+          completed(metadata, now - hedgeStartNanos, isPrompt(now));
+          return true;
+        } catch (ExecutionException | CancellationException e) {
+          hedge = null;
+        }
+      } else if (!hedgeSent && now - startNanos >= policy.getHedgeDelayNanos()) {
+        hedgeSent = true;
+        hedgeStartNanos = now;
+        hedgeDst = ByteBuffer.allocate(length);
+        policy.hedgeFired();
+        hedge = raw.readObjectAsync(
+            hedgeDst, filename, offset, ifMatch, ifNoneMatch, timeoutMillis);
+      }
+      lastPendingNanos = now;
+      return false;
+    }
+
+    /**
+     * Returns whether this read was seen pending shortly before {@code now}, so that a request
+     * whose completion is observed at {@code now} completed about then.
+     */
+    private boolean isPrompt(long now) {
+      return now - lastPendingNanos <= MILLISECONDS.toNanos(MAX_SAMPLE_ERROR_MILLIS);
+    }
+
+    /**
+     * @param sample whether {@code latencyNanos} is accurate enough to be given to the policy
+     */
+    private void completed(GcsFileMetadata metadata, long latencyNanos, boolean sample) {
+      if (sample) {
+        policy.recordLatency(latencyNanos);
+      }
+      value = metadata;
+      done = true;
+    }
+
+    private void failed(ExecutionException e) {
+      failure = e;
+      done = true;
+    }
+
+    /**
+     * Returns how long to wait for the primary request alone, or 0 if both requests need to be
+     * polled.
+     */
+    private synchronized long getPrimaryWaitNanos() {
+      if (hedgeSent) {
+        return hedge == null ? Long.MAX_VALUE : 0;
+      }
+      long delayNanos = policy.getHedgeDelayNanos();
+      if (delayNanos == Long.MAX_VALUE) {
+        return Long.MAX_VALUE;
+      }
+      return Math.max(0, delayNanos - (System.nanoTime() - startNanos));
+    }
+
+    private synchronized GcsFileMetadata getValue(long timeoutNanos)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      long start = System.nanoTime();
+      while (!poll()) {
+        long remainingNanos = timeoutNanos - (System.nanoTime() - start);
+        if (remainingNanos <= 0) {
+          throw new TimeoutException();
+        }
+        long waitNanos = Math.min(getPrimaryWaitNanos(), remainingNanos);
+        if (waitNanos > 0) {
+          try {
+            // Waited for since it was seen pending, so it completed just now
+            completed(primary.get(waitNanos, NANOSECONDS), System.nanoTime() - startNanos, true);
+          } catch (ExecutionException e) {
+            failed(e);
+          } catch (CancellationException e) {
+            cancel(false);
+          } catch (TimeoutException e) {
+            // Polled again, and the hedge sent if it is due
+          }
+        } else {
+          MILLISECONDS.sleep(RetryHelper.POLL_INTERVAL_MILLIS);
+        }
+      }
+      if (cancelled) {
+        throw new CancellationException();
+      }
+      if (failure != null) {
+        throw failure;
+      }
+      return value;
+    }
+
+    @Override
+    public GcsFileMetadata get() throws InterruptedException, ExecutionException {
+      try {
+        return getValue(Long.MAX_VALUE);
+      } catch (TimeoutException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    @Override
+    public GcsFileMetadata get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      return getValue(unit.toNanos(timeout));
+    }
+
+    @Override
+    public boolean isDone() {
+      return poll();
+    }
+
+    @Override
+    public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+      if (done) {
+        return false;
+      }
+      primary.cancel(mayInterruptIfRunning);
+      if (hedge != null) {
+        hedge.cancel(mayInterruptIfRunning);
+      }
+      cancelled = true;
+      done = true;
+      return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+      return cancelled;
+    }
+  }
+
+  @Override
+  public int getChunkSizeBytes() {
+    return raw.getChunkSizeBytes();
+  }
+
+  @Override
+  public int getMaxWriteSizeByte() {
+    return raw.getMaxWriteSizeByte();
+  }
+
+  @Override
+  public int getMaxReadSizeBytes() {
+    return raw.getMaxReadSizeBytes();
+  }
+
+  @Override
+  public RawGcsCreationToken beginObjectCreation(GcsFilename filename, GcsFileOptions options,
+      long timeoutMillis) throws IOException {
+    return raw.beginObjectCreation(filename, options, timeoutMillis);
+  }
+
+  @Override
+  public Future<RawGcsCreationToken> continueObjectCreationAsync(RawGcsCreationToken token,
+      ByteBuffer chunk, long timeoutMillis) {
+    return raw.continueObjectCreationAsync(token, chunk, timeoutMillis);
+  }
+
+  @Override
+  public void finishObjectCreation(RawGcsCreationToken token, ByteBuffer chunk,
+      long timeoutMillis) throws IOException {
+    raw.finishObjectCreation(token, chunk, timeoutMillis);
+  }
+
+  @Override
+  public void putObject(GcsFilename filename, GcsFileOptions options, ByteBuffer content,
+      long timeoutMillis) throws IOException {
+    raw.putObject(filename, options, content, timeoutMillis);
+  }
+
+  @Override
+  public Future<GcsFileMetadata> readObjectAsync(ByteBuffer dst, GcsFilename filename,
+      long offset, long timeoutMillis) {
+    return new HedgedRead(dst, filename, offset, null, null, timeoutMillis);
+  }
+
+  @Override
+  public Future<GcsFileMetadata> readObjectAsync(ByteBuffer dst, GcsFilename filename,
+      long offset, String ifMatch, String ifNoneMatch, long timeoutMillis) {
+    return new HedgedRead(dst, filename, offset, ifMatch, ifNoneMatch, timeoutMillis);
+  }
+
+  @Override
+  public GcsFileMetadata getObjectMetadata(GcsFilename filename, long timeoutMillis)
+      throws IOException {
+    return raw.getObjectMetadata(filename, timeoutMillis);
+  }
+
+  @Override
+  public Future<GcsFileMetadata> getObjectMetadataAsync(GcsFilename filename,
+      long timeoutMillis) {
+    return raw.getObjectMetadataAsync(filename, timeoutMillis);
+  }
+
+  @Override
+  public List<Future<GcsFileMetadata>> getObjectMetadata(Iterable<GcsFilename> filenames,
+      int maxConcurrentRequests, long timeoutMillis) throws IOException {
+    return raw.getObjectMetadata(filenames, maxConcurrentRequests, timeoutMillis);
+  }
+
+  @Override
+  public boolean deleteObject(GcsFilename filename, long timeoutMillis) throws IOException {
+    return raw.deleteObject(filename, timeoutMillis);
+  }
+
+  @Override
+  public Future<Boolean> deleteObjectAsync(GcsFilename filename, long timeoutMillis) {
+    return raw.deleteObjectAsync(filename, timeoutMillis);
+  }
+
+  @Override
+  public List<Future<Boolean>> deleteObjects(Iterable<GcsFilename> filenames,
+      int maxConcurrentRequests, long timeoutMillis) throws IOException {
+    return raw.deleteObjects(filenames, maxConcurrentRequests, timeoutMillis);
+  }
+
+  @Override
+  public void composeObject(Iterable<String> source, GcsFilename dest, long timeoutMillis)
+      throws IOException {
+    raw.composeObject(source, dest, timeoutMillis);
+  }
+
+  @Override
+  public Future<Void> composeObjectAsync(Iterable<String> source, GcsFilename dest,
+      long timeoutMillis) {
+    return raw.composeObjectAsync(source, dest, timeoutMillis);
+  }
+
+  @Override
+  public void copyObject(GcsFilename source, GcsFilename dest, GcsFileOptions fileOptions,
+      long timeoutMillis) throws IOException {
+    raw.copyObject(source, dest, fileOptions, timeoutMillis);
+  }
+
+  @Override
+  public Future<Void> copyObjectAsync(GcsFilename source, GcsFilename dest,
+      GcsFileOptions fileOptions, long timeoutMillis) {
+    return raw.copyObjectAsync(source, dest, fileOptions, timeoutMillis);
+  }
+
+  @Override
+  public ListItemBatch list(String bucket, String prefix, String delimiter, String marker,
+      int maxResults, long timeoutMillis) throws IOException {
+    return raw.list(bucket, prefix, delimiter, marker, maxResults, timeoutMillis);
+  }
+
+  @Override
+  public Future<ListItemBatch> listAsync(String bucket, String prefix, String delimiter,
+      String marker, int maxResults, long timeoutMillis) {
+    return raw.listAsync(bucket, prefix, delimiter, marker, maxResults, timeoutMillis);
+  }
+
+  @Override
+  public String toString() {
+    return "HedgingRawGcsService [raw=" + raw + ", policy=" + policy + "]";
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.cloudstorage;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link GcsMetrics} that aggregates the requests of each {@link GcsMetrics.Operation} in
+ * memory, to be read periodically by a monitoring system.
+ *
+ * Recording only updates atomic counters and never blocks, so a single instance may be shared by
+ * all the services of an application.
+ */
+public final class InMemoryGcsMetrics implements GcsMetrics {
+
+  /**
+   * The number of buckets of the latency histograms. Bucket {@code i > 0} counts the requests
+   * that took at least 2<sup>i-1</sup> and less than 2<sup>i</sup> microseconds, bucket 0 those
+   * that took less than a microsecond and the last bucket all the longer ones.
+   */
+  public static final int LATENCY_BUCKETS = 32;
+
+  private final Map<Operation, OperationStats> stats;
+
+  /**
+   * The aggregate of the requests of one kind.
+   */
+  public static final class OperationStats {
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong retryCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong latencyNanos = new AtomicLong();
+    private final AtomicLongArray latencyHistogram = new AtomicLongArray(LATENCY_BUCKETS);
+    private final ConcurrentMap<String, AtomicLong> failures = new ConcurrentHashMap<>();
+
+    private OperationStats() {}
+
+    private void record(long latencyNanos, long bytesSent, long bytesReceived, boolean retry,
+        Throwable failure) {
+      requestCount.incrementAndGet();
+      if (retry) {
+        retryCount.incrementAndGet();
+      }
+      this.bytesSent.addAndGet(bytesSent);
+      this.bytesReceived.addAndGet(bytesReceived);
+      this.latencyNanos.addAndGet(latencyNanos);
+      latencyHistogram.incrementAndGet(getLatencyBucket(latencyNanos));
+      if (failure != null) {
+        failureCount.incrementAndGet();
+        String name = failure.getClass().getName();
+        AtomicLong count = failures.get(name);
+        if (count == null) {
+          AtomicLong newCount = new AtomicLong();
+          count = failures.putIfAbsent(name, newCount);
+          if (count == null) {
+            count = newCount;
+          }
+        }
+        count.incrementAndGet();
+      }
+    }
+
+    public long getRequestCount() {
+      return requestCount.get();
+    }
+
+    /**
+     * Returns the number of requests that were retries of failed ones.
+     */
+    public long getRetryCount() {
+      return retryCount.get();
+    }
+
+    public long getFailureCount() {
+      return failureCount.get();
+    }
+
+    public long getBytesSent() {
+      return bytesSent.get();
+    }
+
+    public long getBytesReceived() {
+      return bytesReceived.get();
+    }
+
+    /**
+     * Returns the total time taken by the requests.
+     */
+    public long getLatencyNanos() {
+      return latencyNanos.get();
+    }
+
+    /**
+     * Returns a copy of the latency histogram, see {@link #LATENCY_BUCKETS}.
+     */
+    public long[] getLatencyHistogram() {
+      long[] counts = new long[LATENCY_BUCKETS];
+      for (int i = 0; i < LATENCY_BUCKETS; i++) {
+        counts[i] = latencyHistogram.get(i);
+      }
+      return counts;
+    }
+
+    /**
+     * Returns the number of failed requests by the class name of their exception.
+     */
+    public Map<String, Long> getFailures() {
+      Map<String, Long> counts = new TreeMap<>();
+      for (Map.Entry<String, AtomicLong> entry : failures.entrySet()) {
+        counts.put(entry.getKey(), entry.getValue().get());
+      }
+      return counts;
+    }
+
+    @Override
+    public String toString() {
+      return "OperationStats [requestCount=" + requestCount + ", retryCount=" + retryCount
+          + ", failureCount=" + failureCount + ", bytesSent=" + bytesSent + ", bytesReceived="
+          + bytesReceived + ", latencyNanos=" + latencyNanos + ", failures=" + getFailures()
+          + "]";
+    }
+  }
+
+  public InMemoryGcsMetrics() {
+    Map<Operation, OperationStats> map = new EnumMap<>(Operation.class);
+    for (Operation operation : Operation.values()) {
+      map.put(operation, new OperationStats());
+    }
+    stats = Collections.unmodifiableMap(map);
+  }
+
+  static int getLatencyBucket(long latencyNanos) {
+    long micros = TimeUnit.NANOSECONDS.toMicros(latencyNanos);
+    int bucket = 64 - Long.numberOfLeadingZeros(micros);
+    return Math.min(bucket, LATENCY_BUCKETS - 1);
+  }
+
+  @Override
+  public void record(Operation operation, GcsFilename filename, long latencyNanos,
+      long bytesSent, long bytesReceived, boolean retry, Throwable failure) {
+    stats.get(operation).record(latencyNanos, bytesSent, bytesReceived, retry, failure);
+  }
+
+  public OperationStats getStats(Operation operation) {
+    return stats.get(operation);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder result = new StringBuilder("InMemoryGcsMetrics [");
+    String separator = "";
+    for (Map.Entry<Operation, OperationStats> entry : stats.entrySet()) {
+      if (entry.getValue().getRequestCount() > 0) {
+        result.append(separator).append(entry.getKey()).append('=').append(entry.getValue());
+        separator = ", ";
+      }
+    }
+    return result.append(']').toString();
+  }
+}
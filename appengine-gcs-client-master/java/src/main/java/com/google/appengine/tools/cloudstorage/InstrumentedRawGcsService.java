@@ -0,0 +1,462 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.cloudstorage;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.appengine.tools.cloudstorage.GcsMetrics.Operation;
+import com.google.common.util.concurrent.ForwardingFuture.SimpleForwardingFuture;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A {@link RawGcsService} that reports every call it delegates to a {@link GcsMetrics}.
+ *
+ * A call is counted as a retry if it is made by a {@link RetryHelper} after its first attempt.
+ * Asynchronous calls are reported as soon as they complete if the underlying future can notify a
+ * listener. Otherwise, as with URLFetch, they are reported when they are first seen to be done,
+ * by retrieving their result or polling {@link Future#isDone}, or when they are cancelled; their
+ * latency then extends until that moment. A call that is abandoned without ever being polled is
+ * not reported.
+ */
+final class InstrumentedRawGcsService implements RawGcsService {
+
+  private final RawGcsService raw;
+  private final GcsMetrics metrics;
+
+  InstrumentedRawGcsService(RawGcsService raw, GcsMetrics metrics) {
+    this.raw = checkNotNull(raw, "Null raw");
+    this.metrics = checkNotNull(metrics, "Null metrics");
+  }
+
+  /**
+   * A call in progress.
+   */
+  private final class Call {
+    private final Operation operation;
+    private final GcsFilename filename;
+    private final long bytesSent;
+    private final boolean retry;
+    private final long startNanos = System.nanoTime();
+
+    Call(Operation operation, GcsFilename filename, long bytesSent) {
+      this.operation = operation;
+      this.filename = filename;
+      this.bytesSent = bytesSent;
+      RetryHelper.Context context = RetryHelper.getContext();
+      retry = context != null && context.getAttemptNumber() > 1;
+    }
+
+    Call(Operation operation, GcsFilename filename) {
+      this(operation, filename, 0);
+    }
+
+    void done(long bytesReceived, Throwable failure) {
+      metrics.record(operation, filename, System.nanoTime() - startNanos, bytesSent,
+          bytesReceived, retry, failure);
+    }
+
+    void succeeded() {
+      done(0, null);
+    }
+
+    void failed(Throwable failure) {
+      done(0, failure);
+    }
+  }
+
+  /**
+   * A future that reports its call once, when it is first seen to be done: when its outcome is
+   * retrieved, when {@link #isDone} returns true, when it is cancelled, or as soon as it completes
+   * if its delegate is a {@link ListenableFuture}.
+   */
+  private static final class RecordingFuture<V> extends SimpleForwardingFuture<V> {
+    private final Call call;
+    private final ByteBuffer dst;
+    private final int startPosition;
+    private final AtomicBoolean recorded = new AtomicBoolean();
+
+    /**
+     * @param dst the buffer a read fills, or null if the call receives no object content
+     * @param startPosition the position of {@code dst} before the read was started, from which
+     *     the bytes received are counted
+     */
+    RecordingFuture(Future<V> delegate, Call call, ByteBuffer dst, int startPosition) {
+      super(delegate);
+      this.call = call;
+      this.dst = dst;
+      this.startPosition = startPosition;
+      if (delegate instanceof ListenableFuture) {
+        ((ListenableFuture<V>) delegate).addListener(new Runnable() {
+          @Override
+          public void run() {
+            checkDone();
+          }
+        }, MoreExecutors.directExecutor());
+      }
+    }
+
+    RecordingFuture(Future<V> delegate, Call call) {
+      this(delegate, call, null, 0);
+    }
+
+    /**
+     * Reports the call if the delegate is done and the call was not reported yet.
+     */
+    private void checkDone() {
+      if (!delegate().isDone() || !recorded.compareAndSet(false, true)) {
+        return;
+      }
+      try {
+        Uninterruptibles.getUninterruptibly(delegate());
+        call.done(dst == null ? 0 : dst.position() - startPosition, null);
+      } catch (ExecutionException e) {
+        call.failed(e.getCause());
+      } catch (CancellationException e) {
+        call.failed(e);
+      }
+    }
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+      try {
+        return super.get();
+      } finally {
+        checkDone();
+      }
+    }
+
+    @Override
+    public V get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      try {
+        return super.get(timeout, unit);
+      } finally {
+        checkDone();
+      }
+    }
+
+    @Override
+    public boolean isDone() {
+      try {
+        return super.isDone();
+      } finally {
+        checkDone();
+      }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      try {
+        return super.cancel(mayInterruptIfRunning);
+      } finally {
+        checkDone();
+      }
+    }
+  }
+
+  private static int remaining(ByteBuffer buffer) {
+    return buffer == null ? 0 : buffer.remaining();
+  }
+
+  private static <V> List<Future<V>> recording(List<Future<V>> futures, List<Call> calls) {
+    List<Future<V>> results = new ArrayList<>(futures.size());
+    for (int i = 0; i < futures.size(); i++) {
+      results.add(new RecordingFuture<>(futures.get(i), calls.get(i)));
+    }
+    return results;
+  }
+
+  private List<Call> start(Operation operation, Iterable<GcsFilename> filenames) {
+    List<Call> calls = new ArrayList<>();
+    for (GcsFilename filename : filenames) {
+      calls.add(new Call(operation, filename));
+    }
+    return calls;
+  }
+
+  @Override
+  public int getChunkSizeBytes() {
+    return raw.getChunkSizeBytes();
+  }
+
+  @Override
+  public int getMaxWriteSizeByte() {
+    return raw.getMaxWriteSizeByte();
+  }
+
+  @Override
+  public int getMaxReadSizeBytes() {
+    return raw.getMaxReadSizeBytes();
+  }
+
+  @Override
+  public RawGcsCreationToken beginObjectCreation(GcsFilename filename, GcsFileOptions options,
+      long timeoutMillis) throws IOException {
+    Call call = new Call(Operation.BEGIN_OBJECT_CREATION, filename);
+    try {
+      RawGcsCreationToken token = raw.beginObjectCreation(filename, options, timeoutMillis);
+      call.succeeded();
+      return token;
+    } catch (IOException | RuntimeException e) {
+      call.failed(e);
+      throw e;
+    }
+  }
+
+  @Override
+  public Future<RawGcsCreationToken> continueObjectCreationAsync(RawGcsCreationToken token,
+      ByteBuffer chunk, long timeoutMillis) {
+    Call call =
+        new Call(Operation.CONTINUE_OBJECT_CREATION, token.getFilename(), remaining(chunk));
+    try {
+      return new RecordingFuture<>(
+          raw.continueObjectCreationAsync(token, chunk, timeoutMillis), call);
+    } catch (RuntimeException e) {
+      call.failed(e);
+      throw e;
+    }
+  }
+
+  @Override
+  public void finishObjectCreation(RawGcsCreationToken token, ByteBuffer chunk,
+      long timeoutMillis) throws IOException {
+    Call call = new Call(Operation.FINISH_OBJECT_CREATION, token.getFilename(), remaining(chunk));
+    try {
+      raw.finishObjectCreation(token, chunk, timeoutMillis);
+      call.succeeded();
+    } catch (IOException | RuntimeException e) {
+      call.failed(e);
+      throw e;
+    }
+  }
+
+  @Override
+  public void putObject(GcsFilename filename, GcsFileOptions options, ByteBuffer content,
+      long timeoutMillis) throws IOException {
+    Call call = new Call(Operation.PUT_OBJECT, filename, remaining(content));
+    try {
+      raw.putObject(filename, options, content, timeoutMillis);
+      call.succeeded();
+    } catch (IOException | RuntimeException e) {
+      call.failed(e);
+      throw e;
+    }
+  }
+
+  @Override
+  public Future<GcsFileMetadata> readObjectAsync(ByteBuffer dst, GcsFilename filename,
+      long offset, long timeoutMillis) {
+    Call call = new Call(Operation.READ_OBJECT, filename);
+    int startPosition = dst.position();
+    try {
+      Future<GcsFileMetadata> future = raw.readObjectAsync(dst, filename, offset, timeoutMillis);
+      return new RecordingFuture<>(future, call, dst, startPosition);
+    } catch (RuntimeException e) {
+      call.failed(e);
+      throw e;
+    }
+  }
+
+  @Override
+  public Future<GcsFileMetadata> readObjectAsync(ByteBuffer dst, GcsFilename filename,
+      long offset, String ifMatch, String ifNoneMatch, long timeoutMillis) {
+    Call call = new Call(Operation.READ_OBJECT, filename);
+    int startPosition = dst.position();
+    try {
+      Future<GcsFileMetadata> future =
+          raw.readObjectAsync(dst, filename, offset, ifMatch, ifNoneMatch, timeoutMillis);
+      return new RecordingFuture<>(future, call, dst, startPosition);
+    } catch (RuntimeException e) {
+      call.failed(e);
+      throw e;
+    }
+  }
+
+  @Override
+  public GcsFileMetadata getObjectMetadata(GcsFilename filename, long timeoutMillis)
+      throws IOException {
+    Call call = new Call(Operation.GET_OBJECT_METADATA, filename);
+    try {
+      GcsFileMetadata metadata = raw.getObjectMetadata(filename, timeoutMillis);
+      call.succeeded();
+      return metadata;
+    } catch (IOException | RuntimeException e) {
+      call.failed(e);
+      throw e;
+    }
+  }
+
+  @Override
+  public Future<GcsFileMetadata> getObjectMetadataAsync(GcsFilename filename,
+      long timeoutMillis) {
+    Call call = new Call(Operation.GET_OBJECT_METADATA, filename);
+    try {
+      return new RecordingFuture<>(raw.getObjectMetadataAsync(filename, timeoutMillis), call);
+    } catch (RuntimeException e) {
+      call.failed(e);
+      throw e;
+    }
+  }
+
+  @Override
+  public List<Future<GcsFileMetadata>> getObjectMetadata(Iterable<GcsFilename> filenames,
+      int maxConcurrentRequests, long timeoutMillis) throws IOException {
+    List<Call> calls = start(Operation.GET_OBJECT_METADATA, filenames);
+    List<Future<GcsFileMetadata>> futures;
+    try {
+      futures = raw.getObjectMetadata(filenames, maxConcurrentRequests, timeoutMillis);
+    } catch (IOException | RuntimeException e) {
+      new Call(Operation.GET_OBJECT_METADATA, null).failed(e);
+      throw e;
+    }
+    return recording(futures, calls);
+  }
+
+  @Override
+  public boolean deleteObject(GcsFilename filename, long timeoutMillis) throws IOException {
+    Call call = new Call(Operation.DELETE_OBJECT, filename);
+    try {
+      boolean deleted = raw.deleteObject(filename, timeoutMillis);
+      call.succeeded();
+      return deleted;
+    } catch (IOException | RuntimeException e) {
+      call.failed(e);
+      throw e;
+    }
+  }
+
+  @Override
+  public Future<Boolean> deleteObjectAsync(GcsFilename filename, long timeoutMillis) {
+    Call call = new Call(Operation.DELETE_OBJECT, filename);
+    try {
+      return new RecordingFuture<>(raw.deleteObjectAsync(filename, timeoutMillis), call);
+    } catch (RuntimeException e) {
+      call.failed(e);
+      throw e;
+    }
+  }
+
+  @Override
+  public List<Future<Boolean>> deleteObjects(Iterable<GcsFilename> filenames,
+      int maxConcurrentRequests, long timeoutMillis) throws IOException {
+    List<Call> calls = start(Operation.DELETE_OBJECT, filenames);
+    List<Future<Boolean>> futures;
+    try {
+      futures = raw.deleteObjects(filenames, maxConcurrentRequests, timeoutMillis);
+    } catch (IOException | RuntimeException e) {
+      new Call(Operation.DELETE_OBJECT, null).failed(e);
+      throw e;
+    }
+    return recording(futures, calls);
+  }
+
+  @Override
+  public void composeObject(Iterable<String> source, GcsFilename dest, long timeoutMillis)
+      throws IOException {
+    Call call = new Call(Operation.COMPOSE_OBJECT, dest);
+    try {
+      raw.composeObject(source, dest, timeoutMillis);
+      call.succeeded();
+    } catch (IOException | RuntimeException e) {
+      call.failed(e);
+      throw e;
+    }
+  }
+
+  @Override
+  public Future<Void> composeObjectAsync(Iterable<String> source, GcsFilename dest,
+      long timeoutMillis) {
+    Call call = new Call(Operation.COMPOSE_OBJECT, dest);
+    try {
+      return new RecordingFuture<>(raw.composeObjectAsync(source, dest, timeoutMillis), call);
+    } catch (RuntimeException e) {
+      call.failed(e);
+      throw e;
+    }
+  }
+
+  @Override
+  public void copyObject(GcsFilename source, GcsFilename dest, GcsFileOptions fileOptions,
+      long timeoutMillis) throws IOException {
+    Call call = new Call(Operation.COPY_OBJECT, dest);
+    try {
+      raw.copyObject(source, dest, fileOptions, timeoutMillis);
+      call.succeeded();
+    } catch (IOException | RuntimeException e) {
+      call.failed(e);
+      throw e;
+    }
+  }
+
+  @Override
+  public Future<Void> copyObjectAsync(GcsFilename source, GcsFilename dest,
+      GcsFileOptions fileOptions, long timeoutMillis) {
+    Call call = new Call(Operation.COPY_OBJECT, dest);
+    try {
+      return new RecordingFuture<>(
+          raw.copyObjectAsync(source, dest, fileOptions, timeoutMillis), call);
+    } catch (RuntimeException e) {
+      call.failed(e);
+      throw e;
+    }
+  }
+
+  @Override
+  public ListItemBatch list(String bucket, String prefix, String delimiter, String marker,
+      int maxResults, long timeoutMillis) throws IOException {
+    Call call = new Call(Operation.LIST, null);
+    try {
+      ListItemBatch batch = raw.list(bucket, prefix, delimiter, marker, maxResults, timeoutMillis);
+      call.succeeded();
+      return batch;
+    } catch (IOException | RuntimeException e) {
+      call.failed(e);
+      throw e;
+    }
+  }
+
+  @Override
+  public Future<ListItemBatch> listAsync(String bucket, String prefix, String delimiter,
+      String marker, int maxResults, long timeoutMillis) {
+    Call call = new Call(Operation.LIST, null);
+    try {
+      return new RecordingFuture<>(
+          raw.listAsync(bucket, prefix, delimiter, marker, maxResults, timeoutMillis), call);
+    } catch (RuntimeException e) {
+      call.failed(e);
+      throw e;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "InstrumentedRawGcsService [raw=" + raw + ", metrics=" + metrics + "]";
+  }
+}
@@ -16,6 +16,7 @@
 
 package com.google.appengine.tools.cloudstorage;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.io.Serializable;
@@ -31,10 +32,12 @@ public class ListOptions implements Serializable {
    * Default settings for including all objects in the result.
    */
   public static final ListOptions DEFAULT = new ListOptions.Builder().build();
+  public static final int DEFAULT_PAGE_SIZE = 100;
   private static final long serialVersionUID = 235084157142037730L;
 
   private final String prefix;
   private final boolean recursive;
+  private final int pageSize;
 
   /**
    * Listing options builder.
@@ -43,6 +46,7 @@ public class ListOptions implements Serializable {
 
     private String prefix = "";
     private boolean recursive = true;
+    private int pageSize = DEFAULT_PAGE_SIZE;
 
     public ListOptions build() {
       return new ListOptions(this);
@@ -57,11 +61,34 @@ public class ListOptions implements Serializable {
       this.recursive = recursive;
       return this;
     }
+
+    /**
+     * Sets the number of items requested from GCS at a time. While the items of one page are
+     * iterated over, the next page is already being fetched. GCS may return fewer items per page
+     * than requested.
+     */
+    public Builder setPageSize(int pageSize) {
+      checkArgument(pageSize > 0, "pageSize must be positive");
+      this.pageSize = pageSize;
+      return this;
+    }
   }
 
   private ListOptions(Builder builder) {
     prefix = builder.prefix;
     recursive = builder.recursive;
+    pageSize = builder.pageSize;
+  }
+
+  /**
+   * Options serialized before the page size was configurable have a page size of 0, and are given
+   * the default one.
+   */
+  private Object readResolve() {
+    if (pageSize > 0) {
+      return this;
+    }
+    return new Builder().setPrefix(prefix).setRecursive(recursive).build();
   }
 
   public String getPrefix() {
@@ -72,9 +99,13 @@ public class ListOptions implements Serializable {
     return recursive;
   }
 
+  public int getPageSize() {
+    return pageSize;
+  }
+
   @Override
   public int hashCode() {
-    return Objects.hash(prefix, recursive);
+    return Objects.hash(prefix, recursive, pageSize);
   }
 
   @Override
@@ -89,11 +120,13 @@ public class ListOptions implements Serializable {
       return false;
     }
     ListOptions other = (ListOptions) obj;
-    return prefix.equals(other.prefix) && recursive == other.recursive;
+    return prefix.equals(other.prefix) && recursive == other.recursive
+        && pageSize == other.pageSize;
   }
 
   @Override
   public String toString() {
-    return "ListOptions [prefix=" + prefix + ", recursive=" + recursive + "]";
+    return "ListOptions [prefix=" + prefix + ", recursive=" + recursive + ", pageSize="
+        + pageSize + "]";
   }
 }
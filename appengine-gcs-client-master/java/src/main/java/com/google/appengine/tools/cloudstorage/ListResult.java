@@ -26,6 +26,8 @@ import java.util.concurrent.Callable;
  * Contains the result of a listing request.
  * Iterating over the items may throw {@code RuntimeException}
  * if a GCS request is needed to fetch more data.
+ * The results are fetched in pages of {@link ListOptions#getPageSize()} items, and the request
+ * for the next page is issued while the items of the current page are iterated over.
  */
 public final class ListResult extends AbstractIterator<ListItem> {
 
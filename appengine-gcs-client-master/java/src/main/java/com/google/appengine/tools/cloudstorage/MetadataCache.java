@@ -0,0 +1,140 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.cloudstorage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, in-process cache of object metadata, used by a {@link GcsService} to answer
+ * {@link GcsService#getMetadata} without a request (see
+ * {@link GcsServiceOptions.Builder#setMetadataCache(MetadataCache)}).
+ *
+ * Metadata is cached for at most {@code ttlMillis} after it was fetched, and at most
+ * {@code maxEntries} objects are cached at once. Writes, copies, compositions and deletes made
+ * through a service using the cache evict the objects they replace; changes made by other clients
+ * may go unnoticed until the entry expires. Objects that were not found are not cached.
+ */
+public final class MetadataCache {
+
+  private final int maxEntries;
+  private final long ttlMillis;
+  private final Cache<GcsFilename, GcsFileMetadata> entries;
+  private final Object lock = new Object();
+  private long generation;
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+
+  /**
+   * @param maxEntries the maximum number of objects whose metadata is cached
+   * @param ttlMillis how long metadata is cached after it was fetched
+   */
+  public MetadataCache(int maxEntries, long ttlMillis) {
+    checkArgument(maxEntries >= 0, "maxEntries must not be negative");
+    checkArgument(ttlMillis >= 0, "ttlMillis must not be negative");
+    this.maxEntries = maxEntries;
+    this.ttlMillis = ttlMillis;
+    entries = CacheBuilder.newBuilder()
+        .maximumSize(maxEntries)
+        .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+        .build();
+  }
+
+  /**
+   * Returns the cached metadata of {@code filename}, or null if there is none.
+   */
+  GcsFileMetadata get(GcsFilename filename) {
+    GcsFileMetadata metadata = entries.getIfPresent(filename);
+    (metadata == null ? missCount : hitCount).incrementAndGet();
+    return metadata;
+  }
+
+  /**
+   * Returns a value to pass to {@link #put} for metadata that is about to be fetched, so that the
+   * result of a request that raced with a write or a delete of the same object is not cached.
+   */
+  long getGeneration() {
+    synchronized (lock) {
+      return generation;
+    }
+  }
+
+  /**
+   * Caches {@code metadata}, unless the cache was invalidated since {@code generation} was
+   * obtained.
+   */
+  void put(GcsFileMetadata metadata, long generation) {
+    synchronized (lock) {
+      if (generation == this.generation) {
+        entries.put(metadata.getFilename(), metadata);
+      }
+    }
+  }
+
+  /**
+   * Evicts {@code filename}, which is being or has been modified.
+   */
+  void invalidate(GcsFilename filename) {
+    synchronized (lock) {
+      generation++;
+      entries.invalidate(filename);
+    }
+  }
+
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  public long getTtlMillis() {
+    return ttlMillis;
+  }
+
+  /**
+   * Returns the number of metadata requests that were answered from the cache.
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * Returns the number of metadata requests that were not answered from the cache.
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * Returns the fraction of metadata requests that were answered from the cache, or 0 if there
+   * were none.
+   */
+  public double getHitRatio() {
+    long hits = hitCount.get();
+    long total = hits + missCount.get();
+    return total == 0 ? 0 : (double) hits / total;
+  }
+
+  @Override
+  public String toString() {
+    return "MetadataCache [maxEntries=" + maxEntries + ", ttlMillis=" + ttlMillis + ", hitCount="
+        + hitCount + ", missCount=" + missCount + "]";
+  }
+}
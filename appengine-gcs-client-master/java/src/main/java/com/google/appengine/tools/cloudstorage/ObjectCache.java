@@ -0,0 +1,253 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.cloudstorage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, in-process cache of the content of small objects, used by a {@link GcsService} to
+ * serve repeated reads of the same object without a request (see
+ * {@link GcsServiceOptions.Builder#setObjectCache(ObjectCache)}).
+ *
+ * An object is cached, together with its metadata, when it is read from its start in a single
+ * request and is no larger than {@code maxObjectBytes}. When the cached objects exceed
+ * {@code maxCachedBytes} in total, the least recently read ones are evicted. Writes, copies,
+ * compositions and deletes made through a service using the cache evict the objects they replace,
+ * and an object whose metadata is found to have a different ETag than the cached copy is evicted
+ * too.
+ *
+ * By default every read of a cached object is sent as a conditional request with the cached ETag,
+ * which costs a response without content while the object is unchanged, so that changes made
+ * without going through the cache are noticed as well. This includes changes made by other
+ * clients and by channels that were deserialized, as those make their requests without the
+ * cache. A cache created not to revalidate serves its objects without any request, and may keep
+ * serving an object that was changed that way until it is evicted.
+ */
+public final class ObjectCache {
+
+  private final long maxCachedBytes;
+  private final int maxObjectBytes;
+  private final boolean revalidate;
+  private final LinkedHashMap<GcsFilename, CachedObject> objects =
+      new LinkedHashMap<>(16, 0.75f, true);
+  private long cachedBytes;
+  private long generation;
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+  private final AtomicLong revalidationCount = new AtomicLong();
+
+  /**
+   * The content and metadata of a cached object.
+   */
+  static final class CachedObject {
+    private final GcsFileMetadata metadata;
+    private final byte[] content;
+
+    CachedObject(GcsFileMetadata metadata, byte[] content) {
+      this.metadata = checkNotNull(metadata, "Null metadata");
+      this.content = checkNotNull(content, "Null content");
+    }
+
+    GcsFileMetadata getMetadata() {
+      return metadata;
+    }
+
+    byte[] getContent() {
+      return content;
+    }
+  }
+
+  /**
+   * Creates a cache that revalidates its objects.
+   *
+   * @param maxCachedBytes the maximum total size of the cached objects
+   * @param maxObjectBytes the size of the largest object that is cached
+   */
+  public ObjectCache(long maxCachedBytes, int maxObjectBytes) {
+    this(maxCachedBytes, maxObjectBytes, true);
+  }
+
+  /**
+   * @param maxCachedBytes the maximum total size of the cached objects
+   * @param maxObjectBytes the size of the largest object that is cached
+   * @param revalidate whether to check that a cached object is unchanged before serving it
+   */
+  public ObjectCache(long maxCachedBytes, int maxObjectBytes, boolean revalidate) {
+    checkArgument(maxCachedBytes >= 0, "maxCachedBytes must not be negative");
+    checkArgument(maxObjectBytes >= 0, "maxObjectBytes must not be negative");
+    this.maxCachedBytes = maxCachedBytes;
+    this.maxObjectBytes = maxObjectBytes;
+    this.revalidate = revalidate;
+  }
+
+  /**
+   * Returns the cached copy of {@code filename}, or null if there is none.
+   */
+  CachedObject get(GcsFilename filename) {
+    synchronized (objects) {
+      return objects.get(filename);
+    }
+  }
+
+  void recordHit() {
+    hitCount.incrementAndGet();
+  }
+
+  void recordMiss() {
+    missCount.incrementAndGet();
+  }
+
+  void recordRevalidation() {
+    revalidationCount.incrementAndGet();
+  }
+
+  /**
+   * Returns a value to pass to {@link #put} for an object that is about to be read, so that the
+   * result of a read that raced with a write or a delete of the same object is not cached.
+   */
+  long getGeneration() {
+    synchronized (objects) {
+      return generation;
+    }
+  }
+
+  boolean isCacheable(long length) {
+    return length <= maxObjectBytes && length <= maxCachedBytes;
+  }
+
+  /**
+   * Caches {@code content} as the content of the object described by {@code metadata}, unless
+   * the cache was invalidated since {@code generation} was obtained.
+   */
+  void put(GcsFileMetadata metadata, byte[] content, long generation) {
+    if (!isCacheable(content.length)) {
+      return;
+    }
+    synchronized (objects) {
+      if (generation != this.generation) {
+        return;
+      }
+      CachedObject previous =
+          objects.put(metadata.getFilename(), new CachedObject(metadata, content));
+      if (previous != null) {
+        cachedBytes -= previous.content.length;
+      }
+      cachedBytes += content.length;
+      Iterator<CachedObject> eldest = objects.values().iterator();
+      while (cachedBytes > maxCachedBytes) {
+        cachedBytes -= eldest.next().content.length;
+        eldest.remove();
+        evictionCount.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Evicts {@code filename}, which is being or has been modified.
+   */
+  void invalidate(GcsFilename filename) {
+    synchronized (objects) {
+      generation++;
+      remove(filename);
+    }
+  }
+
+  /**
+   * Evicts {@code filename} if the cached copy does not have the ETag given by {@code metadata}.
+   */
+  void validate(GcsFilename filename, GcsFileMetadata metadata) {
+    synchronized (objects) {
+      CachedObject object = objects.get(filename);
+      if (object != null && (metadata == null
+          || !Objects.equals(metadata.getEtag(), object.metadata.getEtag()))) {
+        generation++;
+        remove(filename);
+      }
+    }
+  }
+
+  private void remove(GcsFilename filename) {
+    CachedObject removed = objects.remove(filename);
+    if (removed != null) {
+      cachedBytes -= removed.content.length;
+    }
+  }
+
+  public long getMaxCachedBytes() {
+    return maxCachedBytes;
+  }
+
+  public int getMaxObjectBytes() {
+    return maxObjectBytes;
+  }
+
+  public boolean isRevalidate() {
+    return revalidate;
+  }
+
+  /**
+   * Returns the total size of the objects currently cached.
+   */
+  public long getCachedBytes() {
+    synchronized (objects) {
+      return cachedBytes;
+    }
+  }
+
+  /**
+   * Returns the number of reads that were served from the cache.
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * Returns the number of reads that were not served from the cache.
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * Returns the number of conditional requests sent to check that a cached object is unchanged.
+   */
+  public long getRevalidationCount() {
+    return revalidationCount.get();
+  }
+
+  /**
+   * Returns the number of objects that were evicted to make room for others.
+   */
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  @Override
+  public String toString() {
+    return "ObjectCache [maxCachedBytes=" + maxCachedBytes + ", maxObjectBytes=" + maxObjectBytes
+        + ", revalidate=" + revalidate + ", cachedBytes=" + getCachedBytes() + ", hitCount="
+        + hitCount + ", missCount=" + missCount + ", evictionCount=" + evictionCount
+        + ", revalidationCount=" + revalidationCount + "]";
+  }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.cloudstorage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.Environment;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Creates an object out of existing objects of its bucket. Used by
+ * {@link ParallelGcsOutputChannelImpl} and {@link ParallelFileUploader} to assemble their parts.
+ *
+ * A compose request accepts at most {@link #MAX_COMPOSE_COMPONENTS} components, so the components
+ * are composed as a tree: every round composes groups of that many objects into temporary
+ * objects, until a single temporary object holds all of them. The object is then created from it
+ * by a single copy request that also applies its options, so that an existing object is replaced
+ * atomically and the new one is never visible with the default options, even if a request fails.
+ * The temporary objects are named after {@code tempPrefix} and are left to the caller to delete.
+ */
+final class ObjectComposer {
+
+  /**
+   * Maximum number of components accepted by a single compose request.
+   */
+  static final int MAX_COMPOSE_COMPONENTS = 32;
+
+  private final RawGcsService raw;
+  private final GcsFilename filename;
+  private final GcsFileOptions fileOptions;
+  private final RetryParams retryParams;
+  private final String tempPrefix;
+  private final Environment environment = ApiProxy.getCurrentEnvironment();
+  private final List<GcsFilename> tempObjects = new ArrayList<>();
+
+  ObjectComposer(RawGcsService raw, GcsFilename filename, GcsFileOptions fileOptions,
+      RetryParams retryParams, String tempPrefix) {
+    this.raw = checkNotNull(raw, "Null raw");
+    this.filename = checkNotNull(filename, "Null filename");
+    this.fileOptions = fileOptions;
+    this.retryParams = retryParams;
+    this.tempPrefix = checkNotNull(tempPrefix, "Null tempPrefix");
+  }
+
+  @Override
+  public String toString() {
+    return "ObjectComposer [filename=" + filename + ", tempPrefix=" + tempPrefix
+        + ", retryParams=" + retryParams + "]";
+  }
+
+  /**
+   * Returns the temporary objects created so far.
+   */
+  List<GcsFilename> getTempObjects() {
+    return tempObjects;
+  }
+
+  /**
+   * Creates the object from {@code components}, the names of objects in its bucket, in order.
+   *
+   * @param executor runs the compose requests of a round concurrently, or {@code null} to make
+   *     them from the calling thread
+   */
+  void compose(List<String> components, ExecutorService executor) throws IOException {
+    checkArgument(!components.isEmpty(), "No components to compose");
+    for (int round = 0; components.size() > 1; round++) {
+      List<Callable<Void>> composes = new ArrayList<>();
+      List<String> composed = new ArrayList<>();
+      for (int i = 0; i < components.size(); i += MAX_COMPOSE_COMPONENTS) {
+        GcsFilename dest = createTempFilename("r" + round + "-" + composed.size());
+        composes.add(composeTask(
+            components.subList(i, Math.min(components.size(), i + MAX_COMPOSE_COMPONENTS)), dest));
+        composed.add(dest.getObjectName());
+      }
+      runAll(executor, composes);
+      components = composed;
+    }
+    final GcsFilename source = new GcsFilename(filename.getBucketName(), components.get(0));
+    runWithRetries(new Callable<Void>() {
+      @Override
+      public Void call() throws IOException {
+        long timeout = retryParams.getRequestTimeoutMillisForCurrentAttempt();
+        raw.copyObject(source, filename, fileOptions, timeout);
+        return null;
+      }
+    });
+  }
+
+  private GcsFilename createTempFilename(String suffix) {
+    GcsFilename temp = new GcsFilename(filename.getBucketName(), tempPrefix + suffix);
+    tempObjects.add(temp);
+    return temp;
+  }
+
+  private Callable<Void> composeTask(List<String> components, final GcsFilename dest) {
+    final List<String> source = ImmutableList.copyOf(components);
+    return new Callable<Void>() {
+      @Override
+      public Void call() throws IOException {
+        runWithRetries(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            long timeout = retryParams.getRequestTimeoutMillisForCurrentAttempt();
+            raw.composeObject(source, dest, timeout);
+            return null;
+          }
+        });
+        return null;
+      }
+    };
+  }
+
+  /**
+   * Runs {@code tasks} on {@code executor}, with the environment of the thread that created this
+   * composer, and waits for all of them. If one fails the others are cancelled. Without an
+   * executor the tasks are run one after the other by the calling thread.
+   */
+  void runAll(ExecutorService executor, List<Callable<Void>> tasks) throws IOException {
+    if (executor == null) {
+      for (Callable<Void> task : tasks) {
+        try {
+          task.call();
+        } catch (Exception e) {
+          Throwables.propagateIfInstanceOf(e, IOException.class);
+          throw Throwables.propagate(e);
+        }
+      }
+      return;
+    }
+    List<Future<Void>> futures = new ArrayList<>(tasks.size());
+    try {
+      for (final Callable<Void> task : tasks) {
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            boolean setEnvironment =
+                environment != null && ApiProxy.getCurrentEnvironment() == null;
+            if (setEnvironment) {
+              ApiProxy.setEnvironmentForCurrentThread(environment);
+            }
+            try {
+              return task.call();
+            } finally {
+              if (setEnvironment) {
+                ApiProxy.clearEnvironmentForCurrentThread();
+              }
+            }
+          }
+        }));
+      }
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(this + ": Interrupted");
+    } catch (ExecutionException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+      throw Throwables.propagate(e.getCause());
+    } finally {
+      for (Future<Void> future : futures) {
+        future.cancel(true);
+      }
+    }
+  }
+
+  private <V> V runWithRetries(Callable<V> callable) throws IOException {
+    try {
+      return RetryHelper.runWithRetries(callable, retryParams, GcsServiceImpl.exceptionHandler);
+    } catch (RetryInterruptedException ex) {
+      throw new ClosedByInterruptException();
+    } catch (NonRetriableException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.cloudstorage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Uploads a local file as an object using up to {@code maxConcurrentRequests} concurrent requests.
+ * Used by {@link GcsServiceImpl} to implement
+ * {@link GcsService#createOrReplace(GcsFilename, GcsFileOptions, FileChannel, int)}.
+ *
+ * The file is split into parts of equal size, so that all of them can be uploaded at the same
+ * time, but no part is larger than {@link RawGcsService#getMaxWriteSizeByte()} or
+ * {@link #MAX_BUFFERED_PART_BYTES}, as each part in flight is buffered in memory. Each part is
+ * uploaded with a single request to a temporary object next to the final one. The parts are then
+ * composed by an {@link ObjectComposer}, concurrently within each of its rounds, which replaces
+ * an existing object only once all of them were composed. The temporary objects are deleted
+ * afterwards, or as soon as the upload failed.
+ *
+ * {@link RawGcsService#putObject} is synchronous, so the requests are made from a pool of
+ * threads, created by {@link ThreadManager#currentRequestThreadFactory()} when running in an App
+ * Engine request.
+ */
+final class ParallelFileUploader {
+
+  private static final Logger log = Logger.getLogger(ParallelFileUploader.class.getName());
+
+  static final int MAX_BUFFERED_PART_BYTES = 8 * 1024 * 1024;
+
+  private final RawGcsService raw;
+  private final GcsFilename filename;
+  private final GcsFileOptions fileOptions;
+  private final RetryParams retryParams;
+  private final ByteBufferPool bufferPool;
+  private final int maxConcurrentRequests;
+  private final String tempPrefix;
+  private final List<GcsFilename> tempObjects = new ArrayList<>();
+
+  ParallelFileUploader(RawGcsService raw, GcsFilename filename, GcsFileOptions fileOptions,
+      RetryParams retryParams, ByteBufferPool bufferPool, int maxConcurrentRequests) {
+    checkArgument(maxConcurrentRequests >= 1,
+        "Must allow at least one concurrent request. Was: " + maxConcurrentRequests);
+    this.raw = checkNotNull(raw, "Null raw");
+    this.filename = checkNotNull(filename, "Null filename");
+    this.fileOptions = fileOptions;
+    this.retryParams = retryParams;
+    this.bufferPool = bufferPool;
+    this.maxConcurrentRequests = maxConcurrentRequests;
+    this.tempPrefix = filename.getObjectName() + ".part-" + UUID.randomUUID() + "-";
+  }
+
+  @Override
+  public String toString() {
+    return "ParallelFileUploader [filename=" + filename + ", maxConcurrentRequests="
+        + maxConcurrentRequests + ", retryParams=" + retryParams + "]";
+  }
+
+  /**
+   * Uploads the content of {@code src} from position 0 to its size. The position of {@code src}
+   * is not modified.
+   */
+  void upload(FileChannel src) throws IOException {
+    long size = src.size();
+    int partSize = partSize(size);
+    if (size <= partSize) {
+      putObject(src, 0, (int) size, filename, fileOptions);
+      return;
+    }
+    int partCount = (int) ((size + partSize - 1) / partSize);
+    ExecutorService executor = Executors.newFixedThreadPool(
+        Math.min(maxConcurrentRequests, partCount), getThreadFactory());
+    ObjectComposer composer =
+        new ObjectComposer(raw, filename, fileOptions, retryParams, tempPrefix);
+    try {
+      List<Callable<Void>> uploads = new ArrayList<>(partCount);
+      List<String> parts = new ArrayList<>(partCount);
+      for (int i = 0; i < partCount; i++) {
+        long position = (long) i * partSize;
+        GcsFilename part = createTempFilename("p" + i);
+        uploads.add(putObjectTask(src, position, (int) Math.min(partSize, size - position), part));
+        parts.add(part.getObjectName());
+      }
+      composer.runAll(executor, uploads);
+      composer.compose(parts, executor);
+    } finally {
+      executor.shutdownNow();
+      tempObjects.addAll(composer.getTempObjects());
+      deleteTempObjects();
+    }
+  }
+
+  private int partSize(long size) {
+    long perRequest = (size + maxConcurrentRequests - 1) / maxConcurrentRequests;
+    int maxPartSize = Math.min(raw.getMaxWriteSizeByte(), MAX_BUFFERED_PART_BYTES);
+    return (int) Math.min(maxPartSize, Math.max(raw.getChunkSizeBytes(), perRequest));
+  }
+
+  private static ThreadFactory getThreadFactory() {
+    ThreadFactory threadFactory = null;
+    try {
+      threadFactory = ThreadManager.currentRequestThreadFactory();
+    } catch (Exception e) {
+      // Not running in an App Engine request
+    }
+    return threadFactory != null ? threadFactory : new ThreadFactoryBuilder()
+        .setDaemon(true).setNameFormat("ParallelFileUploader-%d").build();
+  }
+
+  private GcsFilename createTempFilename(String suffix) {
+    GcsFilename temp = new GcsFilename(filename.getBucketName(), tempPrefix + suffix);
+    tempObjects.add(temp);
+    return temp;
+  }
+
+  private Callable<Void> putObjectTask(final FileChannel src, final long position,
+      final int length, final GcsFilename dest) {
+    return new Callable<Void>() {
+      @Override
+      public Void call() throws IOException {
+        putObject(src, position, length, dest, GcsFileOptions.getDefaultInstance());
+        return null;
+      }
+    };
+  }
+
+  private void putObject(FileChannel src, long position, int length, final GcsFilename dest,
+      final GcsFileOptions options) throws IOException {
+    final ByteBuffer content =
+        bufferPool == null ? ByteBuffer.allocate(length) : bufferPool.acquire(length);
+    try {
+      content.limit(length);
+      while (content.hasRemaining()) {
+        if (src.read(content, position + content.position()) < 0) {
+          throw new EOFException(this + ": File ended at " + (position + content.position())
+              + " while reading " + length + " bytes at " + position);
+        }
+      }
+      content.flip();
+      runWithRetries(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          long timeout = retryParams.getRequestTimeoutMillisForCurrentAttempt();
+          raw.putObject(dest, options, content.slice(), timeout);
+          return null;
+        }
+      });
+    } finally {
+      if (bufferPool != null) {
+        bufferPool.release(content);
+      }
+    }
+  }
+
+  /**
+   * Deletes the temporary objects. Failures are only logged, as they do not affect the object
+   * itself.
+   */
+  private void deleteTempObjects() {
+    if (tempObjects.isEmpty()) {
+      return;
+    }
+    try {
+      List<Future<Boolean>> results = raw.deleteObjects(tempObjects, maxConcurrentRequests,
+          retryParams.getRequestTimeoutMillisForCurrentAttempt());
+      for (int i = 0; i < results.size(); i++) {
+        try {
+          results.get(i).get();
+        } catch (ExecutionException e) {
+          log.log(Level.WARNING,
+              this + ": Failed to delete temporary object " + tempObjects.get(i), e.getCause());
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      log.log(Level.WARNING, this + ": Failed to delete temporary objects", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      log.log(Level.WARNING, this + ": Interrupted deleting temporary objects", e);
+    }
+    tempObjects.clear();
+  }
+
+  private <V> V runWithRetries(Callable<V> callable) throws IOException {
+    try {
+      return RetryHelper.runWithRetries(callable, retryParams, GcsServiceImpl.exceptionHandler);
+    } catch (RetryInterruptedException ex) {
+      throw new ClosedByInterruptException();
+    } catch (NonRetriableException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+      throw e;
+    }
+  }
+}
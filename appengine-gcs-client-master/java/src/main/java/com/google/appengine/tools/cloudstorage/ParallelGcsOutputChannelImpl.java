@@ -0,0 +1,286 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.cloudstorage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.appengine.tools.cloudstorage.RawGcsService.RawGcsCreationToken;
+import com.google.common.base.Throwables;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link GcsOutputChannel} that splits the written data into fixed size parts, uploads each part
+ * to a temporary object and composes them into the requested object on {@link #close()}.
+ *
+ * Every part is written by its own {@link GcsOutputChannelImpl} and consists of exactly one
+ * buffer, so the upload of a part is started as soon as its buffer is full and the writer can move
+ * on to the next part without waiting for the response. Up to {@code maxOutstandingParts} parts
+ * may be in flight at the same time; once this limit is reached the oldest part is finalized
+ * (blocking) before a new one is started. This allows the throughput of a single writer to scale
+ * with the number of concurrent requests rather than being bound by the latency of each request.
+ *
+ * The temporary parts are created next to the final object and are deleted once it was composed
+ * by an {@link ObjectComposer}, which replaces an existing object only once all of them were
+ * composed. If the channel is never closed they are left behind, as is the case for the data of
+ * an unfinished {@link GcsOutputChannelImpl}.
+ */
+final class ParallelGcsOutputChannelImpl implements GcsOutputChannel {
+
+  private static final long serialVersionUID = -3385208458012519036L;
+  private static final Logger log = Logger.getLogger(ParallelGcsOutputChannelImpl.class.getName());
+
+  private transient Object lock = new Object();
+  private transient RawGcsService raw;
+  private transient ByteBufferPool bufferPool;
+  private final GcsFilename filename;
+  private final GcsFileOptions fileOptions;
+  private final RetryParams retryParams;
+  private final Integer requestedBufferSize;
+  private final Map<String, String> headers;
+  private final int maxOutstandingParts;
+  private final String partPrefix;
+  private final List<String> finishedParts = new ArrayList<>();
+  private final LinkedList<GcsOutputChannelImpl> openParts = new LinkedList<>();
+  private int partCount;
+  private int currentPartBytes;
+  private boolean open = true;
+
+  ParallelGcsOutputChannelImpl(RawGcsService raw, GcsFilename filename,
+      GcsFileOptions fileOptions, RetryParams retryParams, Integer requestedBufferSize,
+      Map<String, String> headers, ByteBufferPool bufferPool, int maxOutstandingParts) {
+    checkArgument(maxOutstandingParts >= 1,
+        "Must allow at least one outstanding part. Was: " + maxOutstandingParts);
+    this.raw = checkNotNull(raw, "Null raw");
+    this.bufferPool = bufferPool;
+    this.filename = checkNotNull(filename, "Null filename");
+    this.fileOptions = fileOptions;
+    this.retryParams = retryParams;
+    this.requestedBufferSize = requestedBufferSize;
+    this.headers = headers;
+    this.maxOutstandingParts = maxOutstandingParts;
+    this.partPrefix = filename.getObjectName() + ".part-" + UUID.randomUUID() + "-";
+  }
+
+  private void readObject(ObjectInputStream aInputStream)
+      throws ClassNotFoundException, IOException {
+    aInputStream.defaultReadObject();
+    lock = new Object();
+    raw = GcsServiceFactory.createRawGcsService(headers);
+  }
+
+  /**
+   * Parts do not serialize data that is still in flight, so it is waited for first.
+   */
+  private void writeObject(ObjectOutputStream aOutputStream) throws IOException {
+    synchronized (lock) {
+      for (GcsOutputChannelImpl part : openParts) {
+        part.waitForOutstandingWrites();
+      }
+      aOutputStream.defaultWriteObject();
+    }
+  }
+
+  @Override
+  public GcsFilename getFilename() {
+    return filename;
+  }
+
+  /**
+   * Returns the size of a single part. Up to {@code maxOutstandingParts} times as much may be held
+   * in memory while the parts are being uploaded.
+   */
+  @Override
+  public int getBufferSizeBytes() {
+    return GcsOutputChannelImpl.getBufferSizeBytes(raw, requestedBufferSize);
+  }
+
+  @Override
+  public boolean isOpen() {
+    synchronized (lock) {
+      return open;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "ParallelGcsOutputChannelImpl [filename=" + filename + ", partPrefix=" + partPrefix
+        + ", partCount=" + partCount + ", openParts=" + openParts.size() + ", retryParams="
+        + retryParams + "]";
+  }
+
+  @Override
+  public int write(ByteBuffer in) throws IOException {
+    int written = in.remaining();
+    synchronized (lock) {
+      if (!isOpen()) {
+        throw new ClosedChannelException();
+      }
+      int partSize = getBufferSizeBytes();
+      while (in.hasRemaining()) {
+        GcsOutputChannelImpl part = openParts.peekLast();
+        if (part == null || currentPartBytes == partSize) {
+          part = startPart();
+        }
+        int toWrite = Math.min(in.remaining(), partSize - currentPartBytes);
+        int oldLimit = in.limit();
+        in.limit(in.position() + toWrite);
+        part.write(in);
+        in.limit(oldLimit);
+        currentPartBytes += toWrite;
+      }
+    }
+    return written;
+  }
+
+  /**
+   * Begins the upload of the next part, finalizing the oldest outstanding part first if needed.
+   */
+  private GcsOutputChannelImpl startPart() throws IOException {
+    while (openParts.size() >= maxOutstandingParts) {
+      finishOldestPart();
+    }
+    final GcsFilename partName =
+        new GcsFilename(filename.getBucketName(), partPrefix + partCount);
+    RawGcsCreationToken token = runWithRetries(new Callable<RawGcsCreationToken>() {
+      @Override
+      public RawGcsCreationToken call() throws IOException {
+        long timeout = retryParams.getRequestTimeoutMillisForCurrentAttempt();
+        return raw.beginObjectCreation(partName, GcsFileOptions.getDefaultInstance(), timeout);
+      }
+    });
+    GcsOutputChannelImpl part =
+        new GcsOutputChannelImpl(raw, token, retryParams, requestedBufferSize, headers, bufferPool);
+    openParts.addLast(part);
+    partCount++;
+    currentPartBytes = 0;
+    return part;
+  }
+
+  private void finishOldestPart() throws IOException {
+    GcsOutputChannelImpl part = openParts.getFirst();
+    part.close();
+    openParts.removeFirst();
+    finishedParts.add(part.getFilename().getObjectName());
+  }
+
+  @Override
+  public void waitForOutstandingWrites() throws ClosedByInterruptException, IOException {
+    synchronized (lock) {
+      for (GcsOutputChannelImpl part : openParts) {
+        part.waitForOutstandingWrites();
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (lock) {
+      if (!isOpen()) {
+        return;
+      }
+      while (!openParts.isEmpty()) {
+        finishOldestPart();
+      }
+      assemble();
+      deleteParts();
+      open = false;
+    }
+  }
+
+  /**
+   * Creates the final object out of the finished parts, through temporary objects that are
+   * deleted afterwards. The parts themselves are kept until the object was created, so that a
+   * failed close can be retried.
+   */
+  private void assemble() throws IOException {
+    if (finishedParts.isEmpty()) {
+      runWithRetries(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          long timeout = retryParams.getRequestTimeoutMillisForCurrentAttempt();
+          raw.putObject(filename, fileOptions, ByteBuffer.allocate(0), timeout);
+          return null;
+        }
+      });
+      return;
+    }
+    ObjectComposer composer =
+        new ObjectComposer(raw, filename, fileOptions, retryParams, partPrefix);
+    try {
+      composer.compose(finishedParts, null);
+    } finally {
+      delete(composer.getTempObjects());
+    }
+  }
+
+  /**
+   * Deletes the temporary parts. Failures are only logged, as the object itself is complete.
+   */
+  private void deleteParts() {
+    List<GcsFilename> parts = new ArrayList<>(finishedParts.size());
+    for (String part : finishedParts) {
+      parts.add(new GcsFilename(filename.getBucketName(), part));
+    }
+    delete(parts);
+    finishedParts.clear();
+  }
+
+  /**
+   * Deletes temporary objects. Failures are only logged, as they do not affect the object itself.
+   */
+  private void delete(List<GcsFilename> tempObjects) {
+    for (final GcsFilename tempObject : tempObjects) {
+      try {
+        runWithRetries(new Callable<Boolean>() {
+          @Override
+          public Boolean call() throws IOException {
+            long timeout = retryParams.getRequestTimeoutMillisForCurrentAttempt();
+            return raw.deleteObject(tempObject, timeout);
+          }
+        });
+      } catch (IOException | RetryHelperException e) {
+        log.log(Level.WARNING, this + ": Failed to delete temporary object " + tempObject, e);
+      }
+    }
+  }
+
+  private <V> V runWithRetries(Callable<V> callable) throws IOException {
+    try {
+      return RetryHelper.runWithRetries(callable, retryParams, GcsServiceImpl.exceptionHandler);
+    } catch (RetryInterruptedException ex) {
+      throw new ClosedByInterruptException();
+    } catch (NonRetriableException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.cloudstorage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Throwables;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads a region of an object using up to {@code maxConcurrentRequests} concurrent ranged
+ * requests. Used by {@link GcsServiceImpl} to implement the {@code readFully} methods.
+ *
+ * The region is split into ranges of equal size, so that all of the requests can be in flight at
+ * the same time, but no range is larger than {@link RawGcsService#getMaxReadSizeBytes()}. When
+ * reading into a {@link ByteBuffer} every range is read directly into its part of the destination.
+ * When reading into a {@link FileChannel} ranges are additionally limited to
+ * {@link #MAX_BUFFERED_RANGE_BYTES}, as each range in flight is buffered in memory until it is
+ * written to the file.
+ */
+final class ParallelRangeReader {
+
+  private static final Logger log = Logger.getLogger(ParallelRangeReader.class.getName());
+
+  static final int MAX_BUFFERED_RANGE_BYTES = 8 * 1024 * 1024;
+
+  private final RawGcsService raw;
+  private final GcsFilename filename;
+  private final RetryParams retryParams;
+  private final ByteBufferPool bufferPool;
+  private final int maxConcurrentRequests;
+  private long length;
+
+  /**
+   * A part of the region that was requested and is read into {@code buffer}, whose position 0
+   * corresponds to {@code offset} in the object.
+   */
+  private final class Range {
+    private final long offset;
+    private final ByteBuffer buffer;
+    private Future<GcsFileMetadata> fetch;
+
+    Range(long offset, ByteBuffer buffer) {
+      this.offset = offset;
+      this.buffer = buffer;
+      fetch();
+    }
+
+    /**
+     * (Re)issues the request for the part of this range that was not received yet.
+     */
+    void fetch() {
+      long requestTimeout = retryParams.getRequestTimeoutMillisForCurrentAttempt();
+      fetch = raw.readObjectAsync(buffer, filename, offset + buffer.position(), requestTimeout);
+    }
+
+    @Override
+    public String toString() {
+      return "Range [offset=" + offset + ", buffer=" + buffer + ", fetch=" + fetch + "]";
+    }
+  }
+
+  ParallelRangeReader(RawGcsService raw, GcsFilename filename, RetryParams retryParams,
+      ByteBufferPool bufferPool, int maxConcurrentRequests) {
+    checkArgument(maxConcurrentRequests >= 1,
+        "Must allow at least one concurrent request. Was: " + maxConcurrentRequests);
+    this.raw = checkNotNull(raw, "Null raw");
+    this.filename = checkNotNull(filename, "Null filename");
+    this.retryParams = retryParams;
+    this.bufferPool = bufferPool;
+    this.maxConcurrentRequests = maxConcurrentRequests;
+  }
+
+  @Override
+  public String toString() {
+    return "ParallelRangeReader [filename=" + filename + ", length=" + length
+        + ", maxConcurrentRequests=" + maxConcurrentRequests + ", retryParams=" + retryParams
+        + "]";
+  }
+
+  /**
+   * Reads the object starting at {@code startPosition} into {@code dst} until it is full or the
+   * end of the object is reached.
+   *
+   * @return the number of bytes read, or -1 if {@code startPosition} is at or past the end of the
+   *     object
+   */
+  int read(long startPosition, ByteBuffer dst) throws IOException {
+    checkArgument(startPosition >= 0, "Start position cannot be negative");
+    checkArgument(dst.remaining() > 0, "Requested to read data into a full buffer");
+    fetchLength();
+    if (startPosition >= length) {
+      return -1;
+    }
+    int total = (int) Math.min(dst.remaining(), length - startPosition);
+    int rangeSize = rangeSize(total, raw.getMaxReadSizeBytes());
+    Deque<Range> inFlight = new ArrayDeque<>();
+    int next = 0;
+    try {
+      while (next < total || !inFlight.isEmpty()) {
+        while (next < total && inFlight.size() < maxConcurrentRequests) {
+          int size = Math.min(rangeSize, total - next);
+          ByteBuffer view = dst.duplicate();
+          view.position(dst.position() + next);
+          view.limit(dst.position() + next + size);
+          inFlight.addLast(new Range(startPosition + next, view.slice()));
+          next += size;
+        }
+        waitForRange(inFlight.removeFirst());
+      }
+    } finally {
+      cancel(inFlight);
+    }
+    dst.position(dst.position() + total);
+    return total;
+  }
+
+  /**
+   * Writes the whole object to {@code dst}, the byte at offset {@code i} of the object to position
+   * {@code position + i} of the file. The position of {@code dst} is not modified.
+   *
+   * @return the length of the object
+   */
+  long read(FileChannel dst, long position) throws IOException {
+    checkArgument(position >= 0, "Position cannot be negative");
+    fetchLength();
+    int rangeSize =
+        rangeSize(length, Math.min(raw.getMaxReadSizeBytes(), MAX_BUFFERED_RANGE_BYTES));
+    Deque<Range> inFlight = new ArrayDeque<>();
+    long next = 0;
+    try {
+      while (next < length || !inFlight.isEmpty()) {
+        while (next < length && inFlight.size() < maxConcurrentRequests) {
+          int size = (int) Math.min(rangeSize, length - next);
+          inFlight.addLast(new Range(next, allocate(size)));
+          next += size;
+        }
+        Range range = inFlight.removeFirst();
+        waitForRange(range);
+        range.buffer.flip();
+        while (range.buffer.hasRemaining()) {
+          dst.write(range.buffer, position + range.offset + range.buffer.position());
+        }
+        if (bufferPool != null) {
+          bufferPool.release(range.buffer);
+        }
+      }
+    } finally {
+      cancel(inFlight);
+    }
+    return length;
+  }
+
+  private int rangeSize(long total, int maxRangeSize) {
+    long perRequest = (total + maxConcurrentRequests - 1) / maxConcurrentRequests;
+    return (int) Math.min(maxRangeSize, Math.max(raw.getChunkSizeBytes(), perRequest));
+  }
+
+  private ByteBuffer allocate(int size) {
+    return bufferPool == null ? ByteBuffer.allocate(size) : bufferPool.acquire(size);
+  }
+
+  /**
+   * Requests that are still in flight after a failure may still write to their buffers, so these
+   * are neither reused nor returned to the pool.
+   */
+  private static void cancel(Deque<Range> inFlight) {
+    for (Range range : inFlight) {
+      range.fetch.cancel(true);
+    }
+  }
+
+  private void fetchLength() throws IOException {
+    GcsFileMetadata metadata = runWithRetries(new Callable<GcsFileMetadata>() {
+      @Override
+      public GcsFileMetadata call() throws IOException {
+        long timeout = retryParams.getRequestTimeoutMillisForCurrentAttempt();
+        return raw.getObjectMetadata(filename, timeout);
+      }
+    });
+    if (metadata == null) {
+      throw new FileNotFoundException(this + ": No such file: " + filename);
+    }
+    length = metadata.getLength();
+  }
+
+  /**
+   * Waits until {@code range} was read completely, reissuing the request for the remaining part
+   * when it failed or returned less than requested.
+   */
+  private void waitForRange(final Range range) throws IOException {
+    while (range.buffer.hasRemaining()) {
+      int before = range.buffer.position();
+      GcsFileMetadata metadata = runWithRetries(new Callable<GcsFileMetadata>() {
+        @Override
+        public GcsFileMetadata call() throws IOException, InterruptedException {
+          try {
+            return range.fetch.get();
+          } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof BadRangeException) {
+              return null;
+            } else if (cause instanceof FileNotFoundException) {
+              FileNotFoundException toThrow = new FileNotFoundException(e.getMessage());
+              toThrow.initCause(e);
+              throw toThrow;
+            } else if (cause instanceof IOException) {
+              log.log(Level.WARNING,
+                  ParallelRangeReader.this + ": IOException fetching " + range, e);
+              range.fetch();
+              throw new IOException(
+                  ParallelRangeReader.this + ": Fetch failed, fetching again", cause);
+            } else {
+              throw new RuntimeException(
+                  ParallelRangeReader.this + ": Unexpected cause of ExecutionException", cause);
+            }
+          }
+        }
+      });
+      if (metadata == null || metadata.getLength() != length) {
+        throw new IOException("Contents of file: " + filename + " changed while being read.");
+      }
+      if (range.buffer.hasRemaining()) {
+        if (range.buffer.position() == before) {
+          throw new IOException(this + ": No progress reading " + range);
+        }
+        range.fetch();
+      }
+    }
+  }
+
+  private <V> V runWithRetries(Callable<V> callable) throws IOException {
+    try {
+      return RetryHelper.runWithRetries(callable, retryParams, GcsServiceImpl.exceptionHandler);
+    } catch (RetryInterruptedException ex) {
+      throw new ClosedByInterruptException();
+    } catch (NonRetriableException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+      throw e;
+    }
+  }
+}
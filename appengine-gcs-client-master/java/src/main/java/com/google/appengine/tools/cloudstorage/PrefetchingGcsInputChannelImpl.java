@@ -28,6 +28,8 @@ import java.io.ObjectInputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
@@ -39,6 +41,8 @@ import java.util.logging.Logger;
  * An implementation of {@link GcsInputChannel} than attempts to load the data into memory
  * before it is actually needed to avoid blocking the calling thread.
  *
+ * Up to {@code readAheadBlocks} consecutive blocks are requested concurrently. Blocks are handed
+ * to the reader strictly in file order, regardless of the order in which the requests complete.
  */
 final class PrefetchingGcsInputChannelImpl implements GcsInputChannel {
 
@@ -51,8 +55,11 @@ final class PrefetchingGcsInputChannelImpl implements GcsInputChannel {
 
   private transient Object lock = new Object();
   private transient RawGcsService raw;
+  /** May be null, in which case block buffers are allocated and left to the garbage collector. */
+  private transient ByteBufferPool bufferPool;
   private final GcsFilename filename;
   private final int blockSizeBytes;
+  private int readAheadBlocks;
 
   private boolean closed = false;
   private transient boolean eofHit = false;
@@ -64,28 +71,69 @@ final class PrefetchingGcsInputChannelImpl implements GcsInputChannel {
    */
   private long readPosition;
   private long length = -1;
+  /**
+   * The offset of the first byte that has not been requested yet.
+   */
   private transient long fetchPosition;
-  private transient Future<GcsFileMetadata> pendingFetch = null;
+  private transient Deque<PendingBlock> pendingBlocks = new ArrayDeque<>();
   private transient ByteBuffer current = EMPTY_BUFFER;
-  private transient ByteBuffer next;
 
   private final RetryParams retryParams;
   private final Map<String, String> headers;
 
 
+  /**
+   * A block that was requested but was not yet handed to the reader.
+   */
+  private final class PendingBlock {
+    private final long offset;
+    private final ByteBuffer buffer;
+    private Future<GcsFileMetadata> fetch;
+
+    PendingBlock(long offset) {
+      this.offset = offset;
+      this.buffer = allocateBuffer();
+      fetch();
+    }
+
+    /**
+     * (Re)issues the request for this block, discarding any partially received content.
+     */
+    void fetch() {
+      buffer.clear();
+      long requestTimeout = retryParams.getRequestTimeoutMillisForCurrentAttempt();
+      fetch = raw.readObjectAsync(buffer, filename, offset, requestTimeout);
+    }
+
+    @Override
+    public String toString() {
+      return "PendingBlock [offset=" + offset + ", fetch=" + fetch + "]";
+    }
+  }
+
   PrefetchingGcsInputChannelImpl(RawGcsService raw, GcsFilename filename, int blockSizeBytes,
       long startPosition, RetryParams retryParams, Map<String, String> headers) {
+    this(raw, filename, blockSizeBytes, 1, startPosition, retryParams, headers, null);
+  }
+
+  PrefetchingGcsInputChannelImpl(RawGcsService raw, GcsFilename filename, int blockSizeBytes,
+      int readAheadBlocks, long startPosition, RetryParams retryParams,
+      Map<String, String> headers, ByteBufferPool bufferPool) {
     this.raw = checkNotNull(raw, "Null raw");
+    this.bufferPool = bufferPool;
     this.filename = checkNotNull(filename, "Null filename");
     checkArgument(
         blockSizeBytes >= 1024, "Block size must be at least 1kb. Was: " + blockSizeBytes);
+    checkArgument(
+        readAheadBlocks >= 1, "Must read ahead at least one block. Was: " + readAheadBlocks);
     this.blockSizeBytes = blockSizeBytes;
+    this.readAheadBlocks = readAheadBlocks;
     this.retryParams = retryParams;
     this.headers = headers;
     checkArgument(startPosition >= 0, "Start position cannot be negitive");
     this.readPosition = startPosition;
     this.fetchPosition = startPosition;
-    requestBlock();
+    requestBlocks();
   }
 
   private void readObject(ObjectInputStream aInputStream)
@@ -94,25 +142,63 @@ final class PrefetchingGcsInputChannelImpl implements GcsInputChannel {
     lock = new Object();
     raw = GcsServiceFactory.createRawGcsService(headers);
     fetchPosition = readPosition;
+    pendingBlocks = new ArrayDeque<>();
     current = EMPTY_BUFFER;
     eofHit = length != -1 && readPosition >= length;
+    if (readAheadBlocks < 1) {
+      readAheadBlocks = 1;
+    }
+  }
+
+  private ByteBuffer allocateBuffer() {
+    return bufferPool == null ? ByteBuffer.allocate(blockSizeBytes)
+        : bufferPool.acquire(blockSizeBytes);
   }
 
   /**
-   * Allocates a new next buffer and pending fetch.
+   * Returns the current block's buffer to the pool once it has been consumed.
    */
-  private void requestBlock() {
-    next = ByteBuffer.allocate(blockSizeBytes);
-    long requestTimeout = retryParams.getRequestTimeoutMillisForCurrentAttempt();
-    pendingFetch = raw.readObjectAsync(next, filename, fetchPosition, requestTimeout);
+  private void releaseCurrent() {
+    if (bufferPool != null && current != EMPTY_BUFFER) {
+      bufferPool.release(current);
+    }
+    current = EMPTY_BUFFER;
+  }
+
+  /**
+   * Drops all pending blocks. Only the buffers of completed requests are returned to the pool, as
+   * a request that is still in flight may write to its buffer at any time.
+   */
+  private void discardPendingBlocks() {
+    if (bufferPool != null) {
+      for (PendingBlock block : pendingBlocks) {
+        if (block.fetch.isDone()) {
+          bufferPool.release(block.buffer);
+        }
+      }
+    }
+    pendingBlocks.clear();
+  }
+
+  /**
+   * Requests the blocks following the ones already pending until {@code readAheadBlocks} are
+   * outstanding. While the length of the file is unknown only a single block is requested, so that
+   * no requests are issued past the end of a small file.
+   */
+  private void requestBlocks() {
+    while (pendingBlocks.size() < readAheadBlocks
+        && (length == -1 ? pendingBlocks.isEmpty() : fetchPosition < length)) {
+      pendingBlocks.addLast(new PendingBlock(fetchPosition));
+      fetchPosition += blockSizeBytes;
+    }
   }
 
   @Override
   public String toString() {
     return "PrefetchingGcsInputChannelImpl [filename=" + filename + ", blockSizeBytes="
-        + blockSizeBytes + ", closed=" + closed + ", eofHit=" + eofHit + ", length=" + length
-        + ", fetchPosition=" + fetchPosition + ", pendingFetch=" + pendingFetch + ", retryParams="
-        + retryParams + "]";
+        + blockSizeBytes + ", readAheadBlocks=" + readAheadBlocks + ", closed=" + closed
+        + ", eofHit=" + eofHit + ", length=" + length + ", fetchPosition=" + fetchPosition
+        + ", pendingBlocks=" + pendingBlocks + ", retryParams=" + retryParams + "]";
   }
 
   @Override
@@ -126,6 +212,8 @@ final class PrefetchingGcsInputChannelImpl implements GcsInputChannel {
   public void close() {
     synchronized (lock) {
       closed = true;
+      releaseCurrent();
+      discardPendingBlocks();
     }
   }
 
@@ -146,24 +234,25 @@ final class PrefetchingGcsInputChannelImpl implements GcsInputChannel {
   }
 
   private void waitForFetch() throws IOException, InterruptedException {
-    Preconditions.checkState(pendingFetch != null, "%s: no fetch pending", this);
+    PendingBlock block = pendingBlocks.peekFirst();
+    Preconditions.checkState(block != null, "%s: no fetch pending", this);
     Preconditions.checkState(!current.hasRemaining(), "%s: current has remaining", this);
     try {
-      GcsFileMetadata gcsFileMetadata = pendingFetch.get();
-      flipToNextBlockAndPrefetch(gcsFileMetadata.getLength());
+      GcsFileMetadata gcsFileMetadata = block.fetch.get();
+      pendingBlocks.removeFirst();
+      flipToBlockAndPrefetch(block, gcsFileMetadata.getLength());
     } catch (ExecutionException e) {
       if (e.getCause() instanceof BadRangeException) {
         eofHit = true;
-        current = EMPTY_BUFFER;
-        next = null;
-        pendingFetch = null;
+        releaseCurrent();
+        discardPendingBlocks();
       } else if (e.getCause() instanceof FileNotFoundException) {
         FileNotFoundException toThrow = new FileNotFoundException(e.getMessage());
         toThrow.initCause(e);
         throw toThrow;
       } else if (e.getCause() instanceof IOException) {
         log.log(Level.WARNING, this + ": IOException fetching block", e);
-        requestBlock();
+        block.fetch();
         throw new IOException(this + ": Prefetch failed, prefetching again", e.getCause());
       } else {
         throw new RuntimeException(this + ": Unknown cause of ExecutionException", e.getCause());
@@ -171,27 +260,22 @@ final class PrefetchingGcsInputChannelImpl implements GcsInputChannel {
     }
   }
 
-  private void flipToNextBlockAndPrefetch(long contentLength) {
-    Preconditions.checkState(next != null, "%s: no next", this);
-    current = next;
+  private void flipToBlockAndPrefetch(PendingBlock block, long contentLength) {
+    releaseCurrent();
+    current = block.buffer;
     current.flip();
-    fetchPosition += blockSizeBytes;
     if (length == -1) {
       length = contentLength;
     } else {
       if (contentLength != length) {
         eofHit = true;
-        next = null;
-        pendingFetch = null;
+        discardPendingBlocks();
         throw new RuntimeException("Contents of file: " + filename + " changed while being read.");
       }
     }
-    if (fetchPosition >= contentLength) {
+    requestBlocks();
+    if (pendingBlocks.isEmpty()) {
       eofHit = true;
-      next = null;
-      pendingFetch = null;
-    } else {
-      requestBlock();
     }
   }
 
@@ -206,8 +290,8 @@ final class PrefetchingGcsInputChannelImpl implements GcsInputChannel {
       }
       Preconditions.checkArgument(dst.remaining() > 0, "Requested to read data into a full buffer");
       if (!current.hasRemaining()) {
-        if (pendingFetch == null) {
-          requestBlock();
+        if (pendingBlocks.isEmpty()) {
+          requestBlocks();
         }
         waitForFetchWithRetry();
         if (eofHit && !current.hasRemaining()) {
@@ -218,7 +302,8 @@ final class PrefetchingGcsInputChannelImpl implements GcsInputChannel {
       int toRead = dst.remaining();
       if (current.remaining() <= toRead) {
         dst.put(current);
-        if (pendingFetch != null && pendingFetch.isDone()) {
+        PendingBlock next = pendingBlocks.peekFirst();
+        if (next != null && next.fetch.isDone()) {
           waitForFetchWithRetry();
         }
         readPosition += toRead - dst.remaining();
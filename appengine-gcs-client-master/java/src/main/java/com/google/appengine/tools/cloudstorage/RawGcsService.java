@@ -49,6 +49,12 @@ public interface RawGcsService {
    */
   public int getMaxWriteSizeByte();
 
+  /**
+   * Returns the max bytes returned by a single {@link #readObjectAsync} operation. Larger reads
+   * fill only part of the destination buffer.
+   */
+  public int getMaxReadSizeBytes();
+
   /**
    * Immutable token that wraps the information a specific implementation of
    * {@link RawGcsService} needs to write to an object.
@@ -130,28 +136,80 @@ public interface RawGcsService {
   Future<GcsFileMetadata> readObjectAsync(ByteBuffer dst, GcsFilename filename, long offset,
       long timeoutMillis);
 
+  /**
+   * Same as {@link #readObjectAsync(ByteBuffer, GcsFilename, long, long)}, but only reads if the
+   * ETag of the object satisfies the given conditions, either of which may be null. If the object
+   * has the ETag {@code ifNoneMatch}, nothing is read and the future returns null. If it does not
+   * have the ETag {@code ifMatch}, the future fails with {@link PreconditionFailedException}.
+   */
+  Future<GcsFileMetadata> readObjectAsync(ByteBuffer dst, GcsFilename filename, long offset,
+      String ifMatch, String ifNoneMatch, long timeoutMillis);
+
   /**
    * Returns the meta-data for {@code filename}.
    */
   GcsFileMetadata getObjectMetadata(GcsFilename filename, long timeoutMillis) throws IOException;
 
+  /**
+   * Same as {@link #getObjectMetadata}, but does not wait for the response.
+   */
+  Future<GcsFileMetadata> getObjectMetadataAsync(GcsFilename filename, long timeoutMillis);
+
+  /**
+   * Retrieves the metadata of all of the given objects, with up to {@code maxConcurrentRequests}
+   * requests in flight at a time.
+   *
+   * @return one future per filename, in iteration order, all of which are done when this method
+   *     returns. Each yields the metadata of its object (null if not found), or fails with the
+   *     exception that {@link #getObjectMetadata} would have thrown for it.
+   */
+  List<Future<GcsFileMetadata>> getObjectMetadata(Iterable<GcsFilename> filenames,
+      int maxConcurrentRequests, long timeoutMillis) throws IOException;
+
   /**
    * Returns true if deleted, false if not found.
    */
   boolean deleteObject(GcsFilename filename, long timeoutMillis) throws IOException;
 
+  /**
+   * Same as {@link #deleteObject}, but does not wait for the response.
+   */
+  Future<Boolean> deleteObjectAsync(GcsFilename filename, long timeoutMillis);
+
+  /**
+   * Deletes all of the given objects, with up to {@code maxConcurrentRequests} requests in flight
+   * at a time.
+   *
+   * @return one future per filename, in iteration order, all of which are done when this method
+   *     returns. Each yields true if its object was deleted and false if it was not found, or fails
+   *     with the exception that {@link #deleteObject} would have thrown for it.
+   */
+  List<Future<Boolean>> deleteObjects(Iterable<GcsFilename> filenames, int maxConcurrentRequests,
+      long timeoutMillis) throws IOException;
+
   /**
    * Compose a file from given files.
    */
   void composeObject(Iterable<String> source, GcsFilename dest, long timeoutMillis)
       throws IOException;
 
+  /**
+   * Same as {@link #composeObject}, but does not wait for the response.
+   */
+  Future<Void> composeObjectAsync(Iterable<String> source, GcsFilename dest, long timeoutMillis);
+
   /**
    * Copy source file to dest.
    */
   void copyObject(GcsFilename source, GcsFilename dest, GcsFileOptions fileOptions,
       long timeoutMillis) throws IOException;
 
+  /**
+   * Same as {@link #copyObject}, but does not wait for the response.
+   */
+  Future<Void> copyObjectAsync(GcsFilename source, GcsFilename dest, GcsFileOptions fileOptions,
+      long timeoutMillis);
+
   /**
    * A batch of list items.
    */
@@ -178,4 +236,10 @@ public interface RawGcsService {
 
   ListItemBatch list(String bucket, String prefix, String delimiter, String marker,
       int maxResults, long timeoutMillis) throws IOException;
+
+  /**
+   * Same as {@link #list}, but does not wait for the response.
+   */
+  Future<ListItemBatch> listAsync(String bucket, String prefix, String delimiter, String marker,
+      int maxResults, long timeoutMillis);
 }
@@ -20,12 +20,27 @@ import static com.google.appengine.tools.cloudstorage.RetryParams.getExponential
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
+import com.google.appengine.api.ThreadManager;
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.Environment;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Stopwatch;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import java.io.InterruptedIOException;
 import java.nio.channels.ClosedByInterruptException;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -34,6 +49,11 @@ import java.util.logging.Logger;
  *
  * If the request is never successful, a {@link RetriesExhaustedException} will be thrown.
  *
+ * {@link #runWithRetriesAsync} retries operations that return a future without blocking the
+ * calling thread: a timer shared by all operations schedules the retries and polls the attempts,
+ * the retries are started from a shared pool of threads, and the outcome is reported by the
+ * returned future.
+ *
  * For internal use only. User code cannot safely depend on this class.
  *
  * @author ohler@google.com (Christian Ohler)
@@ -44,11 +64,17 @@ public class RetryHelper<V>  {
 
   private static final Logger log = Logger.getLogger(RetryHelper.class.getName());
 
+  /**
+   * How often {@link #runWithRetriesAsync} checks whether an attempt that returned a future that
+   * cannot notify a listener, such as those returned by URLFetch, is done.
+   */
+  static final long POLL_INTERVAL_MILLIS = 5;
+
   private final Stopwatch stopwatch;
   private final Callable<V> callable;
   private final RetryParams params;
   private final ExceptionHandler exceptionHandler;
-  private int attemptNumber;
+  private volatile int attemptNumber;
 
 
   private static final ThreadLocal<Context> context = new ThreadLocal<>();
@@ -121,9 +147,7 @@ public class RetryHelper<V>  {
         }
         exception = e;
       }
-      if (attemptNumber >= params.getRetryMaxAttempts() || (
-          attemptNumber >= params.getRetryMinAttempts()
-          && stopwatch.elapsed(MILLISECONDS) >= params.getTotalRetryPeriodMillis())) {
+      if (isExhausted()) {
         throw new RetriesExhaustedException(this + ": Too many failures, giving up", exception);
       }
       long sleepDurationMillis = getSleepDuration(params, attemptNumber);
@@ -137,6 +161,12 @@ public class RetryHelper<V>  {
     }
   }
 
+  private boolean isExhausted() {
+    return attemptNumber >= params.getRetryMaxAttempts() || (
+        attemptNumber >= params.getRetryMinAttempts()
+        && stopwatch.elapsed(MILLISECONDS) >= params.getTotalRetryPeriodMillis());
+  }
+
   @VisibleForTesting
   static long getSleepDuration(RetryParams retryParams, int attemptsSoFar) {
     long initialDelay = retryParams.getInitialRetryDelayMillis();
@@ -168,4 +198,208 @@ public class RetryHelper<V>  {
       setContext(previousContext);
     }
   }
+
+  /**
+   * The threads of all asynchronous operations, created on first use. The timer only schedules
+   * the retries and polls the current attempts. The retries are started from a separate pool, as
+   * starting an attempt may block, for instance while a request governor waits for capacity, and
+   * would otherwise hold up every other operation.
+   */
+  private static final class Threads {
+    static final ScheduledThreadPoolExecutor TIMER = createTimer();
+    static final ExecutorService ATTEMPTS = Executors.newCachedThreadPool(TIMER.getThreadFactory());
+
+    /**
+     * Uses App Engine background threads if one can be started, daemon threads otherwise.
+     */
+    private static ScheduledThreadPoolExecutor createTimer() {
+      try {
+        ScheduledThreadPoolExecutor timer =
+            new ScheduledThreadPoolExecutor(1, ThreadManager.backgroundThreadFactory());
+        if (timer.prestartCoreThread()) {
+          return timer;
+        }
+        timer.shutdown();
+      } catch (Exception e) {
+        log.log(Level.FINE, "Background threads are not available", e);
+      }
+      return new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+          .setDaemon(true).setNameFormat("RetryHelper-%d").build());
+    }
+  }
+
+  /**
+   * Runs the attempts of an asynchronous operation until one succeeds, fails with a non retriable
+   * exception or the {@link RetryParams} are exhausted, and reports the outcome to {@link #result}.
+   */
+  private static final class AsyncRetry<V> implements Runnable {
+    private final RetryHelper<Future<V>> helper;
+    private final Environment environment = ApiProxy.getCurrentEnvironment();
+    private final SettableFuture<V> result = SettableFuture.create();
+    private volatile Future<V> current;
+
+    AsyncRetry(RetryHelper<Future<V>> helper) {
+      this.helper = helper;
+      result.addListener(new Runnable() {
+        @Override
+        public void run() {
+          Future<V> inFlight = current;
+          if (result.isCancelled() && inFlight != null) {
+            inFlight.cancel(true);
+          }
+        }
+      }, MoreExecutors.directExecutor());
+    }
+
+    void startAttempt() {
+      if (result.isDone()) {
+        return;
+      }
+      helper.attemptNumber++;
+      Future<V> future;
+      Context previousContext = getContext();
+      setContext(new Context(helper));
+      try {
+        future = checkNotNull(helper.callable.call(), "Null future");
+      } catch (Exception e) {
+        onFailure(e);
+        return;
+      } finally {
+        setContext(previousContext);
+      }
+      current = future;
+      if (result.isCancelled()) {
+        future.cancel(true);
+      } else if (future instanceof ListenableFuture) {
+        ((ListenableFuture<V>) future).addListener(this, MoreExecutors.directExecutor());
+      } else {
+        run();
+      }
+    }
+
+    /**
+     * Completes {@link #result} from the current attempt, or polls it again later if it is not
+     * done yet.
+     */
+    @Override
+    public void run() {
+      Future<V> future = current;
+      if (!future.isDone()) {
+        schedule(this, POLL_INTERVAL_MILLIS);
+        return;
+      }
+      try {
+        V value = Uninterruptibles.getUninterruptibly(future);
+        if (helper.attemptNumber > 1) {
+          log.info(helper + ": attempt #" + helper.attemptNumber + " succeeded");
+        }
+        result.set(value);
+      } catch (ExecutionException e) {
+        onFailure(e.getCause());
+      } catch (CancellationException e) {
+        result.cancel(false);
+      }
+    }
+
+    private void onFailure(Throwable t) {
+      if (!(t instanceof Exception) || !helper.exceptionHandler.shouldRetry((Exception) t)) {
+        result.setException(t);
+        return;
+      }
+      if (helper.isExhausted()) {
+        result.setException(
+            new RetriesExhaustedException(helper + ": Too many failures, giving up", t));
+        return;
+      }
+      long sleepDurationMillis = getSleepDuration(helper.params, helper.attemptNumber);
+      log.info(helper + ": Attempt #" + helper.attemptNumber + " failed [" + t
+          + "], retrying in " + sleepDurationMillis + " ms");
+      schedule(new Runnable() {
+        @Override
+        public void run() {
+          retry();
+        }
+      }, sleepDurationMillis);
+    }
+
+    /**
+     * Starts the next attempt from the pool, or from the current thread if the pool cannot run it.
+     */
+    private void retry() {
+      Runnable attempt = inEnvironment(new Runnable() {
+        @Override
+        public void run() {
+          startAttempt();
+        }
+      });
+      try {
+        Threads.ATTEMPTS.execute(attempt);
+      } catch (RuntimeException e) {
+        log.log(Level.FINE, helper + ": Unable to start the attempt from a separate thread", e);
+        attempt.run();
+      }
+    }
+
+    /**
+     * Runs {@code task} on the timer after {@code delayMillis}, or fails {@link #result} if the
+     * timer cannot run it.
+     */
+    private void schedule(Runnable task, long delayMillis) {
+      try {
+        Threads.TIMER.schedule(inEnvironment(task), delayMillis, MILLISECONDS);
+      } catch (RuntimeException e) {
+        result.setException(e);
+      }
+    }
+
+    /**
+     * Returns a task that runs {@code task} with the App Engine environment of the thread that
+     * started the operation, and fails {@link #result} if it throws.
+     */
+    private Runnable inEnvironment(final Runnable task) {
+      return new Runnable() {
+        @Override
+        public void run() {
+          if (environment != null) {
+            ApiProxy.setEnvironmentForCurrentThread(environment);
+          }
+          try {
+            task.run();
+          } catch (RuntimeException | Error e) {
+            result.setException(e);
+          } finally {
+            if (environment != null) {
+              ApiProxy.clearEnvironmentForCurrentThread();
+            }
+          }
+        }
+      };
+    }
+  }
+
+  /**
+   * Like {@link #runWithRetries(Callable, RetryParams, ExceptionHandler)}, for an operation whose
+   * attempts are started by {@code callable} and complete asynchronously. The first attempt is
+   * started by the calling thread, the others by a shared pool of threads once their delay
+   * elapsed, with the App Engine environment of the calling thread. {@link #getContext} is
+   * available while {@code callable} runs.
+   *
+   * The returned future fails with the exception of the last attempt when it is not retriable,
+   * or with a {@link RetriesExhaustedException}. Cancelling it cancels the current attempt.
+   */
+  public static <V> ListenableFuture<V> runWithRetriesAsync(Callable<Future<V>> callable,
+      RetryParams params, ExceptionHandler exceptionHandler) {
+    return runWithRetriesAsync(callable, params, exceptionHandler, Stopwatch.createUnstarted());
+  }
+
+  @VisibleForTesting
+  static <V> ListenableFuture<V> runWithRetriesAsync(Callable<Future<V>> callable,
+      RetryParams params, ExceptionHandler exceptionHandler, Stopwatch stopwatch) {
+    RetryHelper<Future<V>> retryHelper =
+        new RetryHelper<>(callable, params, exceptionHandler, stopwatch);
+    stopwatch.start();
+    AsyncRetry<V> retry = new AsyncRetry<>(retryHelper);
+    retry.startAttempt();
+    return retry.result;
+  }
 }
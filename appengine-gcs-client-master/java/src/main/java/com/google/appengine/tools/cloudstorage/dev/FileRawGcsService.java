@@ -0,0 +1,620 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.cloudstorage.dev;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.appengine.tools.cloudstorage.BadRangeException;
+import com.google.appengine.tools.cloudstorage.GcsFileMetadata;
+import com.google.appengine.tools.cloudstorage.GcsFileOptions;
+import com.google.appengine.tools.cloudstorage.GcsFilename;
+import com.google.appengine.tools.cloudstorage.ListItem;
+import com.google.appengine.tools.cloudstorage.PreconditionFailedException;
+import com.google.appengine.tools.cloudstorage.RawGcsService;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Implementation of {@code RawGcsService} that keeps objects as files under a local directory, for
+ * running code against the GCS API without network access or App Engine services (for example to
+ * load test it).
+ *
+ * Each bucket is a directory and each object a file in it, named by URL-encoding the object name;
+ * the names of objects are therefore limited by those the file system accepts. A file starts with
+ * a header holding the object's {@link GcsFileOptions} and ETag, followed by its content. Objects
+ * are created in a separate uploads directory, where chunks are written at their offset through a
+ * {@link FileChannel} on a shared pool, and are moved into their bucket once finished, so readers
+ * never see a partial object. Reads copy the requested range with a positional read, and the
+ * headers of recently read objects are kept deserialized.
+ */
+final class FileRawGcsService implements RawGcsService {
+
+  static final int CHUNK_ALIGNMENT_BYTES = 256 * 1024;
+
+  /**
+   * How many deserialized headers are kept, keyed by their serialized form. Headers hold a random
+   * ETag, so a replaced object never matches the header of its previous version.
+   */
+  static final int HEADER_CACHE_SIZE = 1000;
+
+  private static final String UPLOADS_DIRECTORY = ".uploads";
+
+  private static final Cache<ByteBuffer, Header> headerCache =
+      CacheBuilder.newBuilder().maximumSize(HEADER_CACHE_SIZE).build();
+
+  private static final ExecutorService writePool = Executors.newFixedThreadPool(
+      Runtime.getRuntime().availableProcessors(), new ThreadFactoryBuilder()
+          .setDaemon(true).setNameFormat("FileRawGcsService-write-%d").build());
+
+  private final Path root;
+  private final Path uploads;
+
+  FileRawGcsService(Path root) {
+    this.root = checkNotNull(root, "Null root");
+    this.uploads = root.resolve(UPLOADS_DIRECTORY);
+  }
+
+  /**
+   * Everything stored in front of the content of an object.
+   */
+  private static final class Header implements Serializable {
+    private static final long serialVersionUID = -1838447012736548170L;
+
+    private final GcsFileOptions options;
+    private final String etag;
+
+    Header(GcsFileOptions options, String etag) {
+      this.options = options;
+      this.etag = etag;
+    }
+  }
+
+  /**
+   * An object stored in a file, with the position and length of its content.
+   */
+  private static final class StoredObject {
+    private final Header header;
+    private final long contentStart;
+    private final long length;
+    private final Date lastModified;
+
+    StoredObject(Header header, long contentStart, long length, Date lastModified) {
+      this.header = header;
+      this.contentStart = contentStart;
+      this.length = length;
+      this.lastModified = lastModified;
+    }
+
+    GcsFileMetadata toMetadata(GcsFilename filename) {
+      return new GcsFileMetadata(filename, header.options, header.etag, length, lastModified);
+    }
+  }
+
+  static final class Token implements RawGcsCreationToken {
+    private static final long serialVersionUID = 6386402781405862416L;
+
+    private final GcsFilename filename;
+    private final String uploadFile;
+    private final long contentStart;
+    private final long offset;
+
+    Token(GcsFilename filename, String uploadFile, long contentStart, long offset) {
+      this.filename = checkNotNull(filename, "Null filename");
+      this.uploadFile = checkNotNull(uploadFile, "Null uploadFile");
+      this.contentStart = contentStart;
+      this.offset = offset;
+    }
+
+    @Override
+    public GcsFilename getFilename() {
+      return filename;
+    }
+
+    @Override
+    public long getOffset() {
+      return offset;
+    }
+
+    @Override
+    public String toString() {
+      return getClass().getSimpleName() + "(" + filename + ", " + offset + ")";
+    }
+
+    @Override
+    public final boolean equals(Object o) {
+      if (o == this) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      Token other = (Token) o;
+      return offset == other.offset && contentStart == other.contentStart
+          && Objects.equals(filename, other.filename)
+          && Objects.equals(uploadFile, other.uploadFile);
+    }
+
+    @Override
+    public final int hashCode() {
+      return Objects.hash(filename, uploadFile, contentStart, offset);
+    }
+  }
+
+  private static String encode(String name) {
+    try {
+      String encoded = URLEncoder.encode(name, UTF_8.name());
+      return encoded.startsWith(".") ? "%2E" + encoded.substring(1) : encoded;
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static String decode(String name) {
+    try {
+      return URLDecoder.decode(name, UTF_8.name());
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private Path bucketPath(String bucket) {
+    checkArgument(!Strings.isNullOrEmpty(bucket) && !bucket.startsWith("."),
+        "Invalid bucket name: %s", bucket);
+    return root.resolve(encode(bucket));
+  }
+
+  private Path objectPath(GcsFilename filename) {
+    return bucketPath(filename.getBucketName()).resolve(encode(filename.getObjectName()));
+  }
+
+  /**
+   * Creates a file in the uploads directory that holds the header of a new object.
+   *
+   * @return the number of bytes written, which is where the content of the object starts
+   */
+  private long createUploadFile(Path file, GcsFileOptions options) throws IOException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    try (ObjectOutputStream oout = new ObjectOutputStream(bout)) {
+      oout.writeObject(new Header(options == null ? GcsFileOptions.getDefaultInstance() : options,
+          UUID.randomUUID().toString()));
+    }
+    byte[] header = bout.toByteArray();
+    ByteBuffer buffer = ByteBuffer.allocate(4 + header.length);
+    buffer.putInt(header.length).put(header).flip();
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.WRITE)) {
+      writeFully(channel, buffer, 0);
+    }
+    return 4 + header.length;
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer src, long position)
+      throws IOException {
+    while (src.hasRemaining()) {
+      position += channel.write(src, position);
+    }
+  }
+
+  private Token write(Token token, ByteBuffer chunk) throws IOException {
+    int length = chunk.remaining();
+    try (FileChannel channel =
+        FileChannel.open(Paths.get(token.uploadFile), StandardOpenOption.WRITE)) {
+      writeFully(channel, chunk.duplicate(), token.contentStart + token.offset);
+    }
+    chunk.position(chunk.limit());
+    return new Token(token.filename, token.uploadFile, token.contentStart, token.offset + length);
+  }
+
+  /**
+   * Moves a finished upload into its bucket, replacing any previous version of the object.
+   */
+  private void publish(Path uploadFile, GcsFilename filename) throws IOException {
+    Path target = objectPath(filename);
+    Files.createDirectories(target.getParent());
+    Files.move(uploadFile, target, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private Path newUploadFile() throws IOException {
+    Files.createDirectories(uploads);
+    return uploads.resolve(UUID.randomUUID().toString());
+  }
+
+  @Override
+  public Token beginObjectCreation(GcsFilename filename, GcsFileOptions options,
+      long timeoutMillis) throws IOException {
+    Path file = newUploadFile();
+    long contentStart = createUploadFile(file, options);
+    return new Token(filename, file.toString(), contentStart, 0);
+  }
+
+  @Override
+  public Future<RawGcsCreationToken> continueObjectCreationAsync(final RawGcsCreationToken token,
+      final ByteBuffer chunk, long timeoutMillis) {
+    return writePool.submit(new Callable<RawGcsCreationToken>() {
+      @Override
+      public RawGcsCreationToken call() throws IOException {
+        return write((Token) token, chunk);
+      }
+    });
+  }
+
+  /**
+   * Truncates the upload file after the final chunk, so that a sequence of writes that was retried
+   * from an earlier token leaves no stale bytes behind.
+   */
+  @Override
+  public void finishObjectCreation(RawGcsCreationToken token, ByteBuffer chunk,
+      long timeoutMillis) throws IOException {
+    Token t = write((Token) token, chunk);
+    Path file = Paths.get(t.uploadFile);
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      channel.truncate(t.contentStart + t.offset);
+    } catch (NoSuchFileException e) {
+      throw new IOException("No upload in progress for " + t.filename, e);
+    }
+    publish(file, t.filename);
+  }
+
+  @Override
+  public void putObject(GcsFilename filename, GcsFileOptions options, ByteBuffer content,
+      long timeoutMillis) throws IOException {
+    finishObjectCreation(beginObjectCreation(filename, options, timeoutMillis), content,
+        timeoutMillis);
+  }
+
+  /**
+   * Returns the object stored in {@code channel}.
+   */
+  private static StoredObject readObject(FileChannel channel, Path file) throws IOException {
+    ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+    readFully(channel, lengthBuffer, 0);
+    lengthBuffer.flip();
+    byte[] bytes = new byte[lengthBuffer.getInt()];
+    readFully(channel, ByteBuffer.wrap(bytes), 4);
+    ByteBuffer key = ByteBuffer.wrap(bytes);
+    Header header = headerCache.getIfPresent(key);
+    if (header == null) {
+      try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+        header = (Header) in.readObject();
+      } catch (ClassNotFoundException e) {
+        throw new IOException("Corrupt object file " + file, e);
+      }
+      headerCache.put(key, header);
+    }
+    long contentStart = 4 + bytes.length;
+    return new StoredObject(header, contentStart, channel.size() - contentStart,
+        new Date(Files.getLastModifiedTime(file).toMillis()));
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer dst, long position)
+      throws IOException {
+    while (dst.hasRemaining()) {
+      int read = channel.read(dst, position);
+      if (read == -1) {
+        throw new EOFException();
+      }
+      position += read;
+    }
+  }
+
+  @Override
+  public GcsFileMetadata getObjectMetadata(GcsFilename filename, long timeoutMillis)
+      throws IOException {
+    Path file = objectPath(filename);
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      return readObject(channel, file).toMetadata(filename);
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+  }
+
+  @Override
+  public Future<GcsFileMetadata> getObjectMetadataAsync(GcsFilename filename,
+      long timeoutMillis) {
+    try {
+      return Futures.immediateFuture(getObjectMetadata(filename, timeoutMillis));
+    } catch (IOException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+  }
+
+  @Override
+  public List<Future<GcsFileMetadata>> getObjectMetadata(Iterable<GcsFilename> filenames,
+      int maxConcurrentRequests, long timeoutMillis) {
+    List<Future<GcsFileMetadata>> results = new ArrayList<>();
+    for (GcsFilename filename : filenames) {
+      results.add(getObjectMetadataAsync(filename, timeoutMillis));
+    }
+    return results;
+  }
+
+  @Override
+  public Future<GcsFileMetadata> readObjectAsync(ByteBuffer dst, GcsFilename filename,
+      long offset, long timeoutMillis) {
+    return readObjectAsync(dst, filename, offset, null, null, timeoutMillis);
+  }
+
+  @Override
+  public Future<GcsFileMetadata> readObjectAsync(ByteBuffer dst, GcsFilename filename,
+      long offset, String ifMatch, String ifNoneMatch, long timeoutMillis) {
+    checkArgument(offset >= 0, "%s: offset must be non-negative: %s", this, offset);
+    Path file = objectPath(filename);
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      StoredObject object = readObject(channel, file);
+      if (ifMatch != null && !ifMatch.equals(object.header.etag)) {
+        return Futures.immediateFailedFuture(
+            new PreconditionFailedException("ETag of " + filename + " has changed"));
+      }
+      if (ifNoneMatch != null && ifNoneMatch.equals(object.header.etag)) {
+        return Futures.immediateFuture(null);
+      }
+      if (offset >= object.length) {
+        return Futures.immediateFailedFuture(new BadRangeException(
+            "The requested range cannot be satisfied. bytes=" + offset + "-"
+            + (offset + dst.remaining()) + " the file is only " + object.length));
+      }
+      int length = (int) Math.min(dst.remaining(), object.length - offset);
+      long position = object.contentStart + offset;
+      ByteBuffer slice = dst.duplicate();
+      slice.limit(slice.position() + length);
+      readFully(channel, slice, position);
+      dst.position(slice.position());
+      return Futures.immediateFuture(object.toMetadata(filename));
+    } catch (NoSuchFileException e) {
+      return Futures.immediateFailedFuture(
+          new FileNotFoundException(this + ": No such file: " + filename));
+    } catch (IOException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+  }
+
+  @Override
+  public boolean deleteObject(GcsFilename filename, long timeoutMillis) throws IOException {
+    return Files.deleteIfExists(objectPath(filename));
+  }
+
+  @Override
+  public Future<Boolean> deleteObjectAsync(GcsFilename filename, long timeoutMillis) {
+    try {
+      return Futures.immediateFuture(deleteObject(filename, timeoutMillis));
+    } catch (IOException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+  }
+
+  @Override
+  public List<Future<Boolean>> deleteObjects(Iterable<GcsFilename> filenames,
+      int maxConcurrentRequests, long timeoutMillis) {
+    List<Future<Boolean>> results = new ArrayList<>();
+    for (GcsFilename filename : filenames) {
+      results.add(deleteObjectAsync(filename, timeoutMillis));
+    }
+    return results;
+  }
+
+  /**
+   * Creates {@code dest} from the content of {@code sources}, which are copied without passing
+   * through the heap.
+   */
+  private void concatenate(List<GcsFilename> sources, GcsFilename dest, GcsFileOptions options)
+      throws IOException {
+    Path file = newUploadFile();
+    try {
+      long position = createUploadFile(file, options);
+      try (FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE)) {
+        for (GcsFilename source : sources) {
+          Path sourceFile = objectPath(source);
+          try (FileChannel in = FileChannel.open(sourceFile, StandardOpenOption.READ)) {
+            StoredObject object = readObject(in, sourceFile);
+            long transferred = 0;
+            while (transferred < object.length) {
+              transferred += out.transferFrom(in.position(object.contentStart + transferred),
+                  position + transferred, object.length - transferred);
+            }
+            position += object.length;
+          } catch (NoSuchFileException e) {
+            throw new FileNotFoundException(this + ": No such file: " + source);
+          }
+        }
+      }
+      publish(file, dest);
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  @Override
+  public void composeObject(Iterable<String> source, GcsFilename dest, long timeoutMillis)
+      throws IOException {
+    int size = Iterables.size(source);
+    if (size > 32) {
+      throw new IOException("Compose attempted with too many components. Limit is 32");
+    }
+    if (size < 2) {
+      throw new IOException("You must provide at least two source components.");
+    }
+    List<GcsFilename> sources = new ArrayList<>(size);
+    for (String name : source) {
+      sources.add(new GcsFilename(dest.getBucketName(), name));
+    }
+    concatenate(sources, dest, null);
+  }
+
+  @Override
+  public Future<Void> composeObjectAsync(Iterable<String> source, GcsFilename dest,
+      long timeoutMillis) {
+    try {
+      composeObject(source, dest, timeoutMillis);
+      return Futures.immediateFuture(null);
+    } catch (IOException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+  }
+
+  @Override
+  public void copyObject(GcsFilename source, GcsFilename dest, GcsFileOptions fileOptions,
+      long timeoutMillis) throws IOException {
+    if (fileOptions == null) {
+      GcsFileMetadata meta = getObjectMetadata(source, timeoutMillis);
+      if (meta == null) {
+        throw new FileNotFoundException(this + ": No such file: " + source);
+      }
+      fileOptions = meta.getOptions();
+    }
+    List<GcsFilename> sources = new ArrayList<>(1);
+    sources.add(source);
+    concatenate(sources, dest, fileOptions);
+  }
+
+  @Override
+  public Future<Void> copyObjectAsync(GcsFilename source, GcsFilename dest,
+      GcsFileOptions fileOptions, long timeoutMillis) {
+    try {
+      copyObject(source, dest, fileOptions, timeoutMillis);
+      return Futures.immediateFuture(null);
+    } catch (IOException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+  }
+
+  /**
+   * Lists the objects of {@code bucket} in the order of their names. The marker is the name of the
+   * last item returned, and items that collapse into a directory no later than it are skipped.
+   */
+  @Override
+  public ListItemBatch list(String bucket, String prefix, String delimiter, String marker,
+      int maxResults, long timeoutMillis) throws IOException {
+    prefix = Strings.nullToEmpty(prefix);
+    TreeSet<String> names = new TreeSet<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(bucketPath(bucket))) {
+      for (Path file : files) {
+        String name = decode(file.getFileName().toString());
+        if (name.startsWith(prefix) && (marker == null || name.compareTo(marker) > 0)) {
+          names.add(name);
+        }
+      }
+    } catch (NoSuchFileException e) {
+      return new ListItemBatch(new ArrayList<ListItem>(), null);
+    }
+    List<ListItem> items = new ArrayList<>();
+    String lastName = marker;
+    for (String name : names) {
+      String directory = null;
+      if (!Strings.isNullOrEmpty(delimiter)) {
+        int delimiterIdx = name.indexOf(delimiter, prefix.length());
+        if (delimiterIdx >= 0) {
+          directory = name.substring(0, delimiterIdx + delimiter.length());
+        }
+      }
+      if (directory != null) {
+        if (lastName != null && directory.compareTo(lastName) <= 0) {
+          continue;
+        }
+        if (items.size() == maxResults) {
+          return new ListItemBatch(items, lastName);
+        }
+        items.add(new ListItem.Builder().setName(directory).setDirectory(true).build());
+        lastName = directory;
+      } else {
+        if (items.size() == maxResults) {
+          return new ListItemBatch(items, lastName);
+        }
+        GcsFileMetadata metadata = getObjectMetadata(new GcsFilename(bucket, name), timeoutMillis);
+        if (metadata == null) {
+          continue;
+        }
+        items.add(new ListItem.Builder()
+            .setName(name)
+            .setEtag(metadata.getEtag())
+            .setLength(metadata.getLength())
+            .setLastModified(metadata.getLastModified())
+            .build());
+        lastName = name;
+      }
+    }
+    return new ListItemBatch(items, null);
+  }
+
+  @Override
+  public Future<ListItemBatch> listAsync(String bucket, String prefix, String delimiter,
+      String marker, int maxResults, long timeoutMillis) {
+    try {
+      return Futures.immediateFuture(
+          list(bucket, prefix, delimiter, marker, maxResults, timeoutMillis));
+    } catch (IOException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+  }
+
+  @Override
+  public int getChunkSizeBytes() {
+    return CHUNK_ALIGNMENT_BYTES;
+  }
+
+  @Override
+  public int getMaxWriteSizeByte() {
+    return 10_000_000;
+  }
+
+  @Override
+  public int getMaxReadSizeBytes() {
+    return Integer.MAX_VALUE;
+  }
+
+  @Override
+  public String toString() {
+    return "FileRawGcsService [root=" + root + "]";
+  }
+}
@@ -45,17 +45,23 @@ import com.google.appengine.tools.cloudstorage.GcsFileMetadata;
 import com.google.appengine.tools.cloudstorage.GcsFileOptions;
 import com.google.appengine.tools.cloudstorage.GcsFilename;
 import com.google.appengine.tools.cloudstorage.ListItem;
+import com.google.appengine.tools.cloudstorage.PreconditionFailedException;
 import com.google.appengine.tools.cloudstorage.RawGcsService;
 import com.google.apphosting.api.ApiProxy;
 import com.google.apphosting.api.ApiProxy.Delegate;
 import com.google.apphosting.api.ApiProxy.Environment;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Iterables;
+import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.Futures;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -68,11 +74,11 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
@@ -86,8 +92,13 @@ import java.util.concurrent.TimeUnit;
  * Implementation of {@code RawGcsService} for dev_appserver. For now, uses datastore and
  * fileService so that the viewers can be re-used.
  *
- * This class is not a perfect singleton. If methods are called concurrently from
- * different threads, it is possible that multiple instances of BlobStorage may be used.
+ * A single BlobStorage adapter is shared by all instances and threads, and is only recreated when
+ * the ApiProxy delegate changes.
+ *
+ * The data of objects that are being created is held in memory until their creation is finished,
+ * in a {@link PendingUploads} store that can be used by any number of channels concurrently. Writes
+ * are completed on a shared pool whose size is set by
+ * {@link LocalRawGcsServiceFactory#WRITE_THREADS_PROPERTY}.
  */
 @SuppressWarnings("deprecation")
 final class LocalRawGcsService implements RawGcsService {
@@ -105,7 +116,17 @@ final class LocalRawGcsService implements RawGcsService {
   private static final String FILE_LENGTH_PROP = "length";
   private static final String BLOBSTORE_META_KIND = "__BlobInfo__";
 
-  private static final HashMap<GcsFilename, List<ByteBuffer>> inMemoryData = new HashMap<>();
+  /**
+   * Metadata read by {@link #readObjectAsync} is cached for this long, so that a reader fetching
+   * consecutive blocks of an object does not look it up in the datastore for each of them. Objects
+   * written or deleted through this class are evicted right away; the TTL only bounds how long
+   * changes made by other means (such as the admin console) may go unnoticed.
+   */
+  private static final long METADATA_CACHE_TTL_MILLIS = 2000;
+  private static final int METADATA_CACHE_SIZE = 1000;
+
+  private static final PendingUploads pendingUploads =
+      new PendingUploads(4 * Runtime.getRuntime().availableProcessors());
 
   private static class BlobStorageAdapter {
 
@@ -118,6 +139,10 @@ final class LocalRawGcsService implements RawGcsService {
     private final Method storeBlobMethod;
     private final Method fetchBlobMethod;
     private final Constructor<?> blobKeyConstructor;
+    private final Cache<GcsFilename, GcsFileMetadata> metadataCache = CacheBuilder.newBuilder()
+        .maximumSize(METADATA_CACHE_SIZE)
+        .expireAfterWrite(METADATA_CACHE_TTL_MILLIS, TimeUnit.MILLISECONDS)
+        .build();
 
     BlobStorageAdapter(Delegate<?> apiProxyDelegate) throws Exception {
       this.apiProxyDelegate = apiProxyDelegate;
@@ -178,7 +203,42 @@ final class LocalRawGcsService implements RawGcsService {
       }
     }
 
-    private static BlobStorageAdapter getInstance() throws IOException {
+    /**
+     * Reads the blob starting at {@code offset} into {@code dst}, until either is exhausted. The
+     * dev appserver keeps blobs in files, which are read at the requested position directly;
+     * other storages are skipped through to it.
+     *
+     * @return the number of bytes read
+     */
+    public int read(BlobKey blobKey, long offset, ByteBuffer dst) throws IOException {
+      int start = dst.position();
+      try (InputStream in = fetchBlob(blobKey)) {
+        if (in instanceof FileInputStream) {
+          FileChannel channel = ((FileInputStream) in).getChannel();
+          long position = offset;
+          int read = 0;
+          while (read != -1 && dst.hasRemaining()) {
+            read = channel.read(dst, position);
+            position += read;
+          }
+        } else {
+          try {
+            ByteStreams.skipFully(in, offset);
+          } catch (EOFException e) {
+            throw new BadRangeException(
+                "The requested range cannot be satisfied; seek past the end of the blob");
+          }
+          ReadableByteChannel readChannel = Channels.newChannel(in);
+          int read = 0;
+          while (read != -1 && dst.hasRemaining()) {
+            read = readChannel.read(dst);
+          }
+        }
+      }
+      return dst.position() - start;
+    }
+
+    private static synchronized BlobStorageAdapter getInstance() throws IOException {
       Delegate<?> apiProxyDelegate = ApiProxy.getDelegate();
       if (instance == null || instance.apiProxyDelegate != apiProxyDelegate) {
         try {
@@ -248,11 +308,11 @@ final class LocalRawGcsService implements RawGcsService {
   public Token beginObjectCreation(GcsFilename filename, GcsFileOptions options, long timeoutMillis)
       throws IOException {
     ensureInitialized();
-    inMemoryData.put(filename, new ArrayList<ByteBuffer>());
+    pendingUploads.begin(filename);
     return new Token(filename, options, 0);
   }
 
-  private Token append(RawGcsCreationToken token, ByteBuffer chunk) {
+  private Token append(RawGcsCreationToken token, ByteBuffer chunk) throws IOException {
     Token t = (Token) token;
     if (!chunk.hasRemaining()) {
       return t;
@@ -262,18 +322,30 @@ final class LocalRawGcsService implements RawGcsService {
     ByteBuffer inMemoryBuffer = ByteBuffer.allocate(chunksize);
     inMemoryBuffer.put(chunk);
     inMemoryBuffer.flip();
-    inMemoryData.get(t.filename).add(inMemoryBuffer);
+    pendingUploads.append(t.filename, inMemoryBuffer);
 
     return new Token(t.filename, t.options, t.offset + chunksize);
   }
 
-  private static ScheduledThreadPoolExecutor writePool;
-  static {
+  private static final ScheduledThreadPoolExecutor writePool = createWritePool(Math.max(1,
+      Integer.getInteger(LocalRawGcsServiceFactory.WRITE_THREADS_PROPERTY,
+          Runtime.getRuntime().availableProcessors())));
+
+  /**
+   * Uses App Engine background threads if one can be started, plain threads otherwise.
+   */
+  private static ScheduledThreadPoolExecutor createWritePool(int writeThreads) {
     try {
-      writePool = new ScheduledThreadPoolExecutor(1, ThreadManager.backgroundThreadFactory());
+      ScheduledThreadPoolExecutor pool =
+          new ScheduledThreadPoolExecutor(writeThreads, ThreadManager.backgroundThreadFactory());
+      if (pool.prestartCoreThread()) {
+        return pool;
+      }
+      pool.shutdown();
     } catch (Exception e) {
-      writePool = new ScheduledThreadPoolExecutor(1);
+      // Not running in an App Engine request
     }
+    return new ScheduledThreadPoolExecutor(writeThreads);
   }
 
   /**
@@ -345,12 +417,12 @@ final class LocalRawGcsService implements RawGcsService {
     int totalBytes = 0;
 
     BlobKey blobKey = getBlobKeyForFilename(t.filename);
+    blobStorage.metadataCache.invalidate(t.filename);
     try (WritableByteChannel outputChannel = Channels.newChannel(blobStorage.storeBlob(blobKey))) {
-      for (ByteBuffer buffer : inMemoryData.get(t.filename)){
+      for (ByteBuffer buffer : pendingUploads.remove(t.filename)) {
         totalBytes += buffer.remaining();
         outputChannel.write(buffer);
       }
-      inMemoryData.remove(t.filename);
     }
 
     String mimeType = t.options.getMimeType();
@@ -386,6 +458,7 @@ final class LocalRawGcsService implements RawGcsService {
     e.setUnindexedProperty(CREATION_TIME_PROP, System.currentTimeMillis());
     e.setUnindexedProperty(FILE_LENGTH_PROP, totalBytes);
     datastore.put(null, e);
+    blobStorage.metadataCache.invalidate(t.filename);
   }
 
   @Override
@@ -406,6 +479,30 @@ final class LocalRawGcsService implements RawGcsService {
     }
   }
 
+  @Override
+  public Future<GcsFileMetadata> getObjectMetadataAsync(GcsFilename filename,
+      long timeoutMillis) {
+    try {
+      return Futures.immediateFuture(getObjectMetadata(filename, timeoutMillis));
+    } catch (IOException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+  }
+
+  /**
+   * The local datastore is accessed in process, so the metadata is simply looked up one object at
+   * a time.
+   */
+  @Override
+  public List<Future<GcsFileMetadata>> getObjectMetadata(Iterable<GcsFilename> filenames,
+      int maxConcurrentRequests, long timeoutMillis) {
+    List<Future<GcsFileMetadata>> results = new ArrayList<>();
+    for (GcsFilename filename : filenames) {
+      results.add(getObjectMetadataAsync(filename, timeoutMillis));
+    }
+    return results;
+  }
+
   private GcsFileMetadata createGcsFileMetadata(Entity entity, GcsFilename filename)
       throws IOException {
     GcsFileOptions options;
@@ -453,48 +550,37 @@ final class LocalRawGcsService implements RawGcsService {
   @Override
   public Future<GcsFileMetadata> readObjectAsync(
       ByteBuffer dst, GcsFilename filename, long offset, long timeoutMillis) {
+    return readObjectAsync(dst, filename, offset, null, null, timeoutMillis);
+  }
+
+  @Override
+  public Future<GcsFileMetadata> readObjectAsync(ByteBuffer dst, GcsFilename filename,
+      long offset, String ifMatch, String ifNoneMatch, long timeoutMillis) {
     Preconditions.checkArgument(offset >= 0, "%s: offset must be non-negative: %s", this, offset);
     try {
       ensureInitialized();
-      GcsFileMetadata meta = getObjectMetadata(filename, timeoutMillis);
+      GcsFileMetadata meta = blobStorage.metadataCache.getIfPresent(filename);
       if (meta == null) {
+        meta = getObjectMetadata(filename, timeoutMillis);
+        if (meta == null) {
+          return Futures.immediateFailedFuture(
+              new FileNotFoundException(this + ": No such file: " + filename));
+        }
+        blobStorage.metadataCache.put(filename, meta);
+      }
+      if (ifMatch != null && !ifMatch.equals(meta.getEtag())) {
         return Futures.immediateFailedFuture(
-            new FileNotFoundException(this + ": No such file: " + filename));
+            new PreconditionFailedException("ETag of " + filename + " has changed"));
+      }
+      if (ifNoneMatch != null && ifNoneMatch.equals(meta.getEtag())) {
+        return Futures.immediateFuture(null);
       }
       if (offset >= meta.getLength()) {
         return Futures.immediateFailedFuture(new BadRangeException(
             "The requested range cannot be satisfied. bytes=" + Long.toString(offset) + "-"
             + Long.toString(offset + dst.remaining()) + " the file is only " + meta.getLength()));
       }
-
-      int read = 0;
-
-      try (ReadableByteChannel readChannel = Channels.newChannel(
-          blobStorage.fetchBlob(getBlobKeyForFilename(filename)))) {
-        if (offset > 0) {
-          long bytesRemaining = offset;
-          ByteBuffer seekBuffer = ByteBuffer.allocate(1024);
-          while (bytesRemaining > 0) {
-            if (bytesRemaining < seekBuffer.limit()) {
-              seekBuffer.limit((int) bytesRemaining);
-            }
-            read = readChannel.read(seekBuffer);
-            if (read == -1) {
-              return Futures.immediateFailedFuture(new BadRangeException(
-                  "The requested range cannot be satisfied; seek failed with "
-                  + Long.toString(bytesRemaining) + " bytes remaining."));
-
-            }
-            bytesRemaining -= read;
-            seekBuffer.clear();
-          }
-          read = 0;
-        }
-        while (read != -1 && dst.hasRemaining()) {
-          read = readChannel.read(dst);
-        }
-      }
-
+      blobStorage.read(getBlobKeyForFilename(filename), offset, dst);
       return Futures.immediateFuture(meta);
     } catch (IOException e) {
       return Futures.immediateFailedFuture(e);
@@ -506,6 +592,7 @@ final class LocalRawGcsService implements RawGcsService {
     ensureInitialized();
     Transaction tx = datastore.beginTransaction();
     Key key = makeKey(filename);
+    blobStorage.metadataCache.invalidate(filename);
     try {
       datastore.get(tx, key);
       datastore.delete(tx, key);
@@ -521,6 +608,28 @@ final class LocalRawGcsService implements RawGcsService {
     return true;
   }
 
+  @Override
+  public Future<Boolean> deleteObjectAsync(GcsFilename filename, long timeoutMillis) {
+    try {
+      return Futures.immediateFuture(deleteObject(filename, timeoutMillis));
+    } catch (IOException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+  }
+
+  /**
+   * The local datastore is accessed in process, so the objects are simply deleted one at a time.
+   */
+  @Override
+  public List<Future<Boolean>> deleteObjects(Iterable<GcsFilename> filenames,
+      int maxConcurrentRequests, long timeoutMillis) {
+    List<Future<Boolean>> results = new ArrayList<>();
+    for (GcsFilename filename : filenames) {
+      results.add(deleteObjectAsync(filename, timeoutMillis));
+    }
+    return results;
+  }
+
   private String getPathForGcsFilename(GcsFilename filename) {
     return new StringBuilder()
         .append("/gs/")
@@ -567,6 +676,17 @@ final class LocalRawGcsService implements RawGcsService {
     finishObjectCreation(token, ByteBuffer.allocate(0), timeoutMillis);
   }
 
+  @Override
+  public Future<Void> composeObjectAsync(Iterable<String> source, GcsFilename dest,
+      long timeoutMillis) {
+    try {
+      composeObject(source, dest, timeoutMillis);
+      return Futures.immediateFuture(null);
+    } catch (IOException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+  }
+
   private Token appendFileContentsToToken(GcsFilename source, Token token) throws IOException {
     ByteBuffer chunk = ByteBuffer.allocate(1024);
 
@@ -598,6 +718,17 @@ final class LocalRawGcsService implements RawGcsService {
     finishObjectCreation(token, ByteBuffer.allocate(0), timeoutMillis);
   }
 
+  @Override
+  public Future<Void> copyObjectAsync(GcsFilename source, GcsFilename dest,
+      GcsFileOptions fileOptions, long timeoutMillis) {
+    try {
+      copyObject(source, dest, fileOptions, timeoutMillis);
+      return Futures.immediateFuture(null);
+    } catch (IOException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+  }
+
   @Override
   public ListItemBatch list(String bucket, String prefix, String delimiter,
       String marker, int maxResults, long timeoutMillis) throws IOException {
@@ -652,8 +783,24 @@ final class LocalRawGcsService implements RawGcsService {
     return new ListItemBatch(items, nextMarker);
   }
 
+  @Override
+  public Future<ListItemBatch> listAsync(String bucket, String prefix, String delimiter,
+      String marker, int maxResults, long timeoutMillis) {
+    try {
+      return Futures.immediateFuture(
+          list(bucket, prefix, delimiter, marker, maxResults, timeoutMillis));
+    } catch (IOException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+  }
+
   @Override
   public int getMaxWriteSizeByte() {
     return 10_000_000;
   }
+
+  @Override
+  public int getMaxReadSizeBytes() {
+    return Integer.MAX_VALUE;
+  }
 }
@@ -16,16 +16,42 @@
 
 package com.google.appengine.tools.cloudstorage.dev;
 
+import com.google.appengine.tools.cloudstorage.GcsServiceFactory;
 import com.google.appengine.tools.cloudstorage.RawGcsService;
 
+import java.io.File;
+
 /**
  * Creates a RawGcsService for use in-process. This is useful for testing.
  */
 public final class LocalRawGcsServiceFactory {
 
+  /**
+   * The system property that sets the number of threads on which the local service completes
+   * writes in the background. It is read once, when the service is first used, and defaults to the
+   * number of available processors.
+   */
+  public static final String WRITE_THREADS_PROPERTY = "gcs_local_write_threads";
+
+  /**
+   * The system property that, when set to a directory, makes {@link GcsServiceFactory} store
+   * objects as files under that directory instead of using the App Engine services.
+   *
+   * @see #createFileRawGcsService
+   */
+  public static final String DIRECTORY_PROPERTY = "gcs_local_directory";
+
   private LocalRawGcsServiceFactory() {}
 
   public static RawGcsService createLocalRawGcsService() {
     return new LocalRawGcsService();
   }
+
+  /**
+   * Returns a RawGcsService that keeps objects as files under {@code directory}, which is created
+   * when the first object is written. It does not need network access or any App Engine service.
+   */
+  public static RawGcsService createFileRawGcsService(File directory) {
+    return new FileRawGcsService(directory.toPath());
+  }
 }
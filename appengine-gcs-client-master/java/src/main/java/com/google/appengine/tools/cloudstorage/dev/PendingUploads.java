@@ -0,0 +1,105 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.cloudstorage.dev;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.appengine.tools.cloudstorage.GcsFilename;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds the data written to objects that are being created by {@link LocalRawGcsService} until
+ * their creation is finished.
+ *
+ * Uploads are spread over a fixed number of stripes by the hash of their filename, and each stripe
+ * is guarded by its own lock. This makes the store safe to use from any number of threads, while
+ * uploads of different objects rarely contend for the same lock.
+ */
+final class PendingUploads {
+
+  private final Stripe[] stripes;
+
+  private static final class Stripe {
+    private final Map<GcsFilename, List<ByteBuffer>> uploads = new HashMap<>();
+  }
+
+  /**
+   * @param minStripes the minimum number of stripes, rounded up to a power of two
+   */
+  PendingUploads(int minStripes) {
+    checkArgument(minStripes > 0, "minStripes must be positive");
+    int count = Integer.highestOneBit(minStripes);
+    if (count < minStripes) {
+      count <<= 1;
+    }
+    stripes = new Stripe[count];
+    for (int i = 0; i < count; i++) {
+      stripes[i] = new Stripe();
+    }
+  }
+
+  private Stripe stripeFor(GcsFilename filename) {
+    int hash = filename.hashCode();
+    hash ^= (hash >>> 16);
+    return stripes[hash & (stripes.length - 1)];
+  }
+
+  /**
+   * Starts a new upload for {@code filename}, discarding any data of a previous one.
+   */
+  void begin(GcsFilename filename) {
+    Stripe stripe = stripeFor(filename);
+    synchronized (stripe) {
+      stripe.uploads.put(filename, new ArrayList<ByteBuffer>());
+    }
+  }
+
+  /**
+   * Appends {@code chunk}, which must not be modified afterwards, to the upload of
+   * {@code filename}.
+   */
+  void append(GcsFilename filename, ByteBuffer chunk) throws IOException {
+    Stripe stripe = stripeFor(filename);
+    synchronized (stripe) {
+      List<ByteBuffer> upload = stripe.uploads.get(filename);
+      if (upload == null) {
+        throw new IOException("No upload in progress for " + filename);
+      }
+      upload.add(chunk);
+    }
+  }
+
+  /**
+   * Ends the upload of {@code filename}, returning the chunks appended to it in order.
+   */
+  List<ByteBuffer> remove(GcsFilename filename) throws IOException {
+    Stripe stripe = stripeFor(filename);
+    synchronized (stripe) {
+      List<ByteBuffer> upload = stripe.uploads.remove(filename);
+      if (upload == null) {
+        throw new IOException("No upload in progress for " + filename);
+      }
+      return upload;
+    }
+  }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.cloudstorage.oauth;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.appidentity.AppIdentityService.GetAccessTokenResult;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Caches an access token for each set of scopes it is asked for, and renews each token in the
+ * background before it is about to expire so that requests do not wait for a new one.
+ *
+ * A token is about to expire once less than a randomized headroom is left before its expiration.
+ * It is renewed on a background thread {@link #BACKGROUND_REFRESH_LEAD_MILLIS} before that, if it
+ * was used since it was last renewed; the token of a set of scopes that is no longer used is left
+ * to expire. If no background thread is available or the renewal failed, the first request that
+ * finds the token about to expire renews it while parallel requests continue to use the old
+ * token. Only requests that find no valid token block on retrieving a new one.
+ */
+final class AccessTokenRefresher {
+  private static final Logger logger =
+      Logger.getLogger(AccessTokenRefresher.class.getCanonicalName());
+
+  /**
+   * A range of time is provided for the refresh so that multiple instance don't all attempt to
+   * refresh at the same time.
+   */
+  static final int MAX_CACHE_EXPIRATION_HEADROOM = 300000;
+  static final int MIN_CACHE_EXPIRATION_HEADROOM = 60000;
+
+  /**
+   * How long before a token is about to expire it is renewed in the background.
+   */
+  static final long BACKGROUND_REFRESH_LEAD_MILLIS = 60000;
+
+  /**
+   * How long to wait before renewing a token again after a background renewal failed.
+   */
+  private static final long BACKGROUND_RETRY_DELAY_MILLIS = 10000;
+
+  private final Random rand;
+  private final AccessTokenProvider accessTokenProvider;
+  private final ScheduledExecutorService executor;
+  private final ConcurrentMap<Set<String>, CachedToken> tokens = new ConcurrentHashMap<>();
+
+  /**
+   * The executor renewing the tokens of the default refresher, created when first needed.
+   */
+  private static final class Timer {
+    static final ScheduledExecutorService INSTANCE = create();
+
+    /**
+     * Uses an App Engine background thread if one can be started, a daemon thread otherwise.
+     */
+    private static ScheduledExecutorService create() {
+      try {
+        ScheduledThreadPoolExecutor timer =
+            new ScheduledThreadPoolExecutor(1, ThreadManager.backgroundThreadFactory());
+        if (timer.prestartCoreThread()) {
+          return timer;
+        }
+        timer.shutdown();
+      } catch (Exception e) {
+        logger.log(Level.FINE, "Background threads are not available", e);
+      }
+      return new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+          .setDaemon(true).setNameFormat("AccessTokenRefresher-%d").build());
+    }
+  }
+
+  /**
+   * @param accessTokenProvider retrieves new tokens
+   * @param executor renews tokens in the background, or {@code null} to only renew them when
+   *     they are requested
+   */
+  AccessTokenRefresher(AccessTokenProvider accessTokenProvider,
+      ScheduledExecutorService executor) {
+    this(accessTokenProvider, executor, new Random());
+  }
+
+  @VisibleForTesting
+  AccessTokenRefresher(AccessTokenProvider accessTokenProvider,
+      ScheduledExecutorService executor, Random rand) {
+    this.accessTokenProvider = checkNotNull(accessTokenProvider);
+    this.executor = executor;
+    this.rand = checkNotNull(rand);
+  }
+
+  /**
+   * Returns a refresher renewing the tokens of {@code accessTokenProvider} on a background thread.
+   */
+  static AccessTokenRefresher withBackgroundRefresh(AccessTokenProvider accessTokenProvider) {
+    return new AccessTokenRefresher(accessTokenProvider, Timer.INSTANCE);
+  }
+
+  /**
+   * Returns a valid access token for {@code scopes}, in any order.
+   */
+  String getToken(List<String> scopes) {
+    Set<String> key = ImmutableSortedSet.copyOf(scopes);
+    CachedToken cached = tokens.get(key);
+    if (cached == null) {
+      CachedToken newCached = new CachedToken(ImmutableList.copyOf(key));
+      cached = tokens.putIfAbsent(key, newCached);
+      if (cached == null) {
+        cached = newCached;
+      }
+    }
+    return cached.get();
+  }
+
+  /**
+   * The token of a set of scopes. The token itself is read without locking, the lock is held while
+   * a new token is retrieved.
+   */
+  private final class CachedToken implements Runnable {
+    private final List<String> scopes;
+    private final Lock lock = new ReentrantLock();
+    private volatile GetAccessTokenResult accessToken;
+    private volatile int cacheExpirationHeadroom;
+    private volatile boolean used;
+    private ScheduledFuture<?> scheduledRefresh;
+
+    /**
+     * Used to prevent multiple requests from being issued in parallel from the same instance.
+     */
+    private final AtomicBoolean refreshInProgress = new AtomicBoolean(false);
+
+    CachedToken(List<String> scopes) {
+      this.scopes = scopes;
+    }
+
+    String get() {
+      GetAccessTokenResult token = accessToken;
+      if (token == null || isExpired(token)
+          || (isAboutToExpire(token) && refreshInProgress.compareAndSet(false, true))) {
+        lock.lock();
+        try {
+          token = accessToken;
+          if (token == null || isAboutToExpire(token)) {
+            token = refresh();
+          }
+        } finally {
+          refreshInProgress.set(false);
+          lock.unlock();
+        }
+      }
+      used = true;
+      return token.getAccessToken();
+    }
+
+    /**
+     * Renews the token ahead of its expiration if it was used since it was last renewed.
+     */
+    @Override
+    public void run() {
+      lock.lock();
+      try {
+        scheduledRefresh = null;
+        if (!used) {
+          return;
+        }
+        try {
+          refresh();
+        } catch (RuntimeException e) {
+          logger.log(Level.WARNING, "Failed to renew the access token for " + scopes, e);
+          GetAccessTokenResult token = accessToken;
+          if (token != null && !isExpired(token)) {
+            schedule(BACKGROUND_RETRY_DELAY_MILLIS);
+          }
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Retrieves a new token and schedules its renewal. Must be called holding the lock.
+     */
+    private GetAccessTokenResult refresh() {
+      GetAccessTokenResult token = accessTokenProvider.getNewAccessToken(scopes);
+      accessToken = token;
+      cacheExpirationHeadroom = getNextCacheExpirationHeadroom();
+      used = false;
+      schedule(token.getExpirationTime().getTime() - cacheExpirationHeadroom
+          - BACKGROUND_REFRESH_LEAD_MILLIS - System.currentTimeMillis());
+      return token;
+    }
+
+    private void schedule(long delayMillis) {
+      if (executor == null) {
+        return;
+      }
+      if (scheduledRefresh != null) {
+        scheduledRefresh.cancel(false);
+      }
+      try {
+        scheduledRefresh = executor.schedule(this, Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+      } catch (RuntimeException e) {
+        scheduledRefresh = null;
+        logger.log(Level.FINE, "Unable to renew the access token in the background", e);
+      }
+    }
+
+    private boolean isExpired(GetAccessTokenResult token) {
+      return token.getExpirationTime().getTime() < System.currentTimeMillis();
+    }
+
+    private boolean isAboutToExpire(GetAccessTokenResult token) {
+      long now = System.currentTimeMillis();
+      return token.getExpirationTime().getTime() - cacheExpirationHeadroom < now;
+    }
+  }
+
+  private int getNextCacheExpirationHeadroom() {
+    return rand.nextInt(MAX_CACHE_EXPIRATION_HEADROOM - MIN_CACHE_EXPIRATION_HEADROOM)
+        + MIN_CACHE_EXPIRATION_HEADROOM;
+  }
+}
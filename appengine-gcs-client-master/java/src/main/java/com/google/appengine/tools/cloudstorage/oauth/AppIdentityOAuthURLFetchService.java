@@ -15,18 +15,13 @@
 package com.google.appengine.tools.cloudstorage.oauth;
 
 import com.google.appengine.api.appidentity.AppIdentityService;
-import com.google.appengine.api.appidentity.AppIdentityService.GetAccessTokenResult;
 import com.google.appengine.api.urlfetch.URLFetchService;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 
 import java.util.List;
-import java.util.Random;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Logger;
 
 /**
@@ -39,66 +34,57 @@ final class AppIdentityOAuthURLFetchService extends AbstractOAuthURLFetchService
   private static final Logger logger =
       Logger.getLogger(AppIdentityOAuthURLFetchService.class.getCanonicalName());
 
-  /**
-   * A range of time is provided for the refresh so that multiple instance don't all attempt to
-   * refresh at the same time.
-   */
-  private static final int MAX_CACHE_EXPIRATION_HEADROOM = 300000;
-  private static final int MIN_CACHE_EXPIRATION_HEADROOM = 60000;
-
-  private final Random rand = new Random();
-  private final Lock lock = new ReentrantLock();
-  private final AccessTokenProvider accessTokenProvider;
+  private final AccessTokenRefresher accessTokenRefresher;
   private final List<String> oauthScopes;
-  private final AtomicReference<GetAccessTokenResult> accessToken = new AtomicReference<>();
-  private final AtomicInteger cacheExpirationHeadroom =
-      new AtomicInteger(getNextCacheExpirationHeadroom());
 
   /**
-   * Used to prevent multiple requests from being issued in parallel from the same instance.
+   * The refreshers shared by all instances, keyed by the provider class named by
+   * {@link AccessTokenProvider#SYSTEM_PROPERTY_NAME} or by the empty string for the default one, so
+   * that the tokens of every set of scopes are cached and renewed in the background once per
+   * provider. The property is read whenever an instance is created, as
+   * {@link com.google.appengine.tools.cloudstorage.GcsServiceFactory} does.
    */
-  private final AtomicBoolean refreshInProgress = new AtomicBoolean(false);
+  private static final ConcurrentMap<String, AccessTokenRefresher> sharedRefreshers =
+      new ConcurrentHashMap<>();
 
   AppIdentityOAuthURLFetchService(URLFetchService urlFetch, List<String> oauthScopes) {
+    this(urlFetch, oauthScopes, getSharedRefresher());
+  }
+
+  AppIdentityOAuthURLFetchService(URLFetchService urlFetch, List<String> oauthScopes,
+      AccessTokenRefresher accessTokenRefresher) {
     super(urlFetch);
     this.oauthScopes = ImmutableList.copyOf(oauthScopes);
-    this.accessTokenProvider = createAccessTokenProvider();
+    this.accessTokenRefresher = accessTokenRefresher;
   }
 
   /**
-   * Attempts to return the token from cache. If this is not possible because it is expired or was
-   * never assigned, a new token is requested and parallel requests will block on retrieving a new
-   * token. As such no guarantee of maximum latency is provided.
-   *
-   * To avoid blocking the token is refreshed before it's expiration, while parallel requests
-   * continue to use the old token.
+   * Returns the cached token, which is renewed in the background before it is about to expire.
+   * If it is expired or was never assigned, a new token is requested and parallel requests will
+   * block on retrieving it. As such no guarantee of maximum latency is provided.
    */
   @Override
   protected String getToken() {
-    GetAccessTokenResult token = accessToken.get();
-    if (token == null || isExpired(token)
-        || (isAboutToExpire(token) && refreshInProgress.compareAndSet(false, true))) {
-      lock.lock();
-      try {
-        token = accessToken.get();
-        if (token == null || isAboutToExpire(token)) {
-          token = accessTokenProvider.getNewAccessToken(oauthScopes);
-          accessToken.set(token);
-          cacheExpirationHeadroom.set(getNextCacheExpirationHeadroom());
-        }
-      } finally {
-        refreshInProgress.set(false);
-        lock.unlock();
-      }
-    }
-    return token.getAccessToken();
+    return accessTokenRefresher.getToken(oauthScopes);
   }
 
-  private AccessTokenProvider createAccessTokenProvider() {
+  private static AccessTokenRefresher getSharedRefresher() {
     String providerClassName =
-        Strings.emptyToNull(System.getProperty(AccessTokenProvider.SYSTEM_PROPERTY_NAME));
+        Strings.nullToEmpty(System.getProperty(AccessTokenProvider.SYSTEM_PROPERTY_NAME));
+    AccessTokenRefresher refresher = sharedRefreshers.get(providerClassName);
+    if (refresher == null) {
+      AccessTokenRefresher newRefresher = AccessTokenRefresher.withBackgroundRefresh(
+          createAccessTokenProvider(providerClassName));
+      refresher = sharedRefreshers.putIfAbsent(providerClassName, newRefresher);
+      if (refresher == null) {
+        refresher = newRefresher;
+      }
+    }
+    return refresher;
+  }
 
-    if (providerClassName != null) {
+  private static AccessTokenProvider createAccessTokenProvider(String providerClassName) {
+    if (!providerClassName.isEmpty()) {
       try {
         @SuppressWarnings("unchecked")
         Class<AccessTokenProvider> providerClass = (Class<AccessTokenProvider>)
@@ -115,18 +101,4 @@ final class AppIdentityOAuthURLFetchService extends AbstractOAuthURLFetchService
 
     return new AppIdentityAccessTokenProvider();
   }
-
-  private boolean isExpired(GetAccessTokenResult token) {
-    return token.getExpirationTime().getTime() < System.currentTimeMillis();
-  }
-
-  private boolean isAboutToExpire(GetAccessTokenResult token) {
-    long now = System.currentTimeMillis();
-    return token.getExpirationTime().getTime() - cacheExpirationHeadroom.get() < now;
-  }
-
-  private final int getNextCacheExpirationHeadroom() {
-    return rand.nextInt(MAX_CACHE_EXPIRATION_HEADROOM - MIN_CACHE_EXPIRATION_HEADROOM)
-        + MIN_CACHE_EXPIRATION_HEADROOM;
-  }
 }
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.cloudstorage.oauth;
+
+import static javax.xml.stream.XMLStreamConstants.END_ELEMENT;
+import static javax.xml.stream.XMLStreamConstants.START_ELEMENT;
+
+import com.google.appengine.tools.cloudstorage.ListItem;
+import com.google.appengine.tools.cloudstorage.RawGcsService.ListItemBatch;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.xml.bind.DatatypeConverter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Parses the response to a bucket listing request.
+ *
+ * Unlike {@link XmlHandler}, which creates an event and tracks the path of every element, this
+ * parser walks the document with a cursor ({@link XMLStreamReader}) and builds each
+ * {@link ListItem} as soon as its {@code Contents} element is read. Element names are mapped to
+ * the constants of this class once and compared by identity afterwards, and elements that are not
+ * needed (such as {@code Owner}) are skipped without collecting their text. Timestamps are
+ * parsed by {@link #parseTimestamp}, which handles the format used by GCS without going through
+ * {@link java.util.Calendar}.
+ */
+final class ListBucketResultParser {
+
+  private static final String LIST_BUCKET_RESULT = "ListBucketResult";
+  private static final String NEXT_MARKER = "NextMarker";
+  private static final String CONTENTS = "Contents";
+  private static final String KEY = "Key";
+  private static final String LAST_MODIFIED = "LastModified";
+  private static final String ETAG = "ETag";
+  private static final String SIZE = "Size";
+  private static final String COMMON_PREFIXES = "CommonPrefixes";
+  private static final String PREFIX = "Prefix";
+
+  /**
+   * Earlier dates are left to {@link DatatypeConverter}, which uses the Julian calendar before the
+   * Gregorian cutover.
+   */
+  private static final int MIN_FAST_YEAR = 1600;
+
+  private static final ThreadLocal<XMLInputFactory> FACTORY = new ThreadLocal<XMLInputFactory>() {
+    @Override
+    protected XMLInputFactory initialValue() {
+      XMLInputFactory factory = XMLInputFactory.newInstance();
+      factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+      factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+      factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+      return factory;
+    }
+  };
+
+  private ListBucketResultParser() {}
+
+  static ListItemBatch parse(byte[] content) throws XMLStreamException {
+    XMLStreamReader reader =
+        FACTORY.get().createXMLStreamReader(new ByteArrayInputStream(content));
+    try {
+      List<ListItem> items = new ArrayList<>();
+      String nextMarker = null;
+      if (reader.nextTag() != START_ELEMENT || name(reader) != LIST_BUCKET_RESULT) {
+        throw new XMLStreamException("Expected " + LIST_BUCKET_RESULT, reader.getLocation());
+      }
+      while (reader.nextTag() == START_ELEMENT) {
+        String name = name(reader);
+        if (name == NEXT_MARKER) {
+          nextMarker = text(reader);
+        } else if (name == CONTENTS) {
+          items.add(parseContents(reader));
+        } else if (name == COMMON_PREFIXES) {
+          parseCommonPrefixes(reader, items);
+        } else {
+          skipElement(reader);
+        }
+      }
+      return new ListItemBatch(items, nextMarker);
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static ListItem parseContents(XMLStreamReader reader) throws XMLStreamException {
+    ListItem.Builder builder = new ListItem.Builder();
+    while (reader.nextTag() == START_ELEMENT) {
+      String name = name(reader);
+      if (name == KEY) {
+        builder.setName(text(reader));
+      } else if (name == LAST_MODIFIED) {
+        builder.setLastModified(parseTimestamp(text(reader)));
+      } else if (name == ETAG) {
+        builder.setEtag(text(reader));
+      } else if (name == SIZE) {
+        builder.setLength(Long.parseLong(text(reader)));
+      } else {
+        skipElement(reader);
+      }
+    }
+    return builder.build();
+  }
+
+  private static void parseCommonPrefixes(XMLStreamReader reader, List<ListItem> items)
+      throws XMLStreamException {
+    while (reader.nextTag() == START_ELEMENT) {
+      if (name(reader) == PREFIX) {
+        items.add(new ListItem.Builder().setName(text(reader)).setDirectory(true).build());
+      } else {
+        skipElement(reader);
+      }
+    }
+  }
+
+  /**
+   * Returns the constant of this class matching the local name of the current element, or null
+   * if it is not one that the parser is interested in.
+   */
+  private static String name(XMLStreamReader reader) {
+    switch (reader.getLocalName()) {
+      case LIST_BUCKET_RESULT:
+        return LIST_BUCKET_RESULT;
+      case NEXT_MARKER:
+        return NEXT_MARKER;
+      case CONTENTS:
+        return CONTENTS;
+      case KEY:
+        return KEY;
+      case LAST_MODIFIED:
+        return LAST_MODIFIED;
+      case ETAG:
+        return ETAG;
+      case SIZE:
+        return SIZE;
+      case COMMON_PREFIXES:
+        return COMMON_PREFIXES;
+      case PREFIX:
+        return PREFIX;
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Returns the trimmed text of the current element, leaving the reader at its end.
+   */
+  private static String text(XMLStreamReader reader) throws XMLStreamException {
+    return reader.getElementText().trim();
+  }
+
+  /**
+   * Skips the current element and all of its content, leaving the reader at its end.
+   */
+  private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+    int depth = 1;
+    while (depth > 0) {
+      switch (reader.next()) {
+        case START_ELEMENT:
+          depth++;
+          break;
+        case END_ELEMENT:
+          depth--;
+          break;
+        default:
+          break;
+      }
+    }
+  }
+
+  /**
+   * Parses an ISO-8601 timestamp of the form {@code yyyy-MM-ddTHH:mm:ss[.SSS...](Z|+hh:mm|-hh:mm)}.
+   * Digits of the fraction beyond milliseconds are ignored. Anything else is left to
+   * {@link DatatypeConverter#parseDateTime}.
+   */
+  static Date parseTimestamp(String value) {
+    int length = value.length();
+    if (length < 20 || value.charAt(4) != '-' || value.charAt(7) != '-'
+        || value.charAt(10) != 'T' || value.charAt(13) != ':' || value.charAt(16) != ':') {
+      return DatatypeConverter.parseDateTime(value).getTime();
+    }
+    int year = digits(value, 0, 4);
+    int month = digits(value, 5, 2);
+    int day = digits(value, 8, 2);
+    int hour = digits(value, 11, 2);
+    int minute = digits(value, 14, 2);
+    int second = digits(value, 17, 2);
+    int pos = 19;
+    int millis = 0;
+    if (value.charAt(pos) == '.') {
+      int scale = 100;
+      pos++;
+      int start = pos;
+      while (pos < length && value.charAt(pos) >= '0' && value.charAt(pos) <= '9') {
+        millis += scale * (value.charAt(pos) - '0');
+        scale /= 10;
+        pos++;
+      }
+      if (pos == start) {
+        millis = -1;
+      }
+    }
+    boolean validZone = false;
+    int offsetMinutes = 0;
+    if (pos == length - 1 && value.charAt(pos) == 'Z') {
+      validZone = true;
+    } else if (pos == length - 6 && value.charAt(pos + 3) == ':'
+        && (value.charAt(pos) == '+' || value.charAt(pos) == '-')) {
+      int offsetHours = digits(value, pos + 1, 2);
+      int offset = digits(value, pos + 4, 2);
+      validZone = offsetHours >= 0 && offsetHours <= 14 && offset >= 0 && offset <= 59;
+      offsetMinutes = value.charAt(pos) == '-' ? -(offsetHours * 60 + offset)
+          : offsetHours * 60 + offset;
+    }
+    if (!validZone || year < MIN_FAST_YEAR || month < 1 || month > 12 || day < 1
+        || day > daysInMonth(year, month) || hour < 0 || hour > 23 || minute < 0 || minute > 59
+        || second < 0 || second > 59 || millis < 0) {
+      return DatatypeConverter.parseDateTime(value).getTime();
+    }
+    long seconds = daysSinceEpoch(year, month, day) * 86400L + hour * 3600 + minute * 60 + second
+        - offsetMinutes * 60L;
+    return new Date(seconds * 1000 + millis);
+  }
+
+  /**
+   * Returns the value of {@code count} decimal digits at {@code start}, or -1 if any of them is not
+   * a digit.
+   */
+  private static int digits(String value, int start, int count) {
+    int result = 0;
+    for (int i = start; i < start + count; i++) {
+      char c = value.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      result = result * 10 + c - '0';
+    }
+    return result;
+  }
+
+  private static int daysInMonth(int year, int month) {
+    switch (month) {
+      case 2:
+        boolean leap = year % 4 == 0 && (year % 100 != 0 || year % 400 == 0);
+        return leap ? 29 : 28;
+      case 4:
+      case 6:
+      case 9:
+      case 11:
+        return 30;
+      default:
+        return 31;
+    }
+  }
+
+  /**
+   * Returns the number of days from 1970-01-01 to the given date of the proleptic Gregorian
+   * calendar.
+   */
+  private static long daysSinceEpoch(int year, int month, int day) {
+    long y = month <= 2 ? year - 1 : year;
+    long era = (y >= 0 ? y : y - 399) / 400;
+    long yearOfEra = y - era * 400;
+    long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+    long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097 + dayOfEra - 719468;
+  }
+}
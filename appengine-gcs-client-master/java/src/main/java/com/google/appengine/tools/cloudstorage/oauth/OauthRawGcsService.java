@@ -41,11 +41,11 @@ import com.google.appengine.tools.cloudstorage.BadRangeException;
 import com.google.appengine.tools.cloudstorage.GcsFileMetadata;
 import com.google.appengine.tools.cloudstorage.GcsFileOptions;
 import com.google.appengine.tools.cloudstorage.GcsFilename;
-import com.google.appengine.tools.cloudstorage.ListItem;
+import com.google.appengine.tools.cloudstorage.PreconditionFailedException;
 import com.google.appengine.tools.cloudstorage.RawGcsService;
 import com.google.appengine.tools.cloudstorage.oauth.URLFetchUtils.HTTPRequestInfo;
-import com.google.appengine.tools.cloudstorage.oauth.XmlHandler.EventType;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
@@ -57,6 +57,7 @@ import com.google.common.io.BaseEncoding;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URI;
@@ -74,12 +75,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.annotation.Nullable;
-import javax.xml.bind.DatatypeConverter;
 import javax.xml.stream.XMLStreamException;
 
 /**
@@ -102,6 +103,8 @@ final class OauthRawGcsService implements RawGcsService {
   private static final String LAST_MODIFIED = "Last-Modified";
   private static final String LOCATION = "Location";
   private static final String RANGE = "Range";
+  private static final String IF_MATCH = "If-Match";
+  private static final String IF_NONE_MATCH = "If-None-Match";
   private static final String UPLOAD_ID = "upload_id";
   private static final String PREFIX = "prefix";
   private static final String MARKER = "marker";
@@ -169,7 +172,16 @@ final class OauthRawGcsService implements RawGcsService {
   private final ImmutableSet<HTTPHeader> headers;
 
   OauthRawGcsService(OAuthURLFetchService urlfetch, ImmutableSet<HTTPHeader> headers) {
-    this.urlfetch = checkNotNull(urlfetch, "Null urlfetch");
+    this(urlfetch, headers, null);
+  }
+
+  /**
+   * @param governor limits the requests sent through {@code urlfetch}, or {@code null}
+   */
+  OauthRawGcsService(OAuthURLFetchService urlfetch, ImmutableSet<HTTPHeader> headers,
+      RequestGovernor governor) {
+    checkNotNull(urlfetch, "Null urlfetch");
+    this.urlfetch = governor == null ? urlfetch : governor.govern(urlfetch);
     this.headers = checkNotNull(headers, "Null headers");
     AppIdentityCredential cred = new AppIdentityCredential(OAUTH_SCOPES);
     storage = new Storage.Builder(new UrlFetchTransport(), new JacksonFactory(), cred)
@@ -256,6 +268,11 @@ final class OauthRawGcsService implements RawGcsService {
     return WRITE_LIMIT_BYTES;
   }
 
+  @Override
+  public int getMaxReadSizeBytes() {
+    return READ_LIMIT_BYTES;
+  }
+
   @Override
   public RawGcsCreationToken beginObjectCreation(
       GcsFilename filename, GcsFileOptions options, long timeoutMillis) throws IOException {
@@ -439,17 +456,21 @@ final class OauthRawGcsService implements RawGcsService {
     };
   }
 
-  private static byte[] peekBytes(ByteBuffer in) {
-    if (in.hasArray() && in.position() == 0
-        && in.arrayOffset() == 0 && in.array().length == in.limit()) {
+  /**
+   * Returns the remaining bytes of {@code in} as an array without modifying {@code in}. URLFetch
+   * only accepts a {@code byte[]} payload, so the backing array is used as is when it holds exactly
+   * the remaining bytes (as is the case for full heap write buffers) and the bytes are copied once
+   * otherwise, e.g. for direct buffers or partially filled ones.
+   */
+  @VisibleForTesting
+  static byte[] peekBytes(ByteBuffer in) {
+    if (in.hasArray() && in.arrayOffset() + in.position() == 0
+        && in.remaining() == in.array().length) {
       return in.array();
-    } else {
-      int pos = in.position();
-      byte[] buf = new byte[in.remaining()];
-      in.get(buf);
-      in.position(pos);
-      return buf;
     }
+    byte[] buf = new byte[in.remaining()];
+    in.duplicate().get(buf);
+    return buf;
   }
 
   /** True if deleted, false if not found. */
@@ -462,13 +483,47 @@ final class OauthRawGcsService implements RawGcsService {
     } catch (IOException e) {
       throw createIOException(new HTTPRequestInfo(req), e);
     }
+    return handleDeleteResponse(new HTTPRequestInfo(req), resp);
+  }
+
+  @Override
+  public Future<Boolean> deleteObjectAsync(GcsFilename filename, long timeoutMillis) {
+    HTTPRequest req = makeRequest(filename, null, DELETE, timeoutMillis);
+    final HTTPRequestInfo info = new HTTPRequestInfo(req);
+    return new FutureWrapper<HTTPResponse, Boolean>(urlfetch.fetchAsync(req)) {
+      @Override
+      protected Boolean wrap(HTTPResponse resp) throws IOException {
+        return handleDeleteResponse(info, resp);
+      }
+
+      @Override
+      protected Throwable convertException(Throwable e) {
+        return OauthRawGcsService.convertException(info, e);
+      }
+    };
+  }
+
+  @Override
+  public List<Future<Boolean>> deleteObjects(Iterable<GcsFilename> filenames,
+      int maxConcurrentRequests, final long timeoutMillis) throws IOException {
+    return pipeline(filenames, maxConcurrentRequests,
+        new Function<GcsFilename, Future<Boolean>>() {
+          @Override
+          public Future<Boolean> apply(GcsFilename filename) {
+            return deleteObjectAsync(filename, timeoutMillis);
+          }
+        });
+  }
+
+  private static boolean handleDeleteResponse(HTTPRequestInfo info, HTTPResponse resp)
+      throws IOException {
     switch (resp.getResponseCode()) {
       case 204:
         return true;
       case 404:
         return false;
       default:
-        throw HttpErrorHandler.error(new HTTPRequestInfo(req), resp);
+        throw HttpErrorHandler.error(info, resp);
     }
   }
 
@@ -488,8 +543,18 @@ final class OauthRawGcsService implements RawGcsService {
    * Might not fill all of dst.
    */
   @Override
-  public Future<GcsFileMetadata> readObjectAsync(final ByteBuffer dst, final GcsFilename filename,
+  public Future<GcsFileMetadata> readObjectAsync(ByteBuffer dst, GcsFilename filename,
       long startOffsetBytes, long timeoutMillis) {
+    return readObjectAsync(dst, filename, startOffsetBytes, null, null, timeoutMillis);
+  }
+
+  /**
+   * The conditions are sent as {@code If-Match} and {@code If-None-Match} headers, so an object
+   * that has not changed costs a 304 response without content.
+   */
+  @Override
+  public Future<GcsFileMetadata> readObjectAsync(final ByteBuffer dst, final GcsFilename filename,
+      long startOffsetBytes, String ifMatch, String ifNoneMatch, long timeoutMillis) {
     Preconditions.checkArgument(startOffsetBytes >= 0, "%s: offset must be non-negative: %s", this,
         startOffsetBytes);
     final int n = dst.remaining();
@@ -499,6 +564,12 @@ final class OauthRawGcsService implements RawGcsService {
     final HTTPRequest req = makeRequest(filename, null, GET, timeoutMillis);
     req.setHeader(
         new HTTPHeader(RANGE, "bytes=" + startOffsetBytes + "-" + (startOffsetBytes + want - 1)));
+    if (ifMatch != null) {
+      req.setHeader(new HTTPHeader(IF_MATCH, ifMatch));
+    }
+    if (ifNoneMatch != null) {
+      req.setHeader(new HTTPHeader(IF_NONE_MATCH, ifNoneMatch));
+    }
     final HTTPRequestInfo info = new HTTPRequestInfo(req);
     return new FutureWrapper<HTTPResponse, GcsFileMetadata>(urlfetch.fetchAsync(req)) {
       @Override
@@ -511,14 +582,20 @@ final class OauthRawGcsService implements RawGcsService {
           case 206:
             totalLength = getLengthFromContentRange(resp);
             break;
+          case 304:
+            return null;
           case 404:
             throw new FileNotFoundException("Could not find: " + filename);
+          case 412:
+            throw new PreconditionFailedException("ETag of " + filename + " has changed: "
+                + URLFetchUtils.describeRequestAndResponse(info, resp));
           case 416:
             throw new BadRangeException("Requested Range not satisfiable; perhaps read past EOF? "
                 + URLFetchUtils.describeRequestAndResponse(info, resp));
           default:
             throw HttpErrorHandler.error(info, resp);
         }
+        // The response array is owned by URLFetch, so copying it into dst is the only copy made.
         byte[] content = resp.getContent();
         Preconditions.checkState(content.length <= want, "%s: got %s > wanted %s", this,
             content.length, want);
@@ -551,12 +628,88 @@ final class OauthRawGcsService implements RawGcsService {
     } catch (IOException e) {
       throw createIOException(new HTTPRequestInfo(req), e);
     }
+    return handleMetadataResponse(filename, new HTTPRequestInfo(req), resp);
+  }
+
+  @Override
+  public Future<GcsFileMetadata> getObjectMetadataAsync(final GcsFilename filename,
+      long timeoutMillis) {
+    HTTPRequest req = makeRequest(filename, null, HEAD, timeoutMillis);
+    final HTTPRequestInfo info = new HTTPRequestInfo(req);
+    return new FutureWrapper<HTTPResponse, GcsFileMetadata>(urlfetch.fetchAsync(req)) {
+      @Override
+      protected GcsFileMetadata wrap(HTTPResponse resp) throws IOException {
+        return handleMetadataResponse(filename, info, resp);
+      }
+
+      @Override
+      protected Throwable convertException(Throwable e) {
+        return OauthRawGcsService.convertException(info, e);
+      }
+    };
+  }
+
+  @Override
+  public List<Future<GcsFileMetadata>> getObjectMetadata(Iterable<GcsFilename> filenames,
+      int maxConcurrentRequests, final long timeoutMillis) throws IOException {
+    return pipeline(filenames, maxConcurrentRequests,
+        new Function<GcsFilename, Future<GcsFileMetadata>>() {
+          @Override
+          public Future<GcsFileMetadata> apply(GcsFilename filename) {
+            return getObjectMetadataAsync(filename, timeoutMillis);
+          }
+        });
+  }
+
+  /**
+   * Starts a request for each of {@code filenames}, waiting for the oldest request to complete
+   * whenever {@code maxConcurrentRequests} are in flight, and returns once all of them are done.
+   * The outcome of each request, successful or not, is left in its future.
+   */
+  private static <T> List<Future<T>> pipeline(Iterable<GcsFilename> filenames,
+      int maxConcurrentRequests, Function<GcsFilename, Future<T>> request)
+      throws InterruptedIOException {
+    Preconditions.checkArgument(maxConcurrentRequests >= 1,
+        "Must allow at least one concurrent request. Was: " + maxConcurrentRequests);
+    List<Future<T>> results = new ArrayList<>();
+    int done = 0;
+    try {
+      for (GcsFilename filename : filenames) {
+        if (results.size() - done >= maxConcurrentRequests) {
+          awaitCompletion(results.get(done++));
+        }
+        results.add(request.apply(filename));
+      }
+      while (done < results.size()) {
+        awaitCompletion(results.get(done++));
+      }
+    } catch (InterruptedException e) {
+      for (Future<T> result : results.subList(done, results.size())) {
+        result.cancel(true);
+      }
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted after " + done + " of " + results.size()
+          + " requests completed");
+    }
+    return results;
+  }
+
+  private static void awaitCompletion(Future<?> future) throws InterruptedException {
+    try {
+      future.get();
+    } catch (ExecutionException e) {
+      // The failure is reported to the caller through the future itself.
+    }
+  }
+
+  private GcsFileMetadata handleMetadataResponse(GcsFilename filename, HTTPRequestInfo info,
+      HTTPResponse resp) throws IOException {
     int responseCode = resp.getResponseCode();
     if (responseCode == 404) {
       return null;
     }
     if (responseCode != 200) {
-      throw HttpErrorHandler.error(new HTTPRequestInfo(req), resp);
+      throw HttpErrorHandler.error(info, resp);
     }
     return getMetadataFromResponse(
         filename, resp, getLengthFromHeader(resp, X_GOOG_CONTENT_LENGTH));
@@ -619,6 +772,26 @@ final class OauthRawGcsService implements RawGcsService {
   @Override
   public void composeObject(Iterable<String> source, GcsFilename dest, long timeoutMillis)
       throws IOException {
+    HTTPRequest req = makeComposeRequest(source, dest, timeoutMillis);
+    HTTPResponse resp;
+    try {
+      resp = urlfetch.fetch(req);
+    } catch (IOException e) {
+      throw createIOException(new HTTPRequestInfo(req), e);
+    }
+    if (resp.getResponseCode() != 200) {
+      throw HttpErrorHandler.error(new HTTPRequestInfo(req), resp);
+    }
+  }
+
+  @Override
+  public Future<Void> composeObjectAsync(Iterable<String> source, GcsFilename dest,
+      long timeoutMillis) {
+    return fetchExpectingOk(makeComposeRequest(source, dest, timeoutMillis));
+  }
+
+  private HTTPRequest makeComposeRequest(Iterable<String> source, GcsFilename dest,
+      long timeoutMillis) {
     StringBuilder xmlContent = new StringBuilder(Iterables.size(source) * 50);
     Escaper escaper = XmlEscapers.xmlContentEscaper();
     xmlContent.append("<ComposeRequest>");
@@ -628,8 +801,14 @@ final class OauthRawGcsService implements RawGcsService {
           .append("</Name></Component>");
     }
     xmlContent.append("</ComposeRequest>");
-    HTTPRequest req = makeRequest(
+    return makeRequest(
         dest, COMPOSE_QUERY_STRINGS, PUT, timeoutMillis, xmlContent.toString().getBytes(UTF_8));
+  }
+
+  @Override
+  public void copyObject(GcsFilename source, GcsFilename dest, GcsFileOptions fileOptions,
+      long timeoutMillis) throws IOException {
+    HTTPRequest req = makeCopyRequest(source, dest, fileOptions, timeoutMillis);
     HTTPResponse resp;
     try {
       resp = urlfetch.fetch(req);
@@ -642,23 +821,41 @@ final class OauthRawGcsService implements RawGcsService {
   }
 
   @Override
-  public void copyObject(GcsFilename source, GcsFilename dest, GcsFileOptions fileOptions,
-      long timeoutMillis) throws IOException {
+  public Future<Void> copyObjectAsync(GcsFilename source, GcsFilename dest,
+      GcsFileOptions fileOptions, long timeoutMillis) {
+    return fetchExpectingOk(makeCopyRequest(source, dest, fileOptions, timeoutMillis));
+  }
+
+  private HTTPRequest makeCopyRequest(GcsFilename source, GcsFilename dest,
+      GcsFileOptions fileOptions, long timeoutMillis) {
     HTTPRequest req = makeRequest(dest, null, PUT, timeoutMillis);
     req.setHeader(new HTTPHeader(X_GOOG_COPY_SOURCE, makePath(source)));
     if (fileOptions != null) {
       req.setHeader(REPLACE_METADATA_HEADER);
       addOptionsHeaders(req, fileOptions);
     }
-    HTTPResponse resp;
-    try {
-      resp = urlfetch.fetch(req);
-    } catch (IOException e) {
-      throw createIOException(new HTTPRequestInfo(req), e);
-    }
-    if (resp.getResponseCode() != 200) {
-      throw HttpErrorHandler.error(new HTTPRequestInfo(req), resp);
-    }
+    return req;
+  }
+
+  /**
+   * Issues {@code req} asynchronously, failing the returned future unless the response is 200.
+   */
+  private Future<Void> fetchExpectingOk(HTTPRequest req) {
+    final HTTPRequestInfo info = new HTTPRequestInfo(req);
+    return new FutureWrapper<HTTPResponse, Void>(urlfetch.fetchAsync(req)) {
+      @Override
+      protected Void wrap(HTTPResponse resp) throws IOException {
+        if (resp.getResponseCode() != 200) {
+          throw HttpErrorHandler.error(info, resp);
+        }
+        return null;
+      }
+
+      @Override
+      protected Throwable convertException(Throwable e) {
+        return OauthRawGcsService.convertException(info, e);
+      }
+    };
   }
 
   static final List<String> NEXT_MARKER = ImmutableList.of("ListBucketResult", "NextMarker");
@@ -680,6 +877,36 @@ final class OauthRawGcsService implements RawGcsService {
   public ListItemBatch list(String bucket, String prefix, String delimiter, String marker,
       int maxResults,
       long timeoutMillis) throws IOException {
+    HTTPRequest req = makeListRequest(bucket, prefix, delimiter, marker, maxResults, timeoutMillis);
+    HTTPResponse resp;
+    try {
+      resp = urlfetch.fetch(req);
+    } catch (IOException e) {
+      throw createIOException(new HTTPRequestInfo(req), e);
+    }
+    return handleListResponse(new HTTPRequestInfo(req), resp);
+  }
+
+  @Override
+  public Future<ListItemBatch> listAsync(String bucket, String prefix, String delimiter,
+      String marker, int maxResults, long timeoutMillis) {
+    HTTPRequest req = makeListRequest(bucket, prefix, delimiter, marker, maxResults, timeoutMillis);
+    final HTTPRequestInfo info = new HTTPRequestInfo(req);
+    return new FutureWrapper<HTTPResponse, ListItemBatch>(urlfetch.fetchAsync(req)) {
+      @Override
+      protected ListItemBatch wrap(HTTPResponse resp) throws IOException {
+        return handleListResponse(info, resp);
+      }
+
+      @Override
+      protected Throwable convertException(Throwable e) {
+        return OauthRawGcsService.convertException(info, e);
+      }
+    };
+  }
+
+  private HTTPRequest makeListRequest(String bucket, String prefix, String delimiter,
+      String marker, int maxResults, long timeoutMillis) {
     GcsFilename filename = new GcsFilename(bucket, "");
     Map<String, String> queryStrings = new LinkedHashMap<>();
     if (!Strings.isNullOrEmpty(prefix)) {
@@ -694,72 +921,18 @@ final class OauthRawGcsService implements RawGcsService {
     if (maxResults >= 0) {
       queryStrings.put(MAX_KEYS, String.valueOf(maxResults));
     }
-    HTTPRequest req = makeRequest(filename, queryStrings, GET, timeoutMillis);
-    HTTPResponse resp;
-    try {
-      resp = urlfetch.fetch(req);
-    } catch (IOException e) {
-      throw createIOException(new HTTPRequestInfo(req), e);
-    }
+    return makeRequest(filename, queryStrings, GET, timeoutMillis);
+  }
+
+  private ListItemBatch handleListResponse(HTTPRequestInfo info, HTTPResponse resp)
+      throws IOException {
     if (resp.getResponseCode() != 200) {
-      throw HttpErrorHandler.error(new HTTPRequestInfo(req), resp);
+      throw HttpErrorHandler.error(info, resp);
     }
-    String nextMarker = null;
-    List<ListItem> items = new ArrayList<>();
     try {
-      XmlHandler xmlHandler = new XmlHandler(resp.getContent(), PATHS);
-      while (xmlHandler.hasNext()) {
-        XmlHandler.XmlEvent event = xmlHandler.next();
-        if (event.getEventType() == EventType.CLOSE_ELEMENT) {
-          switch (event.getName()) {
-            case "NextMarker":
-              nextMarker = event.getValue();
-              break;
-            case "Prefix":
-              String name = event.getValue();
-              items.add(new ListItem.Builder().setName(name).setDirectory(true).build());
-              break;
-            default:
-              break;
-          }
-        } else if (event.getName().equals("Contents")) {
-          items.add(parseContents(xmlHandler));
-        }
-      }
+      return ListBucketResultParser.parse(resp.getContent());
     } catch (XMLStreamException e) {
       throw HttpErrorHandler.createException("Failed to parse response", e.getMessage());
     }
-    return new ListItemBatch(items, nextMarker);
-  }
-
-  private ListItem parseContents(XmlHandler xmlHandler) throws XMLStreamException {
-    ListItem.Builder builder = new ListItem.Builder();
-    boolean isDone = false;
-    while (!isDone && xmlHandler.hasNext()) {
-      XmlHandler.XmlEvent event = xmlHandler.next();
-      if (event.getEventType() == EventType.OPEN_ELEMENT) {
-        continue;
-      }
-      switch (event.getName()) {
-        case "Key":
-          builder.setName(event.getValue());
-          break;
-        case "LastModified":
-          builder.setLastModified(DatatypeConverter.parseDateTime(event.getValue()).getTime());
-          break;
-        case "ETag":
-          builder.setEtag(event.getValue());
-          break;
-        case "Size":
-          builder.setLength(DatatypeConverter.parseLong(event.getValue()));
-          break;
-        case "Contents":
-          isDone = true;
-          break;
-        default:
-          break;
-      }
-    }
-    return builder.build();
   }
 }
@@ -38,6 +38,16 @@ public final class OauthRawGcsServiceFactory {
    * @return a new RawGcsService
    */
   public static RawGcsService createOauthRawGcsService(ImmutableSet<HTTPHeader> headers) {
-    return new OauthRawGcsService(appIdFetchService, headers);
+    return createOauthRawGcsService(headers, null);
+  }
+
+  /**
+   * @param headers
+   * @param governor limits the requests made by the service, or {@code null}
+   * @return a new RawGcsService
+   */
+  public static RawGcsService createOauthRawGcsService(ImmutableSet<HTTPHeader> headers,
+      RequestGovernor governor) {
+    return new OauthRawGcsService(appIdFetchService, headers, governor);
   }
 }
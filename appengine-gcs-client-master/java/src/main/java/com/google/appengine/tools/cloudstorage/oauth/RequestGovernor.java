@@ -0,0 +1,404 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.cloudstorage.oauth;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.appengine.api.urlfetch.HTTPRequest;
+import com.google.appengine.api.urlfetch.HTTPResponse;
+import com.google.appengine.tools.cloudstorage.RetryHelperException;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.ForwardingFuture;
+import com.google.common.util.concurrent.Futures;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the requests sent to Google Cloud Storage by {@link OauthRawGcsService}, so that under
+ * burst load requests wait in the application instead of exceeding the quota and being retried
+ * (see
+ * {@link com.google.appengine.tools.cloudstorage.GcsServiceOptions.Builder#setRequestGovernor}).
+ *
+ * Three limits may be set, and none is by default: the number of requests in flight, the number
+ * of requests per second and the number of bytes per second, counting both the payloads sent and
+ * the content received. The rates are enforced by token buckets holding a second's worth of
+ * tokens, so short bursts are not delayed. A request that would exceed a limit waits in the
+ * calling thread before it is sent, asynchronous ones included. As the size of a response is only
+ * known once it was received, it delays the requests that follow it.
+ *
+ * An asynchronous request is in flight until its future is seen to be done. Futures that are never
+ * waited for are checked while other requests wait for a slot.
+ *
+ * This class is thread-safe and a single instance may be shared by several services to limit them
+ * together. It has no effect on the local development server.
+ */
+public final class RequestGovernor {
+
+  private static final long SWEEP_INTERVAL_MILLIS = 10;
+
+  private final int maxInFlightRequests;
+  private final double requestsPerSecond;
+  private final long bytesPerSecond;
+  private final Ticker ticker;
+  private final Semaphore inFlightPermits;
+  private final TokenBucket requestBucket;
+  private final TokenBucket byteBucket;
+  private final Set<GovernedFuture> outstanding =
+      Collections.newSetFromMap(new ConcurrentHashMap<GovernedFuture, Boolean>());
+  private final AtomicLong requestCount = new AtomicLong();
+  private final AtomicLong queuedRequestCount = new AtomicLong();
+  private final AtomicLong queueNanos = new AtomicLong();
+  private final AtomicInteger waitingRequests = new AtomicInteger();
+  private final AtomicInteger inFlightRequests = new AtomicInteger();
+
+  /**
+   * RequestGovernor builder.
+   */
+  public static final class Builder {
+
+    private int maxInFlightRequests = Integer.MAX_VALUE;
+    private double requestsPerSecond = Double.POSITIVE_INFINITY;
+    private long bytesPerSecond = Long.MAX_VALUE;
+    private Ticker ticker = Ticker.systemTicker();
+
+    /**
+     * @param maxInFlightRequests the maximum number of requests sent but not yet completed
+     */
+    public Builder maxInFlightRequests(int maxInFlightRequests) {
+      checkArgument(maxInFlightRequests > 0, "maxInFlightRequests must be positive");
+      this.maxInFlightRequests = maxInFlightRequests;
+      return this;
+    }
+
+    /**
+     * @param requestsPerSecond the maximum sustained rate of requests
+     */
+    public Builder requestsPerSecond(double requestsPerSecond) {
+      checkArgument(requestsPerSecond > 0, "requestsPerSecond must be positive");
+      this.requestsPerSecond = requestsPerSecond;
+      return this;
+    }
+
+    /**
+     * @param bytesPerSecond the maximum sustained rate of bytes sent and received
+     */
+    public Builder bytesPerSecond(long bytesPerSecond) {
+      checkArgument(bytesPerSecond > 0, "bytesPerSecond must be positive");
+      this.bytesPerSecond = bytesPerSecond;
+      return this;
+    }
+
+    @VisibleForTesting
+    Builder ticker(Ticker ticker) {
+      this.ticker = checkNotNull(ticker);
+      return this;
+    }
+
+    public RequestGovernor build() {
+      return new RequestGovernor(this);
+    }
+  }
+
+  private RequestGovernor(Builder builder) {
+    maxInFlightRequests = builder.maxInFlightRequests;
+    requestsPerSecond = builder.requestsPerSecond;
+    bytesPerSecond = builder.bytesPerSecond;
+    ticker = builder.ticker;
+    inFlightPermits =
+        maxInFlightRequests == Integer.MAX_VALUE ? null : new Semaphore(maxInFlightRequests);
+    requestBucket = Double.isInfinite(requestsPerSecond)
+        ? null : new TokenBucket(requestsPerSecond, ticker);
+    byteBucket = bytesPerSecond == Long.MAX_VALUE ? null : new TokenBucket(bytesPerSecond, ticker);
+  }
+
+  /**
+   * A bucket that refills continuously at a fixed rate up to a second's worth of tokens. Tokens are
+   * taken without waiting and may leave the bucket in debt, which the following takers wait for.
+   */
+  @VisibleForTesting
+  static final class TokenBucket {
+
+    private final double tokensPerNano;
+    private final double capacity;
+    private final Ticker ticker;
+    private double tokens;
+    private long refilledAt;
+
+    TokenBucket(double tokensPerSecond, Ticker ticker) {
+      this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+      this.capacity = Math.max(tokensPerSecond, 1);
+      this.ticker = ticker;
+      tokens = capacity;
+      refilledAt = ticker.read();
+    }
+
+    /**
+     * Takes {@code count} tokens and returns how long to wait, in nanoseconds, until the bucket is
+     * no longer in debt.
+     */
+    synchronized long take(long count) {
+      long now = ticker.read();
+      tokens = Math.min(capacity, tokens + (now - refilledAt) * tokensPerNano);
+      refilledAt = now;
+      tokens -= count;
+      return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / tokensPerNano);
+    }
+  }
+
+  /**
+   * Returns a service that sends requests through {@code urlfetch} within the limits of this
+   * governor.
+   */
+  OAuthURLFetchService govern(final OAuthURLFetchService urlfetch) {
+    checkNotNull(urlfetch, "Null urlfetch");
+    return new OAuthURLFetchService() {
+      @Override
+      public HTTPResponse fetch(HTTPRequest req) throws IOException, RetryHelperException {
+        acquire(req);
+        HTTPResponse resp = null;
+        try {
+          resp = urlfetch.fetch(req);
+          return resp;
+        } finally {
+          release();
+          received(resp);
+        }
+      }
+
+      @Override
+      public Future<HTTPResponse> fetchAsync(HTTPRequest req) {
+        try {
+          acquire(req);
+        } catch (InterruptedIOException e) {
+          return Futures.immediateFailedFuture(e);
+        }
+        GovernedFuture future;
+        try {
+          future = new GovernedFuture(urlfetch.fetchAsync(req));
+        } catch (RuntimeException e) {
+          release();
+          throw e;
+        }
+        outstanding.add(future);
+        return future;
+      }
+
+      @Override
+      public String toString() {
+        return urlfetch + " governed by " + RequestGovernor.this;
+      }
+    };
+  }
+
+  /**
+   * Waits until {@code req} may be sent, first for the rates and then for a slot. Once this
+   * returns {@link #release} must be called when the request completes.
+   */
+  private void acquire(HTTPRequest req) throws InterruptedIOException {
+    requestCount.incrementAndGet();
+    long start = ticker.read();
+    boolean queued = false;
+    waitingRequests.incrementAndGet();
+    try {
+      long waitNanos = requestBucket == null ? 0 : requestBucket.take(1);
+      byte[] payload = req.getPayload();
+      if (byteBucket != null && payload != null) {
+        waitNanos = Math.max(waitNanos, byteBucket.take(payload.length));
+      }
+      if (waitNanos > 0) {
+        queued = true;
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+      }
+      if (inFlightPermits != null && !inFlightPermits.tryAcquire()) {
+        queued = true;
+        do {
+          sweep();
+        } while (!inFlightPermits.tryAcquire(SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting to send " + req.getMethod()
+          + " " + req.getURL() + " by " + this);
+    } finally {
+      waitingRequests.decrementAndGet();
+      if (queued) {
+        queuedRequestCount.incrementAndGet();
+        queueNanos.addAndGet(ticker.read() - start);
+      }
+    }
+    inFlightRequests.incrementAndGet();
+  }
+
+  private void release() {
+    inFlightRequests.decrementAndGet();
+    if (inFlightPermits != null) {
+      inFlightPermits.release();
+    }
+  }
+
+  private void received(HTTPResponse resp) {
+    if (byteBucket != null && resp != null && resp.getContent() != null) {
+      byteBucket.take(resp.getContent().length);
+    }
+  }
+
+  private void sweep() {
+    for (GovernedFuture future : outstanding) {
+      if (future.isDone()) {
+        future.releaseOnce();
+      }
+    }
+  }
+
+  /**
+   * The future of an asynchronous request, which releases its slot the first time it is seen to
+   * be done, and counts the content received when it is retrieved.
+   */
+  private final class GovernedFuture extends ForwardingFuture.SimpleForwardingFuture<HTTPResponse> {
+
+    private final AtomicBoolean released = new AtomicBoolean();
+    private final AtomicBoolean counted = new AtomicBoolean();
+
+    GovernedFuture(Future<HTTPResponse> delegate) {
+      super(delegate);
+    }
+
+    void releaseOnce() {
+      if (released.compareAndSet(false, true)) {
+        outstanding.remove(this);
+        release();
+      }
+    }
+
+    private HTTPResponse completed(HTTPResponse resp) {
+      releaseOnce();
+      if (counted.compareAndSet(false, true)) {
+        received(resp);
+      }
+      return resp;
+    }
+
+    @Override
+    public HTTPResponse get() throws InterruptedException, ExecutionException {
+      try {
+        return completed(super.get());
+      } catch (ExecutionException | RuntimeException e) {
+        releaseOnce();
+        throw e;
+      }
+    }
+
+    @Override
+    public HTTPResponse get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      try {
+        return completed(super.get(timeout, unit));
+      } catch (ExecutionException | RuntimeException e) {
+        releaseOnce();
+        throw e;
+      }
+    }
+
+    @Override
+    public boolean isDone() {
+      boolean done = super.isDone();
+      if (done) {
+        releaseOnce();
+      }
+      return done;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      boolean cancelled = super.cancel(mayInterruptIfRunning);
+      if (cancelled) {
+        releaseOnce();
+      }
+      return cancelled;
+    }
+  }
+
+  public int getMaxInFlightRequests() {
+    return maxInFlightRequests;
+  }
+
+  public double getRequestsPerSecond() {
+    return requestsPerSecond;
+  }
+
+  public long getBytesPerSecond() {
+    return bytesPerSecond;
+  }
+
+  /**
+   * Returns the number of requests that were sent or are waiting to be.
+   */
+  public long getRequestCount() {
+    return requestCount.get();
+  }
+
+  /**
+   * Returns the number of requests that had to wait before being sent.
+   */
+  public long getQueuedRequestCount() {
+    return queuedRequestCount.get();
+  }
+
+  /**
+   * Returns the total time that requests waited before being sent.
+   */
+  public long getQueueTimeNanos() {
+    return queueNanos.get();
+  }
+
+  /**
+   * Returns the number of requests currently waiting to be sent.
+   */
+  public int getWaitingRequests() {
+    return waitingRequests.get();
+  }
+
+  /**
+   * Returns the number of requests currently sent but not yet completed.
+   */
+  public int getInFlightRequests() {
+    return inFlightRequests.get();
+  }
+
+  @Override
+  public String toString() {
+    return "RequestGovernor [maxInFlightRequests=" + maxInFlightRequests + ", requestsPerSecond="
+        + requestsPerSecond + ", bytesPerSecond=" + bytesPerSecond + ", requestCount="
+        + requestCount + ", queuedRequestCount=" + queuedRequestCount + ", queueTimeNanos="
+        + queueNanos + ", waitingRequests=" + waitingRequests + ", inFlightRequests="
+        + inFlightRequests + "]";
+  }
+}
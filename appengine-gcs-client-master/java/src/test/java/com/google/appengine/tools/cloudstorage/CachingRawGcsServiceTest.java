@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.cloudstorage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.FileNotFoundException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/** Verify behaviors of {@link CachingRawGcsService}. */
+@RunWith(JUnit4.class)
+public class CachingRawGcsServiceTest {
+
+  private final InMemoryRawGcsService storage = new InMemoryRawGcsService();
+  private final ObjectCache cache = new ObjectCache(1000, 100);
+
+  /**
+   * Only deletes or copies objects once the test runs the returned future.
+   */
+  private static final class DeferredMutations extends ForwardingRawGcsService {
+    private FutureTask<?> pending;
+
+    DeferredMutations(RawGcsService raw) {
+      super(raw);
+    }
+
+    private <V> Future<V> defer(Callable<V> mutation) {
+      FutureTask<V> task = new FutureTask<>(mutation);
+      pending = task;
+      return task;
+    }
+
+    @Override
+    public Future<Boolean> deleteObjectAsync(final GcsFilename filename,
+        final long timeoutMillis) {
+      return defer(new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws Exception {
+          return raw.deleteObject(filename, timeoutMillis);
+        }
+      });
+    }
+
+    @Override
+    public Future<Void> copyObjectAsync(final GcsFilename source, final GcsFilename dest,
+        final GcsFileOptions fileOptions, final long timeoutMillis) {
+      return defer(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          raw.copyObject(source, dest, fileOptions, timeoutMillis);
+          return null;
+        }
+      });
+    }
+  }
+
+  @Test
+  public void testReadDuringAsyncDelete() throws Exception {
+    DeferredMutations deferred = new DeferredMutations(storage);
+    RawGcsService caching = new CachingRawGcsService(deferred, cache, null);
+    GcsFilename filename = new GcsFilename("bucket", "file");
+    byte[] content = storage.createFile(filename, 10);
+
+    Future<Boolean> delete = caching.deleteObjectAsync(filename, 30000);
+    assertArrayEquals(content, GcsTestUtils.read(caching, filename, 200));
+    assertEquals(10, cache.getCachedBytes());
+    deferred.pending.run();
+    assertTrue(delete.get());
+    assertEquals(0, cache.getCachedBytes());
+    try {
+      GcsTestUtils.read(caching, filename, 200);
+      fail();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof FileNotFoundException);
+    }
+  }
+
+  @Test
+  public void testReadDuringAsyncCopy() throws Exception {
+    DeferredMutations deferred = new DeferredMutations(storage);
+    RawGcsService caching = new CachingRawGcsService(deferred, cache, null);
+    GcsFilename source = new GcsFilename("bucket", "source");
+    byte[] content = storage.createFile(source, 20);
+    GcsFilename dest = new GcsFilename("bucket", "dest");
+    byte[] oldContent = storage.createFile(dest, 10);
+
+    Future<Void> copy = caching.copyObjectAsync(source, dest, null, 30000);
+    assertArrayEquals(oldContent, GcsTestUtils.read(caching, dest, 200));
+    deferred.pending.run();
+    assertTrue(copy.isDone());
+    assertArrayEquals(content, GcsTestUtils.read(caching, dest, 200));
+  }
+
+  @Test
+  public void testWriteBypassingCache() throws Exception {
+    RawGcsService caching = new CachingRawGcsService(storage, cache, null);
+    GcsFilename filename = new GcsFilename("bucket", "file");
+    byte[] content = storage.createFile(filename, 10);
+    assertArrayEquals(content, GcsTestUtils.read(caching, filename, 200));
+    assertArrayEquals(content, GcsTestUtils.read(caching, filename, 200));
+    assertEquals(1, cache.getHitCount());
+
+    content = storage.createFile(filename, 20);
+    assertArrayEquals(content, GcsTestUtils.read(caching, filename, 200));
+    assertEquals(20, cache.getCachedBytes());
+    assertEquals(2, cache.getRevalidationCount());
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.cloudstorage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.SettableFuture;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Verify behaviors of {@link CircuitBreaker}. */
+@RunWith(JUnit4.class)
+public class CircuitBreakerTest {
+
+  /**
+   * Fails every metadata request while {@link #failing} is set.
+   */
+  private static final class FlakyMetadata extends ForwardingRawGcsService {
+    private volatile boolean failing = true;
+    private int requests;
+
+    FlakyMetadata(RawGcsService raw) {
+      super(raw);
+    }
+
+    @Override
+    public GcsFileMetadata getObjectMetadata(GcsFilename filename, long timeoutMillis)
+        throws IOException {
+      requests++;
+      if (failing) {
+        throw new IOException("Unavailable");
+      }
+      return super.getObjectMetadata(filename, timeoutMillis);
+    }
+  }
+
+  private final InMemoryRawGcsService storage = new InMemoryRawGcsService();
+  private final FlakyMetadata flaky = new FlakyMetadata(storage);
+  private final GcsFilename filename = new GcsFilename("bucket", "file");
+  private final AtomicLong nanos = new AtomicLong();
+  private final CircuitBreaker breaker = new CircuitBreaker.Builder().failureRateThreshold(0.5)
+      .minimumRequests(4).windowSize(4).openDurationMillis(1000).halfOpenRequests(1)
+      .ticker(new Ticker() {
+        @Override
+        public long read() {
+          return nanos.get();
+        }
+      }).build();
+
+  private void open(RawGcsService breaking) {
+    for (int i = 0; i < 4; i++) {
+      try {
+        breaking.getObjectMetadata(filename, 30000);
+        fail();
+      } catch (IOException e) {
+        assertFalse(e instanceof CircuitBreakerOpenException);
+      }
+    }
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState("bucket"));
+  }
+
+  @Test
+  public void testCircuitBreaker() throws Exception {
+    RawGcsService breaking = new CircuitBreakingRawGcsService(flaky, breaker);
+    storage.createFile(filename, 100);
+    open(breaking);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState("other-bucket"));
+    try {
+      breaking.getObjectMetadata(filename, 30000);
+      fail();
+    } catch (CircuitBreakerOpenException e) {
+      assertEquals("bucket", e.getBucketName());
+    }
+    assertEquals(4, flaky.requests);
+    assertEquals(1, breaker.getOpenedCount());
+    assertEquals(1, breaker.getRejectedCount());
+    assertTrue(GcsServiceImpl.exceptionHandler.shouldRetry(new IOException()));
+    assertFalse(GcsServiceImpl.exceptionHandler.shouldRetry(
+        new CircuitBreakerOpenException("bucket", "open")));
+
+    nanos.addAndGet(TimeUnit.SECONDS.toNanos(1));
+    flaky.failing = false;
+    assertEquals(100, breaking.getObjectMetadata(filename, 30000).getLength());
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState("bucket"));
+    assertEquals(5, flaky.requests);
+  }
+
+  @Test
+  public void testCancelledProbe() throws Exception {
+    final SettableFuture<GcsFileMetadata> stalled = SettableFuture.create();
+    RawGcsService breaking = new CircuitBreakingRawGcsService(new ForwardingRawGcsService(flaky) {
+      @Override
+      public Future<GcsFileMetadata> getObjectMetadataAsync(GcsFilename filename,
+          long timeoutMillis) {
+        return stalled;
+      }
+    }, breaker);
+    storage.createFile(filename, 100);
+    open(breaking);
+
+    nanos.addAndGet(TimeUnit.SECONDS.toNanos(1));
+    Future<GcsFileMetadata> probe = breaking.getObjectMetadataAsync(filename, 30000);
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState("bucket"));
+    try {
+      breaking.getObjectMetadata(filename, 30000);
+      fail();
+    } catch (CircuitBreakerOpenException expected) {
+    }
+    probe.cancel(true);
+    flaky.failing = false;
+    assertEquals(100, breaking.getObjectMetadata(filename, 30000).getLength());
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState("bucket"));
+  }
+}
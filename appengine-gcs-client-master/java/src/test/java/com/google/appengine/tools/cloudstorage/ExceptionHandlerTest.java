@@ -24,8 +24,12 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.nio.channels.ClosedByInterruptException;
 import java.util.concurrent.Callable;
 
@@ -121,4 +125,23 @@ public class ExceptionHandlerTest {
     assertFalse(handler.shouldRetry(new RuntimeException()));
     assertTrue(handler.shouldRetry(new NullPointerException()));
   }
+
+  @Test
+  public void testShouldRetryAfterSerialization() throws Exception {
+    ExceptionHandler handler = new ExceptionHandler.Builder()
+        .retryOn(IOException.class)
+        .abortOn(ClosedByInterruptException.class)
+        .build();
+    assertTrue(handler.shouldRetry(new FileNotFoundException()));
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    try (ObjectOutputStream oout = new ObjectOutputStream(bout)) {
+      oout.writeObject(handler);
+    }
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bout.toByteArray()));
+    handler = (ExceptionHandler) in.readObject();
+    assertTrue(handler.shouldRetry(new IOException()));
+    assertTrue(handler.shouldRetry(new FileNotFoundException()));
+    assertFalse(handler.shouldRetry(new ClosedByInterruptException()));
+    assertFalse(handler.shouldRetry(new RuntimeException()));
+  }
 }
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.cloudstorage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.appengine.tools.cloudstorage.dev.LocalRawGcsServiceFactory;
+import com.google.common.collect.ImmutableList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Tests the file backed RawGcsService through {@link GcsService}, without any App Engine services.
+ */
+@RunWith(JUnit4.class)
+public class FileRawGcsServiceTest {
+
+  private File directory;
+  private GcsService gcsService;
+  private final GcsFileOptions options = new GcsFileOptions.Builder()
+      .mimeType("text/json")
+      .addUserMetadata("bla-name", "bla-value")
+      .build();
+
+  @Before
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("FileRawGcsServiceTest").toFile();
+    gcsService = new GcsServiceImpl(
+        LocalRawGcsServiceFactory.createFileRawGcsService(directory), GcsServiceOptions.DEFAULT);
+  }
+
+  @After
+  public void tearDown() {
+    delete(directory);
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  private byte[] createFile(GcsFilename filename, int length, boolean stream) throws IOException {
+    byte[] content = new byte[length];
+    new Random().nextBytes(content);
+    if (stream) {
+      try (GcsOutputChannel outputChannel = gcsService.createOrReplace(filename, options)) {
+        outputChannel.write(ByteBuffer.wrap(content));
+      }
+    } else {
+      gcsService.createOrReplace(filename, options, ByteBuffer.wrap(content));
+    }
+    return content;
+  }
+
+  @Test
+  public void testReadWrite() throws IOException {
+    int length = 3 * 1024 * 1024 + 7;
+    GcsFilename filename = new GcsFilename("bucket", "dir/.file name+1");
+    byte[] content = createFile(filename, length, true);
+    for (int offset : new int[] {0, 1, length / 2, length - 10}) {
+      assertArrayEquals(Arrays.copyOfRange(content, offset, length),
+          GcsTestUtils.read(gcsService, filename, offset));
+    }
+    GcsFileMetadata metadata = gcsService.getMetadata(filename);
+    assertEquals(length, metadata.getLength());
+    assertEquals(options, metadata.getOptions());
+    assertNotNull(metadata.getEtag());
+
+    content = createFile(filename, 10, false);
+    assertArrayEquals(content, GcsTestUtils.read(gcsService, filename, 0));
+    assertFalse(metadata.getEtag().equals(gcsService.getMetadata(filename).getEtag()));
+    assertTrue(gcsService.delete(filename));
+    assertFalse(gcsService.delete(filename));
+    assertNull(gcsService.getMetadata(filename));
+  }
+
+  @Test
+  public void testConditionalRead() throws Exception {
+    RawGcsService raw = LocalRawGcsServiceFactory.createFileRawGcsService(directory);
+    GcsFilename filename = new GcsFilename("bucket", "file");
+    byte[] content = createFile(filename, 100, false);
+    String etag = gcsService.getMetadata(filename).getEtag();
+    ByteBuffer dst = ByteBuffer.allocate(200);
+    assertNull(raw.readObjectAsync(dst, filename, 0, null, etag, 1000).get());
+    assertEquals(0, dst.position());
+    assertEquals(etag, raw.readObjectAsync(dst, filename, 0, etag, "other", 1000).get().getEtag());
+    assertEquals(100, dst.position());
+    try {
+      raw.readObjectAsync(dst, filename, 0, "other", null, 1000).get();
+      fail();
+    } catch (ExecutionException e) {
+      assertEquals(PreconditionFailedException.class, e.getCause().getClass());
+    }
+
+    ObjectCache cache = new ObjectCache(1000, 1000, true);
+    GcsService cachingService = new GcsServiceImpl(
+        new CachingRawGcsService(raw, cache, null), GcsServiceOptions.DEFAULT);
+    assertArrayEquals(content, GcsTestUtils.read(cachingService, filename, 0));
+    assertArrayEquals(content, GcsTestUtils.read(cachingService, filename, 0));
+    assertEquals(cache.toString(), 1, cache.getHitCount());
+    content = createFile(filename, 50, false);
+    assertArrayEquals(content, GcsTestUtils.read(cachingService, filename, 0));
+    assertEquals(cache.toString(), 2, cache.getRevalidationCount());
+    assertEquals(cache.toString(), 1, cache.getHitCount());
+  }
+
+  @Test
+  public void testComposeAndCopy() throws IOException {
+    GcsFilename filename1 = new GcsFilename("bucket", "file1");
+    byte[] content1 = createFile(filename1, 130, false);
+    GcsFilename filename2 = new GcsFilename("bucket", "file2");
+    byte[] content2 = createFile(filename2, 300 * 1024, true);
+    GcsFilename composed = new GcsFilename("bucket", "composed");
+    gcsService.compose(
+        ImmutableList.of(filename1.getObjectName(), filename2.getObjectName()), composed);
+    byte[] expected = Arrays.copyOf(content1, content1.length + content2.length);
+    System.arraycopy(content2, 0, expected, content1.length, content2.length);
+    assertArrayEquals(expected, GcsTestUtils.read(gcsService, composed, 0));
+
+    GcsFilename copy = new GcsFilename("other-bucket", "copy");
+    gcsService.copy(filename2, copy);
+    assertArrayEquals(content2, GcsTestUtils.read(gcsService, copy, 0));
+    assertEquals(options, gcsService.getMetadata(copy).getOptions());
+  }
+
+  @Test
+  public void testList() throws IOException {
+    String[] names = {"a", "b/1", "b/2", "b/c/3", "d", "e/4"};
+    for (String name : names) {
+      createFile(new GcsFilename("bucket", name), 5, false);
+    }
+    assertEquals(Arrays.asList(names), list(new ListOptions.Builder()));
+    assertEquals(Arrays.asList("a", "b/", "d", "e/"),
+        list(new ListOptions.Builder().setRecursive(false)));
+    assertEquals(Arrays.asList("b/1", "b/2", "b/c/"),
+        list(new ListOptions.Builder().setRecursive(false).setPrefix("b/")));
+    assertEquals(Arrays.asList("a", "b/", "d", "e/"),
+        list(new ListOptions.Builder().setRecursive(false).setPageSize(1)));
+    assertEquals(Arrays.asList(names), list(new ListOptions.Builder().setPageSize(2)));
+  }
+
+  private List<String> list(ListOptions.Builder options) throws IOException {
+    List<String> names = new ArrayList<>();
+    ListResult result = gcsService.list("bucket", options.build());
+    while (result.hasNext()) {
+      names.add(result.next().getName());
+    }
+    return names;
+  }
+}
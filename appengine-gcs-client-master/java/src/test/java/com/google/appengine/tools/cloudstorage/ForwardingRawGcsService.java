@@ -0,0 +1,161 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.cloudstorage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * A {@link RawGcsService} that delegates every call, for tests to override the calls they want to
+ * delay or fail.
+ */
+class ForwardingRawGcsService implements RawGcsService {
+
+  protected final RawGcsService raw;
+
+  ForwardingRawGcsService(RawGcsService raw) {
+    this.raw = raw;
+  }
+
+  @Override
+  public int getChunkSizeBytes() {
+    return raw.getChunkSizeBytes();
+  }
+
+  @Override
+  public int getMaxWriteSizeByte() {
+    return raw.getMaxWriteSizeByte();
+  }
+
+  @Override
+  public int getMaxReadSizeBytes() {
+    return raw.getMaxReadSizeBytes();
+  }
+
+  @Override
+  public RawGcsCreationToken beginObjectCreation(GcsFilename filename, GcsFileOptions options,
+      long timeoutMillis) throws IOException {
+    return raw.beginObjectCreation(filename, options, timeoutMillis);
+  }
+
+  @Override
+  public Future<RawGcsCreationToken> continueObjectCreationAsync(RawGcsCreationToken token,
+      ByteBuffer chunk, long timeoutMillis) {
+    return raw.continueObjectCreationAsync(token, chunk, timeoutMillis);
+  }
+
+  @Override
+  public void finishObjectCreation(RawGcsCreationToken token, ByteBuffer chunk,
+      long timeoutMillis) throws IOException {
+    raw.finishObjectCreation(token, chunk, timeoutMillis);
+  }
+
+  @Override
+  public void putObject(GcsFilename filename, GcsFileOptions options, ByteBuffer content,
+      long timeoutMillis) throws IOException {
+    raw.putObject(filename, options, content, timeoutMillis);
+  }
+
+  @Override
+  public Future<GcsFileMetadata> readObjectAsync(ByteBuffer dst, GcsFilename filename,
+      long offset, long timeoutMillis) {
+    return raw.readObjectAsync(dst, filename, offset, timeoutMillis);
+  }
+
+  @Override
+  public Future<GcsFileMetadata> readObjectAsync(ByteBuffer dst, GcsFilename filename,
+      long offset, String ifMatch, String ifNoneMatch, long timeoutMillis) {
+    return raw.readObjectAsync(dst, filename, offset, ifMatch, ifNoneMatch, timeoutMillis);
+  }
+
+  @Override
+  public GcsFileMetadata getObjectMetadata(GcsFilename filename, long timeoutMillis)
+      throws IOException {
+    return raw.getObjectMetadata(filename, timeoutMillis);
+  }
+
+  @Override
+  public Future<GcsFileMetadata> getObjectMetadataAsync(GcsFilename filename,
+      long timeoutMillis) {
+    return raw.getObjectMetadataAsync(filename, timeoutMillis);
+  }
+
+  @Override
+  public List<Future<GcsFileMetadata>> getObjectMetadata(Iterable<GcsFilename> filenames,
+      int maxConcurrentRequests, long timeoutMillis) throws IOException {
+    return raw.getObjectMetadata(filenames, maxConcurrentRequests, timeoutMillis);
+  }
+
+  @Override
+  public boolean deleteObject(GcsFilename filename, long timeoutMillis) throws IOException {
+    return raw.deleteObject(filename, timeoutMillis);
+  }
+
+  @Override
+  public Future<Boolean> deleteObjectAsync(GcsFilename filename, long timeoutMillis) {
+    return raw.deleteObjectAsync(filename, timeoutMillis);
+  }
+
+  @Override
+  public List<Future<Boolean>> deleteObjects(Iterable<GcsFilename> filenames,
+      int maxConcurrentRequests, long timeoutMillis) throws IOException {
+    return raw.deleteObjects(filenames, maxConcurrentRequests, timeoutMillis);
+  }
+
+  @Override
+  public void composeObject(Iterable<String> source, GcsFilename dest, long timeoutMillis)
+      throws IOException {
+    raw.composeObject(source, dest, timeoutMillis);
+  }
+
+  @Override
+  public Future<Void> composeObjectAsync(Iterable<String> source, GcsFilename dest,
+      long timeoutMillis) {
+    return raw.composeObjectAsync(source, dest, timeoutMillis);
+  }
+
+  @Override
+  public void copyObject(GcsFilename source, GcsFilename dest, GcsFileOptions fileOptions,
+      long timeoutMillis) throws IOException {
+    raw.copyObject(source, dest, fileOptions, timeoutMillis);
+  }
+
+  @Override
+  public Future<Void> copyObjectAsync(GcsFilename source, GcsFilename dest,
+      GcsFileOptions fileOptions, long timeoutMillis) {
+    return raw.copyObjectAsync(source, dest, fileOptions, timeoutMillis);
+  }
+
+  @Override
+  public ListItemBatch list(String bucket, String prefix, String delimiter, String marker,
+      int maxResults, long timeoutMillis) throws IOException {
+    return raw.list(bucket, prefix, delimiter, marker, maxResults, timeoutMillis);
+  }
+
+  @Override
+  public Future<ListItemBatch> listAsync(String bucket, String prefix, String delimiter,
+      String marker, int maxResults, long timeoutMillis) {
+    return raw.listAsync(bucket, prefix, delimiter, marker, maxResults, timeoutMillis);
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + " [raw=" + raw + "]";
+  }
+}
@@ -50,7 +50,8 @@ public class GcsInputChannelTest {
 
   private enum ChannelType {
     SIMPLE_GCS_INPUT,
-    PREFETCHING_GCS_INPUT
+    PREFETCHING_GCS_INPUT,
+    READ_AHEAD_GCS_INPUT
   }
 
   private enum TestFile {
@@ -117,6 +118,23 @@ public class GcsInputChannelTest {
     assertEquals(result, -1);
   }
 
+  @Test
+  public void readOneByteAtATimeWithReadAhead() throws IOException {
+    GcsService gcsService = GcsServiceFactory.createGcsService();
+    GcsInputChannel readChannel =
+        gcsService.openPrefetchingReadChannel(TestFile.LARGE.filename, 0, 1024, 4);
+    ByteBuffer buff = ByteBuffer.allocate(1);
+    for (int i = 0; i < TestFile.LARGE.contentSize; i++) {
+      int result = readChannel.read(buff);
+      assertEquals(result, 1);
+      buff.flip();
+      assertEquals('0' + i % 10, buff.get());
+      buff.clear();
+    }
+    int result = readChannel.read(buff);
+    assertEquals(result, -1);
+  }
+
   private GcsInputChannel createChannel(
       ChannelType type, GcsFilename filename, int offset, int fetchSize) throws IOException {
     final GcsService gcsService = GcsServiceFactory.createGcsService();
@@ -125,6 +143,8 @@ public class GcsInputChannelTest {
         return gcsService.openReadChannel(filename, offset);
       case PREFETCHING_GCS_INPUT:
         return gcsService.openPrefetchingReadChannel(filename, offset, fetchSize);
+      case READ_AHEAD_GCS_INPUT:
+        return gcsService.openPrefetchingReadChannel(filename, offset, fetchSize, 3);
       default:
         throw new RuntimeException("Unsupported Channel Type: " + type.toString());
     }
@@ -185,7 +205,7 @@ public class GcsInputChannelTest {
 
               GcsInputChannel channel = null;
               boolean shouldCreate =
-                  (type != ChannelType.PREFETCHING_GCS_INPUT || (fetchSize >= 1024))
+                  (type == ChannelType.SIMPLE_GCS_INPUT || (fetchSize >= 1024))
                   && finalOffset >= 0;
               try {
                 channel = createChannel(type, file.filename, finalOffset, fetchSize);
@@ -197,6 +197,37 @@ public class GcsOutputChannelTest {
     return bout;
   }
 
+  @Test
+  public void testAdaptiveBufferSize() throws IOException {
+    InMemoryRawGcsService raw = new InMemoryRawGcsService();
+    int chunkSize = raw.getChunkSizeBytes();
+    GcsFilename filename = new GcsFilename("GcsOutputChannelTestBucket", "testAdaptiveBufferSize");
+    GcsOutputChannelImpl outputChannel = new GcsOutputChannelImpl(raw,
+        raw.beginObjectCreation(filename, GcsFileOptions.getDefaultInstance(), 0),
+        RetryParams.getDefaultInstance(), 4 * chunkSize, ImmutableMap.<String, String>of(), null,
+        true);
+    assertEquals(chunkSize, outputChannel.getBufferSizeBytes());
+    ByteBuffer content = ByteBuffer.allocate(chunkSize);
+    raw.setDeferWrites(true);
+    int[] expectedSizes = {1, 2, 4, 4};
+    long written = 0;
+    for (int expected : expectedSizes) {
+      for (int i = 0; i < outputChannel.getBufferSizeBytes() / chunkSize; i++) {
+        written += outputChannel.write(content.duplicate());
+      }
+      outputChannel.write(ByteBuffer.allocate(1));
+      written++;
+      assertEquals(expected * chunkSize, outputChannel.getBufferSizeBytes());
+    }
+    raw.setDeferWrites(false);
+    while (outputChannel.getBufferSizeBytes() == 4 * chunkSize) {
+      written += outputChannel.write(content.duplicate());
+    }
+    assertEquals(2 * chunkSize, outputChannel.getBufferSizeBytes());
+    outputChannel.close();
+    assertEquals(written, raw.getObjectMetadata(filename, 0).getLength());
+  }
+
   @Test
   public void testSettingBufferSize() throws IOException {
     RawGcsService raw = GcsServiceFactory.createRawGcsService(ImmutableMap.<String, String>of());
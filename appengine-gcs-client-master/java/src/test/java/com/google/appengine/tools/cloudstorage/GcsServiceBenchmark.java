@@ -0,0 +1,171 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.cloudstorage;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+
+/**
+ * Micro-benchmarks for the hot paths of {@link GcsService} that do not depend on the network:
+ * writing through {@link GcsOutputChannelImpl} with writes of several sizes, sequential reads
+ * through {@link PrefetchingGcsInputChannelImpl}, the overhead of
+ * {@link RetryHelper#runWithRetries} and the classification of exceptions by
+ * {@link ExceptionHandler}. Objects are kept by an {@link InMemoryRawGcsService}, so the results
+ * are reproducible offline. List response parsing is measured by
+ * {@code oauth.ListBucketResultParserBenchmark}.
+ *
+ * Run with {@code java ... GcsServiceBenchmark [megabytes] [iterations]}.
+ */
+public class GcsServiceBenchmark {
+
+  private static final int MB = 1024 * 1024;
+  private static final int[] WRITE_SIZES = {1024, 16 * 1024, 256 * 1024, MB};
+  private static final int READ_SIZE = 64 * 1024;
+  private static final int PREFETCH_BLOCK_SIZE = MB;
+
+  private static volatile Object sink;
+
+  private interface Task {
+    long run() throws Exception;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+    int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+    GcsService service =
+        new GcsServiceImpl(new InMemoryRawGcsService(), GcsServiceOptions.DEFAULT);
+    GcsFilename filename = new GcsFilename("bucket", "benchmark");
+    for (int round = 0; round < 2; round++) {
+      System.out.println("== round " + (round + 1));
+      for (int writeSize : WRITE_SIZES) {
+        throughput("write " + writeSize / 1024 + "KB", megabytes,
+            write(service, filename, megabytes, writeSize));
+      }
+      throughput("prefetching read", megabytes, read(service, filename));
+      perCall("runWithRetries", iterations, retry(iterations));
+      perCall("direct call", iterations, direct(iterations));
+      perCall("shouldRetry", iterations, classify(iterations));
+    }
+  }
+
+  private static Task write(final GcsService service, final GcsFilename filename,
+      final int megabytes, final int writeSize) {
+    return new Task() {
+      @Override public long run() throws IOException {
+        byte[] content = new byte[writeSize];
+        long total = (long) megabytes * MB;
+        try (GcsOutputChannel channel =
+            service.createOrReplace(filename, GcsFileOptions.getDefaultInstance())) {
+          for (long written = 0; written < total; written += writeSize) {
+            channel.write(ByteBuffer.wrap(content));
+          }
+        }
+        return total;
+      }
+    };
+  }
+
+  private static Task read(final GcsService service, final GcsFilename filename) {
+    return new Task() {
+      @Override public long run() throws IOException {
+        ByteBuffer dst = ByteBuffer.allocate(READ_SIZE);
+        long total = 0;
+        try (GcsInputChannel channel =
+            service.openPrefetchingReadChannel(filename, 0, PREFETCH_BLOCK_SIZE)) {
+          int read;
+          while ((read = channel.read(dst)) != -1) {
+            total += read;
+            dst.clear();
+          }
+        }
+        return total;
+      }
+    };
+  }
+
+  private static Task retry(final int iterations) {
+    final Callable<Integer> callable = new Callable<Integer>() {
+      private int calls;
+
+      @Override public Integer call() throws IOException {
+        return calls++;
+      }
+    };
+    return new Task() {
+      @Override public long run() {
+        long sum = 0;
+        for (int i = 0; i < iterations; i++) {
+          sum += RetryHelper.runWithRetries(
+              callable, RetryParams.getDefaultInstance(), GcsServiceImpl.exceptionHandler);
+        }
+        return sum;
+      }
+    };
+  }
+
+  private static Task direct(final int iterations) {
+    final Callable<Integer> callable = new Callable<Integer>() {
+      private int calls;
+
+      @Override public Integer call() throws IOException {
+        return calls++;
+      }
+    };
+    return new Task() {
+      @Override public long run() throws Exception {
+        long sum = 0;
+        for (int i = 0; i < iterations; i++) {
+          sum += callable.call();
+        }
+        return sum;
+      }
+    };
+  }
+
+  private static Task classify(final int iterations) {
+    final Exception[] exceptions = {new IOException(), new FileNotFoundException(),
+        new SocketTimeoutException(), new IllegalStateException(), new InterruptedException()};
+    return new Task() {
+      @Override public long run() {
+        long retriable = 0;
+        for (int i = 0; i < iterations; i++) {
+          if (GcsServiceImpl.exceptionHandler.shouldRetry(exceptions[i % exceptions.length])) {
+            retriable++;
+          }
+        }
+        return retriable;
+      }
+    };
+  }
+
+  private static void throughput(String name, int megabytes, Task task) throws Exception {
+    long start = System.nanoTime();
+    sink = task.run();
+    long elapsed = System.nanoTime() - start;
+    System.out.printf("%-20s %9.1f MB/s%n", name, megabytes / (elapsed / 1e9));
+  }
+
+  private static void perCall(String name, int iterations, Task task) throws Exception {
+    long start = System.nanoTime();
+    sink = task.run();
+    long elapsed = System.nanoTime() - start;
+    System.out.printf("%-20s %9.1f ns/call%n", name, (double) elapsed / iterations);
+  }
+}
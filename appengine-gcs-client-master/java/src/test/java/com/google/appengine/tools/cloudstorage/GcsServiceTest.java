@@ -29,6 +29,8 @@ import com.google.appengine.tools.development.testing.LocalBlobstoreServiceTestC
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.Environment;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 
@@ -38,15 +40,27 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.NavigableMap;
 import java.util.Random;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * End to end test to test the basics of the GcsService. This class uses the in-process
@@ -118,6 +132,22 @@ public class GcsServiceTest {
     }
   }
 
+  @Test
+  public void testReadAtOffset() throws IOException {
+    int length = 3 * 1024 * 1024 + 7;
+    GcsFilename filename = new GcsFilename("testReadAtOffsetBucket", "testReadAtOffsetFile");
+    byte[] content = createFile(filename, length, true);
+    for (int offset : new int[] {length - 1, length / 2, 1, 0}) {
+      try (GcsInputChannel readChannel = gcsService.openReadChannel(filename, offset)) {
+        verifyContent(Arrays.copyOfRange(content, offset, length), readChannel, 25000);
+      }
+    }
+    byte[] replaced = createFile(filename, 10, false);
+    try (GcsInputChannel readChannel = gcsService.openReadChannel(filename, 5)) {
+      verifyContent(Arrays.copyOfRange(replaced, 5, 10), readChannel, 25000);
+    }
+  }
+
   @Test
   public void testWrite10mb() throws IOException {
     int length = 10 * 1024 * 1024 + 1;
@@ -128,6 +158,201 @@ public class GcsServiceTest {
     }
   }
 
+  @Test
+  public void testParallelWrite10mb() throws IOException {
+    gcsService = GcsServiceFactory.createGcsService(new GcsServiceOptions.Builder()
+        .setDefaultWriteBufferSize(256 * 1024).setMaxParallelUploads(4).build());
+    int length = 10 * 1024 * 1024 + 1;
+    GcsFilename filename = new GcsFilename("testParallelWrite10mbBucket", "testWrite10mbFile");
+    byte[] content = createFile(filename, length, true);
+    try (GcsInputChannel readChannel = gcsService.openReadChannel(filename, 0)) {
+      verifyContent(content, readChannel, 25000);
+    }
+    assertEquals(options, gcsService.getMetadata(filename).getOptions());
+    ListResult result = gcsService.list(filename.getBucketName(), ListOptions.DEFAULT);
+    assertEquals(filename.getObjectName(), result.next().getName());
+    assertFalse(result.hasNext());
+  }
+
+  @Test
+  public void testPooledBuffers() throws IOException {
+    ByteBufferPool pool = new ByteBufferPool(8 * 1024 * 1024, true);
+    gcsService = GcsServiceFactory.createGcsService(
+        new GcsServiceOptions.Builder().setBufferPool(pool).build());
+    int length = 5 * 1024 * 1024 + 1;
+    GcsFilename filename = new GcsFilename("testPooledBuffersBucket", "testPooledBuffersFile");
+    byte[] content = createFile(filename, length, true);
+    for (int i = 0; i < 2; i++) {
+      try (GcsInputChannel readChannel =
+          gcsService.openPrefetchingReadChannel(filename, 0, 512 * 1024, 3)) {
+        verifyContent(content, readChannel, 25000);
+      }
+    }
+    assertTrue(pool.toString(), pool.getHitCount() > 0);
+    assertTrue(pool.toString(), pool.getPooledBytes() <= pool.getMaxPooledBytes());
+  }
+
+  @Test
+  public void testObjectCache() throws IOException {
+    ObjectCache cache = new ObjectCache(200, 100, false);
+    gcsService = GcsServiceFactory.createGcsService(
+        new GcsServiceOptions.Builder().setObjectCache(cache).build());
+    GcsFilename[] filenames = new GcsFilename[4];
+    byte[][] contents = new byte[4][];
+    for (int i = 0; i < 4; i++) {
+      filenames[i] = new GcsFilename("testObjectCacheBucket", "file" + i);
+      contents[i] = createFile(filenames[i], i == 3 ? 101 : 80, false);
+    }
+    for (int round = 0; round < 2; round++) {
+      try (GcsInputChannel readChannel = gcsService.openReadChannel(filenames[0], 0)) {
+        verifyContent(contents[0], readChannel, 1000);
+      }
+    }
+    assertEquals(cache.toString(), 1, cache.getHitCount());
+    assertEquals(80, cache.getCachedBytes());
+
+    contents[0] = createFile(filenames[0], 80, false);
+    try (GcsInputChannel readChannel = gcsService.openReadChannel(filenames[0], 0)) {
+      verifyContent(contents[0], readChannel, 1000);
+    }
+    assertEquals(cache.toString(), 1, cache.getHitCount());
+
+    for (int i = 0; i < 4; i++) {
+      try (GcsInputChannel readChannel = gcsService.openReadChannel(filenames[i], 0)) {
+        verifyContent(contents[i], readChannel, 1000);
+      }
+    }
+    assertEquals(cache.toString(), 2, cache.getHitCount());
+    assertEquals(cache.toString(), 1, cache.getEvictionCount());
+    assertEquals(160, cache.getCachedBytes());
+
+    gcsService.delete(filenames[2]);
+    assertEquals(80, cache.getCachedBytes());
+  }
+
+  @Test
+  public void testReadFully() throws IOException {
+    int length = 3 * 1024 * 1024 + 1;
+    GcsFilename filename = new GcsFilename("testReadFullyBucket", "testReadFullyFile");
+    byte[] content = createFile(filename, length, true);
+    ByteBuffer dst = ByteBuffer.allocate(length + 10);
+    assertEquals(length - 7, gcsService.readFully(filename, 7, dst, 4));
+    assertEquals(length - 7, dst.position());
+    dst.flip();
+    assertEquals(ByteBuffer.wrap(content, 7, length - 7), dst);
+    assertEquals(-1, gcsService.readFully(filename, length, ByteBuffer.allocate(1), 4));
+
+    File file = File.createTempFile("testReadFully", null);
+    try {
+      try (FileChannel channel = new RandomAccessFile(file, "rw").getChannel()) {
+        assertEquals(length, gcsService.readFully(filename, channel, 0, 4));
+      }
+      assertTrue(Arrays.equals(content, Files.readAllBytes(file.toPath())));
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testConcurrentWrites() throws Exception {
+    final int length = 3 * 1024 * 1024 + 1;
+    final Environment environment = ApiProxy.getCurrentEnvironment();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<byte[]>> contents = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        final GcsFilename filename = new GcsFilename("testConcurrentWritesBucket", "file" + i);
+        contents.add(executor.submit(new Callable<byte[]>() {
+          @Override
+          public byte[] call() throws IOException {
+            ApiProxy.setEnvironmentForCurrentThread(environment);
+            return createFile(filename, length, true);
+          }
+        }));
+      }
+      for (int i = 0; i < 8; i++) {
+        GcsFilename filename = new GcsFilename("testConcurrentWritesBucket", "file" + i);
+        try (GcsInputChannel readChannel = gcsService.openReadChannel(filename, 0)) {
+          verifyContent(contents.get(i).get(), readChannel, 25000);
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testBatchOperations() throws IOException {
+    List<GcsFilename> filenames = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      GcsFilename filename = new GcsFilename("testBatchBucket", "testBatchFile" + i);
+      if (i % 2 == 0) {
+        createFile(filename, i, true);
+      }
+      filenames.add(filename);
+    }
+    Map<GcsFilename, GcsFileMetadata> metadata = gcsService.getMetadata(filenames, 4);
+    assertEquals(filenames, new ArrayList<>(metadata.keySet()));
+    for (int i = 0; i < filenames.size(); i++) {
+      GcsFileMetadata fileMetadata = metadata.get(filenames.get(i));
+      if (i % 2 == 0) {
+        assertEquals(i, fileMetadata.getLength());
+      } else {
+        assertNull(fileMetadata);
+      }
+    }
+    Map<GcsFilename, Boolean> deleted = gcsService.deleteAll(filenames, 4);
+    assertEquals(filenames, new ArrayList<>(deleted.keySet()));
+    for (int i = 0; i < filenames.size(); i++) {
+      assertEquals(i % 2 == 0, deleted.get(filenames.get(i)));
+      assertNull(gcsService.getMetadata(filenames.get(i)));
+    }
+  }
+
+  @Test
+  public void testAsyncOperations() throws Exception {
+    AsyncGcsService asyncService = GcsServiceFactory.createAsyncGcsService();
+    int length = 1024;
+    List<GcsFilename> filenames = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      GcsFilename filename = new GcsFilename("testAsyncBucket", "testAsyncFile" + i);
+      createFile(filename, length, true);
+      filenames.add(filename);
+    }
+    GcsFilename missing = new GcsFilename("testAsyncBucket", "testAsyncMissing");
+    Future<GcsFileMetadata> missingMetadata = asyncService.getMetadata(missing);
+    List<Future<GcsFileMetadata>> metadata = new ArrayList<>();
+    for (GcsFilename filename : filenames) {
+      metadata.add(asyncService.getMetadata(filename));
+    }
+    assertNull(missingMetadata.get());
+    for (int i = 0; i < filenames.size(); i++) {
+      assertEquals(filenames.get(i), metadata.get(i).get().getFilename());
+      assertEquals(length, metadata.get(i).get().getLength());
+    }
+
+    GcsFilename copy = new GcsFilename("testAsyncBucket", "testAsyncCopy");
+    asyncService.copy(filenames.get(0), copy).get();
+    assertEquals(length, gcsService.getMetadata(copy).getLength());
+    try {
+      asyncService.copy(missing, copy).get();
+      fail();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof FileNotFoundException);
+    }
+
+    filenames.add(copy);
+    List<Future<Boolean>> deleted = new ArrayList<>();
+    for (GcsFilename filename : filenames) {
+      deleted.add(asyncService.delete(filename));
+    }
+    assertFalse(asyncService.delete(missing).get());
+    for (int i = 0; i < filenames.size(); i++) {
+      assertTrue(deleted.get(i).get());
+      assertNull(gcsService.getMetadata(filenames.get(i)));
+    }
+  }
+
   @Test
   public void testShortFileLongBuffer() throws IOException {
     int length = 1024;
@@ -242,6 +467,11 @@ public class GcsServiceTest {
       result = gcsService.list("testList", options);
       verifyListResult(items, prefix, false, result);
     }
+    for (String prefix : prefixes) {
+      ListOptions options = new ListOptions.Builder().setPrefix(prefix).setPageSize(7).build();
+      result = gcsService.list("testList", options);
+      verifyListResult(items, prefix, false, result);
+    }
 
     items = setupForListTests(true);
     for (String prefix : prefixes) {
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.cloudstorage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Reads objects for tests that check what a service returns.
+ */
+final class GcsTestUtils {
+
+  private static final int READ_SIZE = 64 * 1024;
+
+  private GcsTestUtils() {}
+
+  /**
+   * Returns the content of {@code filename} from {@code offset} to its end, read through a
+   * {@link GcsInputChannel}.
+   */
+  static byte[] read(GcsService service, GcsFilename filename, long offset) throws IOException {
+    try (GcsInputChannel readChannel = service.openReadChannel(filename, offset)) {
+      ByteArrayOutputStream content = new ByteArrayOutputStream();
+      ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+      while (readChannel.read(buffer) != -1) {
+        content.write(buffer.array(), 0, buffer.position());
+        buffer.clear();
+      }
+      return content.toByteArray();
+    }
+  }
+
+  /**
+   * Returns the first {@code maxLength} bytes of {@code filename}, read with a single request.
+   */
+  static byte[] read(RawGcsService raw, GcsFilename filename, int maxLength)
+      throws InterruptedException, ExecutionException {
+    ByteBuffer dst = ByteBuffer.allocate(maxLength);
+    raw.readObjectAsync(dst, filename, 0, 30000).get();
+    return Arrays.copyOf(dst.array(), dst.position());
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.cloudstorage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Verify behaviors of {@link HedgingRawGcsService}. */
+@RunWith(JUnit4.class)
+public class HedgingRawGcsServiceTest {
+
+  private final InMemoryRawGcsService storage = new InMemoryRawGcsService();
+  private final GcsFilename filename = new GcsFilename("bucket", "file");
+
+  /**
+   * Never completes the read it is asked for at a given count.
+   */
+  private static final class StallingRead extends ForwardingRawGcsService {
+    private final int stalledRead;
+    private final AtomicInteger reads = new AtomicInteger();
+    private final SettableFuture<GcsFileMetadata> stalled = SettableFuture.create();
+
+    StallingRead(RawGcsService raw, int stalledRead) {
+      super(raw);
+      this.stalledRead = stalledRead;
+    }
+
+    @Override
+    public Future<GcsFileMetadata> readObjectAsync(ByteBuffer dst, GcsFilename filename,
+        long offset, String ifMatch, String ifNoneMatch, long timeoutMillis) {
+      if (reads.incrementAndGet() == stalledRead) {
+        return stalled;
+      }
+      return super.readObjectAsync(dst, filename, offset, ifMatch, ifNoneMatch, timeoutMillis);
+    }
+  }
+
+  @Test
+  public void testHedgedRead() throws Exception {
+    StallingRead stallingFifthRead = new StallingRead(storage, 5);
+    HedgingPolicy policy = new HedgingPolicy(0.5, 4);
+    RawGcsService hedging = new HedgingRawGcsService(stallingFifthRead, policy);
+    byte[] content = storage.createFile(filename, 100);
+    for (int i = 0; i < 5; i++) {
+      ByteBuffer dst = ByteBuffer.allocate(200);
+      assertEquals(100, hedging.readObjectAsync(dst, filename, 0, 30000).get().getLength());
+      assertArrayEquals(content, Arrays.copyOf(dst.array(), dst.position()));
+    }
+    assertEquals(6, stallingFifthRead.reads.get());
+    assertEquals(policy.toString(), 1, policy.getHedgesFired());
+    assertEquals(1, policy.getHedgesWon());
+    assertTrue(stallingFifthRead.stalled.isCancelled());
+  }
+
+  @Test
+  public void testLateRetrievalIsNotSampled() throws Exception {
+    HedgingPolicy policy = new HedgingPolicy(0.5, 1);
+    RawGcsService hedging = new HedgingRawGcsService(storage, policy);
+    storage.createFile(filename, 100);
+    Future<GcsFileMetadata> prefetched =
+        hedging.readObjectAsync(ByteBuffer.allocate(200), filename, 0, 30000);
+    TimeUnit.MILLISECONDS.sleep(10 * HedgingRawGcsService.MAX_SAMPLE_ERROR_MILLIS);
+    assertEquals(100, prefetched.get().getLength());
+    assertEquals(Long.MAX_VALUE, policy.getHedgeDelayNanos());
+
+    assertEquals(100,
+        hedging.readObjectAsync(ByteBuffer.allocate(200), filename, 0, 30000).get().getLength());
+    assertTrue(policy.getHedgeDelayNanos()
+        < TimeUnit.MILLISECONDS.toNanos(HedgingRawGcsService.MAX_SAMPLE_ERROR_MILLIS));
+  }
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.cloudstorage;
+
+import com.google.common.util.concurrent.Futures;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A {@link RawGcsService} that keeps objects in memory and completes every request before
+ * returning, so that benchmarks measure the client code rather than storage or the network.
+ * Writes may instead be deferred until their result is retrieved, to look like slow requests.
+ * Listing is not supported. Tests can also store and inspect objects directly.
+ */
+final class InMemoryRawGcsService implements RawGcsService {
+
+  private static final int CHUNK_SIZE_BYTES = 256 * 1024;
+
+  private final ConcurrentMap<GcsFilename, GcsObject> objects = new ConcurrentHashMap<>();
+  private final ConcurrentMap<GcsFilename, ByteArrayOutputStream> uploads =
+      new ConcurrentHashMap<>();
+  private volatile boolean deferWrites;
+
+  private static final class GcsObject {
+    private final GcsFileMetadata metadata;
+    private final byte[] content;
+
+    GcsObject(GcsFilename filename, GcsFileOptions options, byte[] content) {
+      this.metadata = new GcsFileMetadata(filename, options, UUID.randomUUID().toString(),
+          content.length, new Date());
+      this.content = content;
+    }
+  }
+
+  private static final class Token implements RawGcsCreationToken {
+    private static final long serialVersionUID = 1L;
+
+    private final GcsFilename filename;
+    private final GcsFileOptions options;
+    private final long offset;
+
+    Token(GcsFilename filename, GcsFileOptions options, long offset) {
+      this.filename = filename;
+      this.options = options;
+      this.offset = offset;
+    }
+
+    @Override
+    public GcsFilename getFilename() {
+      return filename;
+    }
+
+    @Override
+    public long getOffset() {
+      return offset;
+    }
+  }
+
+  /**
+   * Sets whether the writes of {@link #continueObjectCreationAsync} only happen, and their
+   * futures only complete, when their result is retrieved.
+   */
+  void setDeferWrites(boolean deferWrites) {
+    this.deferWrites = deferWrites;
+  }
+
+  @Override
+  public int getChunkSizeBytes() {
+    return CHUNK_SIZE_BYTES;
+  }
+
+  @Override
+  public int getMaxWriteSizeByte() {
+    return 10_000_000;
+  }
+
+  @Override
+  public int getMaxReadSizeBytes() {
+    return Integer.MAX_VALUE;
+  }
+
+  @Override
+  public RawGcsCreationToken beginObjectCreation(GcsFilename filename, GcsFileOptions options,
+      long timeoutMillis) {
+    uploads.put(filename, new ByteArrayOutputStream());
+    return new Token(filename, options, 0);
+  }
+
+  private ByteArrayOutputStream append(RawGcsCreationToken token, ByteBuffer chunk)
+      throws IOException {
+    ByteArrayOutputStream upload = uploads.get(token.getFilename());
+    if (upload == null) {
+      throw new IOException("No upload in progress for " + token.getFilename());
+    }
+    synchronized (upload) {
+      if (upload.size() != token.getOffset()) {
+        throw new IOException("Upload of " + token.getFilename() + " is at " + upload.size()
+            + ", not " + token.getOffset());
+      }
+      if (chunk.hasArray()) {
+        upload.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+        chunk.position(chunk.limit());
+      } else {
+        byte[] bytes = new byte[chunk.remaining()];
+        chunk.get(bytes);
+        upload.write(bytes);
+      }
+    }
+    return upload;
+  }
+
+  private Token write(RawGcsCreationToken token, ByteBuffer chunk) throws IOException {
+    long length = append(token, chunk).size();
+    return new Token(token.getFilename(), ((Token) token).options, length);
+  }
+
+  @Override
+  public Future<RawGcsCreationToken> continueObjectCreationAsync(
+      final RawGcsCreationToken token, final ByteBuffer chunk, final long timeoutMillis) {
+    if (deferWrites) {
+      return new FutureTask<RawGcsCreationToken>(new Callable<RawGcsCreationToken>() {
+        @Override
+        public RawGcsCreationToken call() throws IOException {
+          return write(token, chunk);
+        }
+      }) {
+        @Override
+        public RawGcsCreationToken get() throws InterruptedException, ExecutionException {
+          run();
+          return super.get();
+        }
+
+        @Override
+        public RawGcsCreationToken get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+          run();
+          return super.get(timeout, unit);
+        }
+      };
+    }
+    try {
+      return Futures.<RawGcsCreationToken>immediateFuture(write(token, chunk));
+    } catch (IOException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+  }
+
+  @Override
+  public void finishObjectCreation(RawGcsCreationToken token, ByteBuffer chunk,
+      long timeoutMillis) throws IOException {
+    byte[] content = append(token, chunk).toByteArray();
+    uploads.remove(token.getFilename());
+    objects.put(token.getFilename(),
+        new GcsObject(token.getFilename(), ((Token) token).options, content));
+  }
+
+  @Override
+  public void putObject(GcsFilename filename, GcsFileOptions options, ByteBuffer content,
+      long timeoutMillis) {
+    byte[] bytes = new byte[content.remaining()];
+    content.get(bytes);
+    objects.put(filename, new GcsObject(filename, options, bytes));
+  }
+
+  @Override
+  public Future<GcsFileMetadata> readObjectAsync(ByteBuffer dst, GcsFilename filename,
+      long offset, long timeoutMillis) {
+    return readObjectAsync(dst, filename, offset, null, null, timeoutMillis);
+  }
+
+  @Override
+  public Future<GcsFileMetadata> readObjectAsync(ByteBuffer dst, GcsFilename filename,
+      long offset, String ifMatch, String ifNoneMatch, long timeoutMillis) {
+    GcsObject object = objects.get(filename);
+    if (object == null) {
+      return Futures.immediateFailedFuture(
+          new FileNotFoundException(this + ": No such file: " + filename));
+    }
+    String etag = object.metadata.getEtag();
+    if (ifMatch != null && !ifMatch.equals(etag)) {
+      return Futures.immediateFailedFuture(
+          new PreconditionFailedException(filename + " does not have ETag " + ifMatch));
+    }
+    if (Objects.equals(ifNoneMatch, etag)) {
+      return Futures.immediateFuture(null);
+    }
+    if (offset >= object.content.length) {
+      return Futures.immediateFailedFuture(new BadRangeException(
+          "The requested range cannot be satisfied. bytes=" + offset + "-"
+          + (offset + dst.remaining()) + " the file is only " + object.content.length));
+    }
+    int length = (int) Math.min(dst.remaining(), object.content.length - offset);
+    dst.put(object.content, (int) offset, length);
+    return Futures.immediateFuture(object.metadata);
+  }
+
+  @Override
+  public GcsFileMetadata getObjectMetadata(GcsFilename filename, long timeoutMillis) {
+    GcsObject object = objects.get(filename);
+    return object == null ? null : object.metadata;
+  }
+
+  @Override
+  public Future<GcsFileMetadata> getObjectMetadataAsync(GcsFilename filename,
+      long timeoutMillis) {
+    return Futures.immediateFuture(getObjectMetadata(filename, timeoutMillis));
+  }
+
+  @Override
+  public List<Future<GcsFileMetadata>> getObjectMetadata(Iterable<GcsFilename> filenames,
+      int maxConcurrentRequests, long timeoutMillis) {
+    List<Future<GcsFileMetadata>> results = new ArrayList<>();
+    for (GcsFilename filename : filenames) {
+      results.add(getObjectMetadataAsync(filename, timeoutMillis));
+    }
+    return results;
+  }
+
+  @Override
+  public boolean deleteObject(GcsFilename filename, long timeoutMillis) {
+    return objects.remove(filename) != null;
+  }
+
+  @Override
+  public Future<Boolean> deleteObjectAsync(GcsFilename filename, long timeoutMillis) {
+    return Futures.immediateFuture(deleteObject(filename, timeoutMillis));
+  }
+
+  @Override
+  public List<Future<Boolean>> deleteObjects(Iterable<GcsFilename> filenames,
+      int maxConcurrentRequests, long timeoutMillis) {
+    List<Future<Boolean>> results = new ArrayList<>();
+    for (GcsFilename filename : filenames) {
+      results.add(deleteObjectAsync(filename, timeoutMillis));
+    }
+    return results;
+  }
+
+  @Override
+  public void composeObject(Iterable<String> source, GcsFilename dest, long timeoutMillis)
+      throws IOException {
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    GcsFileOptions options = null;
+    for (String name : source) {
+      GcsObject object = objects.get(new GcsFilename(dest.getBucketName(), name));
+      if (object == null) {
+        throw new FileNotFoundException(this + ": No such file: " + name);
+      }
+      if (options == null) {
+        options = object.metadata.getOptions();
+      }
+      content.write(object.content);
+    }
+    objects.put(dest, new GcsObject(dest, options, content.toByteArray()));
+  }
+
+  @Override
+  public Future<Void> composeObjectAsync(Iterable<String> source, GcsFilename dest,
+      long timeoutMillis) {
+    try {
+      composeObject(source, dest, timeoutMillis);
+      return Futures.immediateFuture(null);
+    } catch (IOException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+  }
+
+  @Override
+  public void copyObject(GcsFilename source, GcsFilename dest, GcsFileOptions fileOptions,
+      long timeoutMillis) throws IOException {
+    GcsObject object = objects.get(source);
+    if (object == null) {
+      throw new FileNotFoundException(this + ": No such file: " + source);
+    }
+    GcsFileOptions options = fileOptions != null ? fileOptions : object.metadata.getOptions();
+    objects.put(dest, new GcsObject(dest, options, object.content));
+  }
+
+  @Override
+  public Future<Void> copyObjectAsync(GcsFilename source, GcsFilename dest,
+      GcsFileOptions fileOptions, long timeoutMillis) {
+    try {
+      copyObject(source, dest, fileOptions, timeoutMillis);
+      return Futures.immediateFuture(null);
+    } catch (IOException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+  }
+
+  @Override
+  public ListItemBatch list(String bucket, String prefix, String delimiter, String marker,
+      int maxResults, long timeoutMillis) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public Future<ListItemBatch> listAsync(String bucket, String prefix, String delimiter,
+      String marker, int maxResults, long timeoutMillis) {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Stores an object of {@code length} random bytes with the default options, as if another client
+   * had written it, and returns its content.
+   */
+  byte[] createFile(GcsFilename filename, int length) {
+    byte[] content = new byte[length];
+    new Random().nextBytes(content);
+    objects.put(filename,
+        new GcsObject(filename, GcsFileOptions.getDefaultInstance(), content.clone()));
+    return content;
+  }
+
+  /**
+   * Returns the content of a stored object, or null if there is none.
+   */
+  byte[] getContent(GcsFilename filename) {
+    GcsObject object = objects.get(filename);
+    return object == null ? null : object.content.clone();
+  }
+
+  @Override
+  public String toString() {
+    return "InMemoryRawGcsService";
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.cloudstorage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.appengine.tools.cloudstorage.GcsMetrics.Operation;
+import com.google.appengine.tools.cloudstorage.InMemoryGcsMetrics.OperationStats;
+import com.google.common.util.concurrent.SettableFuture;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/** Verify behaviors of {@link InstrumentedRawGcsService}. */
+@RunWith(JUnit4.class)
+public class InstrumentedRawGcsServiceTest {
+
+  private final InMemoryRawGcsService raw = new InMemoryRawGcsService();
+  private final InMemoryGcsMetrics metrics = new InMemoryGcsMetrics();
+
+  @Test
+  public void testMetrics() throws IOException {
+    GcsService instrumentedService = new GcsServiceImpl(
+        new InstrumentedRawGcsService(raw, metrics), GcsServiceOptions.DEFAULT);
+    GcsFilename filename = new GcsFilename("bucket", "file");
+    instrumentedService.createOrReplace(
+        filename, GcsFileOptions.getDefaultInstance(), ByteBuffer.allocate(100));
+    GcsTestUtils.read(instrumentedService, filename, 0);
+    assertNull(instrumentedService.getMetadata(new GcsFilename("bucket", "missing")));
+    try {
+      GcsTestUtils.read(instrumentedService, new GcsFilename("bucket", "missing"), 0);
+      fail();
+    } catch (IOException expected) {
+    }
+
+    OperationStats put = metrics.getStats(Operation.PUT_OBJECT);
+    assertEquals(1, put.getRequestCount());
+    assertEquals(100, put.getBytesSent());
+    OperationStats read = metrics.getStats(Operation.READ_OBJECT);
+    assertEquals(metrics.toString(), 2, read.getRequestCount());
+    assertEquals(100, read.getBytesReceived());
+    assertEquals(1, read.getFailureCount());
+    assertEquals(1, read.getFailures().size());
+    long histogramCount = 0;
+    for (long count : read.getLatencyHistogram()) {
+      histogramCount += count;
+    }
+    assertEquals(2, histogramCount);
+    assertEquals(1, metrics.getStats(Operation.GET_OBJECT_METADATA).getRequestCount());
+    assertEquals(0, metrics.getStats(Operation.DELETE_OBJECT).getRequestCount());
+  }
+
+  @Test
+  public void testAsyncCallsAreRecordedWithoutRetrieval() throws Exception {
+    final SettableFuture<Boolean> listenable = SettableFuture.create();
+    final FutureTask<GcsFileMetadata> polled = new FutureTask<>(new Callable<GcsFileMetadata>() {
+      @Override
+      public GcsFileMetadata call() {
+        return null;
+      }
+    });
+    final FutureTask<Void> cancelled = new FutureTask<>(new Callable<Void>() {
+      @Override
+      public Void call() {
+        return null;
+      }
+    });
+    RawGcsService instrumented = new InstrumentedRawGcsService(new ForwardingRawGcsService(raw) {
+      @Override
+      public Future<Boolean> deleteObjectAsync(GcsFilename filename, long timeoutMillis) {
+        return listenable;
+      }
+
+      @Override
+      public Future<GcsFileMetadata> getObjectMetadataAsync(GcsFilename filename,
+          long timeoutMillis) {
+        return polled;
+      }
+
+      @Override
+      public Future<Void> copyObjectAsync(GcsFilename source, GcsFilename dest,
+          GcsFileOptions fileOptions, long timeoutMillis) {
+        return cancelled;
+      }
+    }, metrics);
+    GcsFilename filename = new GcsFilename("bucket", "file");
+
+    instrumented.deleteObjectAsync(filename, 1000);
+    listenable.set(true);
+    assertEquals(1, metrics.getStats(Operation.DELETE_OBJECT).getRequestCount());
+
+    Future<GcsFileMetadata> metadata = instrumented.getObjectMetadataAsync(filename, 1000);
+    polled.run();
+    assertEquals(0, metrics.getStats(Operation.GET_OBJECT_METADATA).getRequestCount());
+    assertTrue(metadata.isDone());
+    assertEquals(1, metrics.getStats(Operation.GET_OBJECT_METADATA).getRequestCount());
+
+    instrumented.copyObjectAsync(filename, filename, null, 1000).cancel(true);
+    OperationStats copy = metrics.getStats(Operation.COPY_OBJECT);
+    assertEquals(1, copy.getRequestCount());
+    assertEquals(1, copy.getFailureCount());
+  }
+}
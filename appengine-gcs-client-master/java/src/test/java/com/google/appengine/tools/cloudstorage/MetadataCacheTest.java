@@ -0,0 +1,65 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.cloudstorage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.ByteBuffer;
+
+/** Verify behaviors of {@link MetadataCache}. */
+@RunWith(JUnit4.class)
+public class MetadataCacheTest {
+
+  private final InMemoryRawGcsService raw = new InMemoryRawGcsService();
+
+  @Test
+  public void testMetadataCache() throws Exception {
+    MetadataCache cache = new MetadataCache(10, 200);
+    GcsService cachingService = new GcsServiceImpl(
+        new CachingRawGcsService(raw, null, cache), GcsServiceOptions.DEFAULT);
+    GcsFilename filename = new GcsFilename("bucket", "file");
+    assertNull(cachingService.getMetadata(filename));
+    raw.createFile(filename, 10);
+    GcsFileMetadata metadata = cachingService.getMetadata(filename);
+    assertEquals(10, metadata.getLength());
+    assertEquals(metadata, cachingService.getMetadata(filename));
+    assertEquals(cache.toString(), 1, cache.getHitCount());
+
+    raw.createFile(filename, 20);
+    assertEquals(metadata, cachingService.getMetadata(filename));
+    try (GcsOutputChannel outputChannel =
+        cachingService.createOrReplace(filename, GcsFileOptions.getDefaultInstance())) {
+      outputChannel.write(ByteBuffer.allocate(30));
+    }
+    assertEquals(30, cachingService.getMetadata(filename).getLength());
+    assertEquals(cache.toString(), 2, cache.getHitCount());
+
+    raw.createFile(filename, 40);
+    Thread.sleep(300);
+    assertEquals(40, cachingService.getMetadata(filename).getLength());
+    assertTrue(cachingService.delete(filename));
+    assertNull(cachingService.getMetadata(filename));
+    assertEquals(cache.toString(), 2, cache.getHitCount());
+    assertEquals(cache.toString(), 2.0 / 7, cache.getHitRatio(), 0.001);
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.cloudstorage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/** Verify behaviors of {@link ParallelFileUploader}. */
+@RunWith(JUnit4.class)
+public class ParallelFileUploaderTest {
+
+  private final GcsFileOptions options = new GcsFileOptions.Builder()
+      .mimeType("text/json")
+      .addUserMetadata("bla-name", "bla-value")
+      .build();
+  private final InMemoryRawGcsService storage = new InMemoryRawGcsService();
+  private final List<GcsFilename> written = new CopyOnWriteArrayList<>();
+  private final List<GcsFilename> composed = new CopyOnWriteArrayList<>();
+  private GcsService gcsService;
+  private Path file;
+
+  @Before
+  public void setUp() throws IOException {
+    file = Files.createTempFile("ParallelFileUploaderTest", null);
+    RawGcsService recording = new ForwardingRawGcsService(storage) {
+      @Override
+      public void putObject(GcsFilename filename, GcsFileOptions fileOptions, ByteBuffer content,
+          long timeoutMillis) throws IOException {
+        written.add(filename);
+        super.putObject(filename, fileOptions, content, timeoutMillis);
+      }
+
+      @Override
+      public void composeObject(Iterable<String> source, GcsFilename dest, long timeoutMillis)
+          throws IOException {
+        composed.add(dest);
+        super.composeObject(source, dest, timeoutMillis);
+      }
+    };
+    gcsService = new GcsServiceImpl(recording, GcsServiceOptions.DEFAULT);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    Files.delete(file);
+  }
+
+  private byte[] upload(GcsFilename filename, int length) throws IOException {
+    byte[] content = new byte[length];
+    new Random().nextBytes(content);
+    Files.write(file, content);
+    try (FileChannel src = FileChannel.open(file)) {
+      gcsService.createOrReplace(filename, options, src, 64);
+      assertEquals(0, src.position());
+    }
+    return content;
+  }
+
+  private void assertUploaded(GcsFilename filename, byte[] content) throws IOException {
+    ByteBuffer dst = ByteBuffer.allocate(content.length);
+    assertEquals(content.length, gcsService.readFully(filename, 0, dst, 8));
+    assertArrayEquals(content, dst.array());
+    assertEquals(options, gcsService.getMetadata(filename).getOptions());
+  }
+
+  @Test
+  public void testUploadFile() throws IOException {
+    GcsFilename filename = new GcsFilename("bucket", "uploaded");
+    byte[] content = upload(filename, 41 * 256 * 1024 + 123);
+    assertUploaded(filename, content);
+    assertTrue(written.toString(), written.size() > 1);
+    for (GcsFilename part : written) {
+      assertNull(part.toString(), gcsService.getMetadata(part));
+    }
+    assertFalse(composed.isEmpty());
+    for (GcsFilename temp : composed) {
+      assertFalse(temp.equals(filename));
+      assertNull(temp.toString(), gcsService.getMetadata(temp));
+    }
+  }
+
+  @Test
+  public void testUploadSmallFile() throws IOException {
+    GcsFilename filename = new GcsFilename("bucket", "small");
+    byte[] content = upload(filename, 100);
+    assertUploaded(filename, content);
+    assertEquals(1, written.size());
+    assertEquals(filename, written.get(0));
+  }
+}
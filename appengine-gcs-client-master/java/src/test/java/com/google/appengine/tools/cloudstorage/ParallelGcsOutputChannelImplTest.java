@@ -0,0 +1,134 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.cloudstorage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import com.google.appengine.tools.cloudstorage.RawGcsService.RawGcsCreationToken;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/** Verify behaviors of {@link ParallelGcsOutputChannelImpl}. */
+@RunWith(JUnit4.class)
+public class ParallelGcsOutputChannelImplTest {
+
+  private static final int PART_SIZE = 256 * 1024;
+
+  private final InMemoryRawGcsService storage = new InMemoryRawGcsService();
+  private final GcsFilename filename = new GcsFilename("bucket", "file");
+  private final GcsFileOptions options = new GcsFileOptions.Builder()
+      .mimeType("text/json")
+      .addUserMetadata("bla-name", "bla-value")
+      .build();
+
+  /**
+   * Records the objects it creates other than by copying, which must not replace the final object,
+   * and fails copies while {@link #failCopies} is set.
+   */
+  private final class GuardedStorage extends ForwardingRawGcsService {
+    private final List<GcsFilename> created = new CopyOnWriteArrayList<>();
+    private volatile boolean failCopies;
+
+    GuardedStorage() {
+      super(storage);
+    }
+
+    @Override
+    public RawGcsCreationToken beginObjectCreation(GcsFilename dest, GcsFileOptions fileOptions,
+        long timeoutMillis) throws IOException {
+      assertFalse(dest.equals(filename));
+      created.add(dest);
+      return super.beginObjectCreation(dest, fileOptions, timeoutMillis);
+    }
+
+    @Override
+    public void composeObject(Iterable<String> source, GcsFilename dest, long timeoutMillis)
+        throws IOException {
+      assertFalse(dest.equals(filename));
+      created.add(dest);
+      super.composeObject(source, dest, timeoutMillis);
+    }
+
+    @Override
+    public void copyObject(GcsFilename source, GcsFilename dest, GcsFileOptions fileOptions,
+        long timeoutMillis) throws IOException {
+      if (failCopies) {
+        throw new IOException("Unavailable");
+      }
+      super.copyObject(source, dest, fileOptions, timeoutMillis);
+    }
+  }
+
+  private byte[] write(RawGcsService raw, int length) throws IOException {
+    GcsService gcsService = new GcsServiceImpl(raw, new GcsServiceOptions.Builder()
+        .setDefaultWriteBufferSize(PART_SIZE)
+        .setMaxParallelUploads(4)
+        .setRetryParams(new RetryParams.Builder().retryMinAttempts(1).retryMaxAttempts(1).build())
+        .build());
+    byte[] content = new byte[length];
+    new Random().nextBytes(content);
+    try (GcsOutputChannel outputChannel = gcsService.createOrReplace(filename, options)) {
+      outputChannel.write(ByteBuffer.wrap(content));
+    }
+    return content;
+  }
+
+  @Test
+  public void testManyParts() throws IOException {
+    storage.createFile(filename, 10);
+    GuardedStorage guarded = new GuardedStorage();
+    byte[] content = write(guarded, (ObjectComposer.MAX_COMPOSE_COMPONENTS + 8) * PART_SIZE + 1);
+    assertArrayEquals(content, storage.getContent(filename));
+    assertEquals(options, storage.getObjectMetadata(filename, 0).getOptions());
+    assertEquals(guarded.created.toString(),
+        ObjectComposer.MAX_COMPOSE_COMPONENTS + 9 + 3, guarded.created.size());
+    for (GcsFilename temp : guarded.created) {
+      assertNull(temp.toString(), storage.getContent(temp));
+    }
+  }
+
+  @Test
+  public void testFailedCloseKeepsExistingObject() throws IOException {
+    byte[] existing = storage.createFile(filename, 10);
+    GuardedStorage guarded = new GuardedStorage();
+    guarded.failCopies = true;
+    try {
+      write(guarded, 3 * PART_SIZE);
+      fail();
+    } catch (RetriesExhaustedException expected) {
+    }
+    assertArrayEquals(existing, storage.getContent(filename));
+    assertEquals(4, guarded.created.size());
+    for (GcsFilename part : guarded.created.subList(0, 3)) {
+      assertNotNull(part.toString(), storage.getContent(part));
+    }
+    assertNull(storage.getContent(guarded.created.get(3)));
+  }
+}
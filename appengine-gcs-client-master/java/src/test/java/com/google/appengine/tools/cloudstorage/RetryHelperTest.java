@@ -18,21 +18,30 @@ package com.google.appengine.tools.cloudstorage;
 
 import static java.util.concurrent.Executors.callable;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import com.google.common.base.Stopwatch;
 import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -228,6 +237,91 @@ public class RetryHelperTest {
     assertTrue("" + sleepDuration, sleepDuration < 25600 && sleepDuration >= 15360);
   }
 
+  @Test
+  public void testRunWithRetriesAsync() throws Exception {
+    RetryParams params = new RetryParams.Builder().initialRetryDelayMillis(0)
+        .retryMinAttempts(0)
+        .retryMaxAttempts(3)
+        .build();
+    final AtomicInteger timesCalled = new AtomicInteger(0);
+    Future<Integer> result = RetryHelper.runWithRetriesAsync(new Callable<Future<Integer>>() {
+      @Override public Future<Integer> call() {
+        int attempt = RetryHelper.getContext().getAttemptNumber();
+        assertEquals(timesCalled.incrementAndGet(), attempt);
+        if (attempt < 3) {
+          return Futures.immediateFailedFuture(new IOException());
+        }
+        return Futures.immediateFuture(attempt);
+      }
+    }, params, ExceptionHandler.getDefaultInstance());
+    assertEquals(3, result.get(10, TimeUnit.SECONDS).intValue());
+    assertNull(RetryHelper.getContext());
+
+    final IOException failure = new IOException("Boo!");
+    result = RetryHelper.runWithRetriesAsync(new Callable<Future<Integer>>() {
+      @Override public Future<Integer> call() {
+        return Futures.immediateFailedFuture(failure);
+      }
+    }, params, ExceptionHandler.getDefaultInstance());
+    try {
+      result.get(10, TimeUnit.SECONDS);
+      fail("Exception should have been thrown");
+    } catch (ExecutionException ex) {
+      assertTrue(ex.getCause() instanceof RetriesExhaustedException);
+      assertSame(failure, ex.getCause().getCause());
+    }
+
+    ExceptionHandler handler = new ExceptionHandler.Builder()
+        .retryOn(IOException.class).abortOn(FileNotFoundException.class).build();
+    final FileNotFoundException notFound = new FileNotFoundException();
+    result = RetryHelper.runWithRetriesAsync(new Callable<Future<Integer>>() {
+      @Override public Future<Integer> call() {
+        return Futures.immediateFailedFuture(notFound);
+      }
+    }, params, handler);
+    try {
+      result.get(10, TimeUnit.SECONDS);
+      fail("Exception should have been thrown");
+    } catch (ExecutionException ex) {
+      assertSame(notFound, ex.getCause());
+    }
+  }
+
+  @Test
+  public void testBlockedRetryDoesNotDelayOtherOperations() throws Exception {
+    RetryParams params = new RetryParams.Builder().initialRetryDelayMillis(0)
+        .retryMinAttempts(0)
+        .retryMaxAttempts(2)
+        .build();
+    final CountDownLatch retrying = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    Future<Integer> blocked = RetryHelper.runWithRetriesAsync(new Callable<Future<Integer>>() {
+      @Override public Future<Integer> call() {
+        if (RetryHelper.getContext().getAttemptNumber() == 1) {
+          return Futures.immediateFailedFuture(new IOException());
+        }
+        retrying.countDown();
+        Uninterruptibles.awaitUninterruptibly(release);
+        return Futures.immediateFuture(2);
+      }
+    }, params, ExceptionHandler.getDefaultInstance());
+    assertTrue(retrying.await(10, TimeUnit.SECONDS));
+
+    final FutureTask<Integer> attempt = new FutureTask<>(callable(new Runnable() {
+      @Override public void run() {}
+    }, 1));
+    Future<Integer> polled = RetryHelper.runWithRetriesAsync(new Callable<Future<Integer>>() {
+      @Override public Future<Integer> call() {
+        return attempt;
+      }
+    }, params, ExceptionHandler.getDefaultInstance());
+    attempt.run();
+    assertEquals(1, polled.get(10, TimeUnit.SECONDS).intValue());
+    assertFalse(blocked.isDone());
+    release.countDown();
+    assertEquals(2, blocked.get(10, TimeUnit.SECONDS).intValue());
+  }
+
   @Test
   public void testNestedUsage() {
     assertEquals((1 + 3) * 2, invokeNested(3, 2));
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.cloudstorage.oauth;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.appengine.api.appidentity.AppIdentityService.GetAccessTokenResult;
+import com.google.common.collect.ImmutableList;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/** Verify behaviors of {@link AccessTokenRefresher}. */
+@RunWith(JUnit4.class)
+public class AccessTokenRefresherTest {
+
+  private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+
+  /**
+   * Always picks the largest headroom.
+   */
+  @SuppressWarnings("serial")
+  private static final Random MAX_HEADROOM = new Random() {
+    @Override
+    public int nextInt(int bound) {
+      return bound - 1;
+    }
+  };
+
+  /**
+   * Returns numbered tokens that are due to be renewed in the background after
+   * {@code validMillis} given the largest headroom.
+   */
+  private static final class CountingProvider implements AccessTokenProvider {
+    private final long validMillis;
+    private int count;
+
+    CountingProvider(long validMillis) {
+      this.validMillis = validMillis;
+    }
+
+    @Override
+    public synchronized GetAccessTokenResult getNewAccessToken(List<String> scopes) {
+      count++;
+      long expiration = System.currentTimeMillis() + validMillis
+          + AccessTokenRefresher.MAX_CACHE_EXPIRATION_HEADROOM
+          + AccessTokenRefresher.BACKGROUND_REFRESH_LEAD_MILLIS;
+      return new GetAccessTokenResult(scopes + "-" + count, new Date(expiration));
+    }
+
+    synchronized int getCount() {
+      return count;
+    }
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testScopeSetsAreCachedSeparately() {
+    CountingProvider provider = new CountingProvider(TimeUnit.HOURS.toMillis(1));
+    AccessTokenRefresher refresher = new AccessTokenRefresher(provider, null);
+    assertEquals("[a, b]-1", refresher.getToken(ImmutableList.of("b", "a")));
+    assertEquals("[c]-2", refresher.getToken(ImmutableList.of("c")));
+    assertEquals("[a, b]-1", refresher.getToken(ImmutableList.of("a", "b")));
+    assertEquals("[c]-2", refresher.getToken(ImmutableList.of("c")));
+    assertEquals(2, provider.getCount());
+  }
+
+  @Test
+  public void testRefreshedInBackground() throws Exception {
+    CountingProvider provider = new CountingProvider(200);
+    AccessTokenRefresher refresher = new AccessTokenRefresher(provider, executor, MAX_HEADROOM);
+    List<String> scopes = ImmutableList.of("a");
+    assertEquals("[a]-1", refresher.getToken(scopes));
+    long deadline = System.currentTimeMillis() + 10000;
+    while (provider.getCount() < 2 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(2, provider.getCount());
+    assertEquals("[a]-2", refresher.getToken(scopes));
+    assertEquals(2, provider.getCount());
+  }
+
+  @Test
+  public void testUnusedTokenIsNotRefreshed() throws Exception {
+    CountingProvider provider = new CountingProvider(0);
+    AccessTokenRefresher refresher = new AccessTokenRefresher(provider, executor, MAX_HEADROOM);
+    refresher.getToken(ImmutableList.of("a"));
+    Thread.sleep(500);
+    assertEquals(2, provider.getCount());
+  }
+}
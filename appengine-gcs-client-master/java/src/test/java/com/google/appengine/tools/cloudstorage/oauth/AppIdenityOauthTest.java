@@ -1,10 +1,12 @@
 package com.google.appengine.tools.cloudstorage.oauth;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.RETURNS_MOCKS;
 import static org.mockito.Mockito.mock;
 
+import com.google.appengine.api.appidentity.AppIdentityService.GetAccessTokenResult;
 import com.google.appengine.api.urlfetch.HTTPRequest;
 import com.google.appengine.api.urlfetch.HTTPResponse;
 import com.google.appengine.api.urlfetch.URLFetchService;
@@ -17,9 +19,11 @@ import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import java.io.IOException;
+import java.util.Date;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Tests error handling around fetching credentials.
@@ -49,6 +53,19 @@ public class AppIdenityOauthTest {
     }
   }
 
+  /**
+   * Returns tokens named after its class. Public so that it can be named by the system property.
+   */
+  public static class NamingProvider implements AccessTokenProvider {
+    @Override
+    public GetAccessTokenResult getNewAccessToken(List<String> scopes) {
+      return new GetAccessTokenResult(getClass().getSimpleName(),
+          new Date(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1)));
+    }
+  }
+
+  public static class OtherNamingProvider extends NamingProvider {}
+
   @Test
   public void testAuthIsRetried() throws IOException, InterruptedException, ExecutionException {
     URLFetchService urlFetchService = mock(URLFetchService.class, RETURNS_MOCKS);
@@ -78,4 +95,25 @@ public class AppIdenityOauthTest {
     }
   }
 
+  @Test
+  public void testProviderIsReadForEachService() {
+    URLFetchService urlFetchService = mock(URLFetchService.class);
+    String previous = System.getProperty(AccessTokenProvider.SYSTEM_PROPERTY_NAME);
+    try {
+      System.setProperty(AccessTokenProvider.SYSTEM_PROPERTY_NAME, NamingProvider.class.getName());
+      assertEquals("NamingProvider",
+          new AppIdentityOAuthURLFetchService(urlFetchService, oauthScopes).getToken());
+      System.setProperty(
+          AccessTokenProvider.SYSTEM_PROPERTY_NAME, OtherNamingProvider.class.getName());
+      assertEquals("OtherNamingProvider",
+          new AppIdentityOAuthURLFetchService(urlFetchService, oauthScopes).getToken());
+    } finally {
+      if (previous == null) {
+        System.clearProperty(AccessTokenProvider.SYSTEM_PROPERTY_NAME);
+      } else {
+        System.setProperty(AccessTokenProvider.SYSTEM_PROPERTY_NAME, previous);
+      }
+    }
+  }
+
 }
@@ -0,0 +1,112 @@
+package com.google.appengine.tools.cloudstorage.oauth;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import com.google.appengine.tools.cloudstorage.ListItem;
+import com.google.appengine.tools.cloudstorage.RawGcsService.ListItemBatch;
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Date;
+
+import javax.xml.bind.DatatypeConverter;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Tests {@link ListBucketResultParser}
+ */
+@RunWith(JUnit4.class)
+public class ListBucketResultParserTest {
+
+  private static final String CONTENT = "<?xml version=\"1.0\"?>\n"
+      + "<ListBucketResult xmlns='http://doc.s3.amazonaws.com/2006-03-01'>\n"
+      + "   <Name>mybucket</Name>\n\n"
+      + "   <Prefix>europe/</Prefix>\n"
+      + "   <Marker />\n"
+      + "   <IsTruncated>true</IsTruncated>\n"
+      + "   <Contents>\n"
+      + "       <Key>europe/finland.jpg</Key>\n"
+      + "       <Generation>1360887659323000</Generation>\n"
+      + "       <MetaGeneration>1</MetaGeneration>\n"
+      + "       <LastModified>2010-02-17T03:12:55.561Z</LastModified>\n"
+      + "       <ETag>\"etag1\"</ETag>\n"
+      + "       <Size>10</Size>\n"
+      + "       <StorageClass>STANDARD</StorageClass>\n"
+      + "       <Owner>\n"
+      + "           <ID>84fac329bceSAMPLE777d5d22b8SAMPLE77d85ac2SAMPLE2dfcf7c4adf34da46</ID>\n"
+      + "       </Owner>\n"
+      + "   </Contents>\n"
+      + "   <Contents>\n"
+      + "       <Key><![CDATA[europe/norway & sweden.jpg]]></Key>\n"
+      + "       <LastModified>2010-03-17T03:12:55.561Z</LastModified>\n"
+      + "       <ETag>&quot;etag2&quot;</ETag>\n"
+      + "       <Size>20</Size>\n"
+      + "   </Contents>\n"
+      + "   <CommonPrefixes>\n"
+      + "       <Prefix>europe/france/</Prefix>\n"
+      + "   </CommonPrefixes>\n"
+      + "   <CommonPrefixes>\n"
+      + "       <Prefix>europe/italy/</Prefix>\n"
+      + "   </CommonPrefixes>\n"
+      + "   <NextMarker>europe/italy/</NextMarker>\n"
+      + "   </ListBucketResult>\n";
+
+  @Test
+  public void testParse() throws XMLStreamException {
+    ListItemBatch batch = ListBucketResultParser.parse(CONTENT.getBytes(UTF_8));
+    assertEquals(ImmutableList.of(
+        new ListItem.Builder().setName("europe/finland.jpg").setEtag("\"etag1\"").setLength(10)
+            .setLastModified(DatatypeConverter.parseDateTime("2010-02-17T03:12:55.561Z").getTime())
+            .build(),
+        new ListItem.Builder().setName("europe/norway & sweden.jpg").setEtag("\"etag2\"")
+            .setLength(20)
+            .setLastModified(DatatypeConverter.parseDateTime("2010-03-17T03:12:55.561Z").getTime())
+            .build(),
+        new ListItem.Builder().setName("europe/france/").setDirectory(true).build(),
+        new ListItem.Builder().setName("europe/italy/").setDirectory(true).build()),
+        batch.getItems());
+    assertEquals("europe/italy/", batch.getNextMarker());
+  }
+
+  @Test
+  public void testParseEmpty() throws XMLStreamException {
+    ListItemBatch batch = ListBucketResultParser.parse(
+        "<ListBucketResult><Name>b</Name></ListBucketResult>".getBytes(UTF_8));
+    assertEquals(ImmutableList.of(), batch.getItems());
+    assertNull(batch.getNextMarker());
+  }
+
+  @Test
+  public void testParseInvalid() {
+    try {
+      ListBucketResultParser.parse("<Error><Code>x</Code></Error>".getBytes(UTF_8));
+      fail();
+    } catch (XMLStreamException expected) {
+    }
+    try {
+      ListBucketResultParser.parse("<ListBucketResult><Contents>".getBytes(UTF_8));
+      fail();
+    } catch (XMLStreamException expected) {
+    }
+  }
+
+  @Test
+  public void testParseTimestamp() {
+    String[] timestamps = {
+        "2010-02-17T03:12:55.561Z", "2010-02-17T03:12:55Z", "2010-02-17T03:12:55.5Z",
+        "2010-02-17T03:12:55.56Z", "2010-02-17T03:12:55.561789Z", "1970-01-01T00:00:00.000Z",
+        "1969-12-31T23:59:59.999Z", "2000-02-29T12:00:00.000Z", "2100-12-31T23:59:59.999Z",
+        "2016-07-01T10:20:30.400+02:00", "2016-07-01T10:20:30.400-09:30", "1601-01-01T00:00:00Z",
+        "1200-06-15T08:00:00Z", "2016-07-01T10:20:30"};
+    for (String timestamp : timestamps) {
+      Date expected = DatatypeConverter.parseDateTime(timestamp).getTime();
+      assertEquals(timestamp, expected, ListBucketResultParser.parseTimestamp(timestamp));
+    }
+  }
+}
@@ -23,26 +23,43 @@ import static java.util.Collections.emptyMap;
 import static java.util.Collections.singletonMap;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 import com.google.appengine.api.urlfetch.FetchOptions;
 import com.google.appengine.api.urlfetch.HTTPHeader;
 import com.google.appengine.api.urlfetch.HTTPRequest;
+import com.google.appengine.api.urlfetch.HTTPResponse;
+import com.google.appengine.tools.cloudstorage.GcsFileMetadata;
 import com.google.appengine.tools.cloudstorage.GcsFilename;
+import com.google.appengine.tools.cloudstorage.PreconditionFailedException;
 import com.google.common.base.Function;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
 
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /** Verify behaviors of {@link OauthRawGcsService}. */
 @RunWith(JUnit4.class)
@@ -98,6 +115,29 @@ public class OauthRawGcsServiceTest {
     assertHttpRequestEquals(expected, service.makeRequest(GCS_FILENAME, null, PUT, 30000, payload));
   }
 
+  @Test
+  public void peekBytesShouldNotCopyAFullArray() {
+    byte[] payload = "hello".getBytes(UTF_8);
+    assertSame(payload, OauthRawGcsService.peekBytes(ByteBuffer.wrap(payload)));
+    assertSame(payload, OauthRawGcsService.peekBytes(ByteBuffer.wrap(payload).slice()));
+  }
+
+  @Test
+  public void peekBytesShouldCopyOnlyTheRemainingBytes() {
+    byte[] payload = "hello world".getBytes(UTF_8);
+    ByteBuffer partial = ByteBuffer.wrap(payload, 6, 5).slice();
+    byte[] peeked = OauthRawGcsService.peekBytes(partial);
+    assertNotSame(payload, peeked);
+    assertArrayEquals("world".getBytes(UTF_8), peeked);
+    assertEquals(0, partial.position());
+
+    ByteBuffer direct = ByteBuffer.allocateDirect(payload.length);
+    direct.put(payload).flip();
+    direct.position(6);
+    assertArrayEquals("world".getBytes(UTF_8), OauthRawGcsService.peekBytes(direct));
+    assertEquals(6, direct.position());
+  }
+
   @Test
   public void makeUrlShouldCorrectlyGenerateUrlWithoutUploadId() {
     String url = makeUrl(new GcsFilename(BUCKET, "object"), null).toString();
@@ -136,6 +176,51 @@ public class OauthRawGcsServiceTest {
     assertEquals(expected, url);
   }
 
+  /**
+   * Reads {@link #GCS_FILENAME} with the given conditions from a fetch service answering with
+   * {@code responseCode}.
+   */
+  private Future<GcsFileMetadata> readConditionally(int responseCode, String ifMatch,
+      String ifNoneMatch, ByteBuffer dst) {
+    HTTPResponse response = mock(HTTPResponse.class);
+    when(response.getResponseCode()).thenReturn(responseCode);
+    when(oauthURLFetchService.fetchAsync(any(HTTPRequest.class)))
+        .thenReturn(Futures.immediateFuture(response));
+    return service.readObjectAsync(dst, GCS_FILENAME, 0, ifMatch, ifNoneMatch, 30000);
+  }
+
+  private Map<String, String> getSentHeaders() {
+    ArgumentCaptor<HTTPRequest> request = ArgumentCaptor.forClass(HTTPRequest.class);
+    verify(oauthURLFetchService).fetchAsync(request.capture());
+    return toMap(request.getValue().getHeaders());
+  }
+
+  @Test
+  public void readObjectShouldReturnNullIfNoneMatches() throws Exception {
+    ByteBuffer dst = ByteBuffer.allocate(100);
+    assertNull(readConditionally(304, null, "\"etag\"", dst).get());
+    assertEquals(0, dst.position());
+    Map<String, String> headers = getSentHeaders();
+    assertEquals("\"etag\"", headers.get("If-None-Match"));
+    assertFalse(headers.containsKey("If-Match"));
+    assertEquals("bytes=0-99", headers.get("Range"));
+  }
+
+  @Test
+  public void readObjectShouldFailIfMatchFails() throws Exception {
+    Future<GcsFileMetadata> read =
+        readConditionally(412, "\"etag\"", null, ByteBuffer.allocate(100));
+    try {
+      read.get();
+      fail();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof PreconditionFailedException);
+    }
+    Map<String, String> headers = getSentHeaders();
+    assertEquals("\"etag\"", headers.get("If-Match"));
+    assertFalse(headers.containsKey("If-None-Match"));
+  }
+
   private void assertHttpRequestEquals(HTTPRequest req1, HTTPRequest req2) {
     Map<String, String> req1Headers = toMap(req1.getHeaders());
     Map<String, String> req2Headers = toMap(req2.getHeaders());
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.cloudstorage.oauth;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micro-benchmark for the conversion of write buffers into URLFetch payloads. For each kind of
+ * buffer it reports the number of bytes copied and the time spent per MB of payload.
+ *
+ * Run with {@code java ... PayloadCopyBenchmark [iterations]}.
+ */
+public class PayloadCopyBenchmark {
+
+  private static final int MB = 1024 * 1024;
+  private static final int BUFFER_SIZE = 2 * MB;
+
+  private interface BufferSupplier {
+    ByteBuffer get();
+  }
+
+  public static void main(String[] args) {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    final ByteBuffer fullHeap = ByteBuffer.allocate(BUFFER_SIZE);
+    final ByteBuffer partialHeap = ByteBuffer.allocate(BUFFER_SIZE);
+    partialHeap.limit(BUFFER_SIZE - 1);
+    final ByteBuffer direct = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    run("full heap buffer", iterations, new BufferSupplier() {
+      @Override public ByteBuffer get() {
+        return fullHeap.slice();
+      }
+    });
+    run("partial heap buffer", iterations, new BufferSupplier() {
+      @Override public ByteBuffer get() {
+        return partialHeap.slice();
+      }
+    });
+    run("direct buffer", iterations, new BufferSupplier() {
+      @Override public ByteBuffer get() {
+        return direct.slice();
+      }
+    });
+  }
+
+  private static void run(String name, int iterations, BufferSupplier supplier) {
+    for (int i = 0; i < iterations / 10; i++) {
+      OauthRawGcsService.peekBytes(supplier.get());
+    }
+    long copied = 0;
+    long total = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      ByteBuffer buffer = supplier.get();
+      byte[] payload = OauthRawGcsService.peekBytes(buffer);
+      total += payload.length;
+      if (!buffer.hasArray() || payload != buffer.array()) {
+        copied += payload.length;
+      }
+    }
+    long elapsed = System.nanoTime() - start;
+    double megabytes = (double) total / MB;
+    System.out.printf("%-20s copied bytes/MB: %9.0f  ns/MB: %9.0f%n", name, copied / megabytes,
+        elapsed / megabytes);
+    System.out.printf("%-20s total: %d MB in %d ms%n", "", total / MB,
+        TimeUnit.NANOSECONDS.toMillis(elapsed));
+  }
+}
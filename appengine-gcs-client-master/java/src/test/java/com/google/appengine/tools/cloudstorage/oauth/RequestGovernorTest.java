@@ -0,0 +1,113 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.tools.cloudstorage.oauth;
+
+import static com.google.appengine.api.urlfetch.HTTPMethod.GET;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.google.appengine.api.urlfetch.HTTPRequest;
+import com.google.appengine.api.urlfetch.HTTPResponse;
+import com.google.appengine.tools.cloudstorage.oauth.RequestGovernor.TokenBucket;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.SettableFuture;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.net.URL;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/** Verify behaviors of {@link RequestGovernor}. */
+@RunWith(JUnit4.class)
+public class RequestGovernorTest {
+
+  private static final class FakeTicker extends Ticker {
+    private long nanos;
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+
+    void advance(long duration, TimeUnit unit) {
+      nanos += unit.toNanos(duration);
+    }
+  }
+
+  @Test
+  public void testTokenBucket() {
+    FakeTicker ticker = new FakeTicker();
+    TokenBucket bucket = new TokenBucket(10, ticker);
+    assertEquals(0, bucket.take(10));
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(500), bucket.take(5));
+    ticker.advance(1, TimeUnit.SECONDS);
+    assertEquals(0, bucket.take(5));
+    ticker.advance(10, TimeUnit.SECONDS);
+    assertEquals(0, bucket.take(10));
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(100), bucket.take(1));
+  }
+
+  @Test
+  public void testMaxInFlightRequests() throws Exception {
+    final SettableFuture<HTTPResponse> first = SettableFuture.create();
+    OAuthURLFetchService urlfetch = new OAuthURLFetchService() {
+      private boolean fetched;
+
+      @Override
+      public HTTPResponse fetch(HTTPRequest req) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public synchronized Future<HTTPResponse> fetchAsync(HTTPRequest request) {
+        if (fetched) {
+          return SettableFuture.create();
+        }
+        fetched = true;
+        return first;
+      }
+    };
+    RequestGovernor governor = new RequestGovernor.Builder().maxInFlightRequests(1).build();
+    final OAuthURLFetchService governed = governor.govern(urlfetch);
+    final HTTPRequest req = new HTTPRequest(new URL("https://storage.googleapis.com/b/o"), GET);
+
+    Future<HTTPResponse> firstResult = governed.fetchAsync(req);
+    assertEquals(1, governor.getInFlightRequests());
+    Thread second = new Thread() {
+      @Override
+      public void run() {
+        governed.fetchAsync(req);
+      }
+    };
+    second.start();
+    second.join(100);
+    assertEquals(1, governor.getWaitingRequests());
+
+    first.set(null);
+    second.join(10000);
+    assertFalse(second.isAlive());
+    assertEquals(0, governor.getWaitingRequests());
+    assertEquals(1, governor.getInFlightRequests());
+    assertEquals(2, governor.getRequestCount());
+    assertEquals(1, governor.getQueuedRequestCount());
+    firstResult.get();
+    assertEquals(1, governor.getInFlightRequests());
+  }
+}